@@ -0,0 +1,152 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * Compares the record stores of the DNS cache with many cached names. For each store, a cache is filled with an A
+ * and an AAAA record for each of a number of synthetic names, then looked up at random. The heap and direct memory
+ * used by the filled cache, the collections run during the lookups and the pause of a full collection with the cache
+ * alive, as well as the lookup rate, are reported. Each store is best measured in its own run of the JVM, with the
+ * same heap settings (e.g., -Xmx4g -verbose:gc).
+ * <p>
+ * Usage: java ca.ubc.cs.cs317.dnslookup.CacheBenchmark [options], where options are:
+ * <pre>
+ *   --store heap|offheap|both  stores to be measured (default both)
+ *   --names n                  number of cached names (default 1000000)
+ *   --lookups n                number of lookups (default 1000000)
+ * </pre>
+ */
+public class CacheBenchmark {
+
+    private static final int TTL = 3600;
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) usage("Invalid argument " + args[i]);
+            options.put(args[i].substring(2), args[++i]);
+        }
+        String store = options.getOrDefault("store", "both");
+        int names;
+        int lookups;
+        try {
+            names = Integer.parseInt(options.getOrDefault("names", "1000000"));
+            lookups = Integer.parseInt(options.getOrDefault("lookups", "1000000"));
+        } catch (NumberFormatException e) {
+            usage(e.getMessage());
+            return;
+        }
+        if (!store.matches("heap|offheap|both")) usage("Invalid store " + store);
+
+        if (!store.equals("offheap")) run("heap", null, names, lookups);
+        if (!store.equals("heap")) run("offheap", new OffHeapRecordStore(names * 3), names, lookups);
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage:\n\tjava " + CacheBenchmark.class.getName() +
+                " [--store heap|offheap|both] [--names n] [--lookups n]");
+        System.exit(1);
+    }
+
+    /**
+     * Fills a cache using a store, looks it up, and reports the measurements.
+     *
+     * @param store The store of the cache, or null for the default heap store.
+     */
+    private static void run(String label, RecordStore store, int names, int lookups) {
+        fullCollection();
+        long heapBefore = heapUsed();
+        long directBefore = directUsed();
+
+        DNSCache cache = new DNSCache();
+        if (store != null) cache.setRecordStore(store);
+        long start = System.nanoTime();
+        for (int i = 0; i < names; i++) {
+            String name = name(i);
+            cache.addResult(new ResourceRecord(DNSCache.AQuestion(name), TTL, address(i, 4)));
+            cache.addResult(new ResourceRecord(new DNSQuestion(name, RecordType.AAAA, RecordClass.IN), TTL,
+                    address(i, 16)));
+        }
+        double fillSeconds = (System.nanoTime() - start) / 1e9;
+
+        long pauseMillis = fullCollection();
+        long heap = heapUsed() - heapBefore;
+        long direct = directUsed() - directBefore;
+
+        long[] gcBefore = collections();
+        Random random = new Random(1);
+        int hits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (!cache.getCachedResults(DNSCache.AQuestion(name(random.nextInt(names)))).isEmpty()) hits++;
+        }
+        double lookupSeconds = (System.nanoTime() - start) / 1e9;
+        long[] gcAfter = collections();
+
+        System.out.printf("%s store, %d names (%d questions)%n", label, names, cache.getRecordStore().size());
+        System.out.printf("  Fill:              %.2f s (%.0f records/s)%n", fillSeconds, 2 * names / fillSeconds);
+        System.out.printf("  Heap used:         %.1f MiB%n", heap / 1048576.0);
+        System.out.printf("  Direct used:       %.1f MiB%n", direct / 1048576.0);
+        System.out.printf("  Full GC pause:     %d ms%n", pauseMillis);
+        System.out.printf("  Lookups:           %d in %.2f s (%.0f/s, %d hits)%n", lookups, lookupSeconds,
+                lookups / lookupSeconds, hits);
+        System.out.printf("  GC during lookups: %d collections, %d ms%n", gcAfter[0] - gcBefore[0],
+                gcAfter[1] - gcBefore[1]);
+        cache.reset();
+    }
+
+    private static String name(int i) {
+        return "host" + i + ".example.com";
+    }
+
+    private static InetAddress address(int i, int length) {
+        byte[] bytes = new byte[length];
+        bytes[0] = 10;
+        for (int j = 0; j < 3; j++) bytes[length - 1 - j] = (byte) (i >>> (8 * j));
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException("Invalid address length " + length);
+        }
+    }
+
+    /**
+     * Runs a full collection.
+     *
+     * @return The time the collection took, in milliseconds, as reported by the collectors.
+     */
+    private static long fullCollection() {
+        long before = collections()[1];
+        System.gc();
+        return collections()[1] - before;
+    }
+
+    /**
+     * @return The number of collections run so far and their accumulated time in milliseconds, for all collectors.
+     */
+    private static long[] collections() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(gc.getCollectionCount(), 0);
+            totals[1] += Math.max(gc.getCollectionTime(), 0);
+        }
+        return totals;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long directUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+}
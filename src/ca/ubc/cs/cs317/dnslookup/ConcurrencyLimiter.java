@@ -0,0 +1,220 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of queries in flight, both in total and per nameserver, with limits that adapt to the latency and
+ * loss observed (additive increase, multiplicative decrease). Each limit grows by about one query per round trip
+ * while the queries sent under it come back within LATENCY_TOLERANCE times the lowest round-trip time seen, and is
+ * cut when latency rises above that (queues are building up somewhere) or a query is lost (socket buffers or an
+ * upstream rate limit were overrun). A limit is cut at most once per round trip: only queries sent after the last cut
+ * can cut it again, so a burst of losses caused by a single overrun does not collapse it.
+ * <p>
+ * The per-server limits protect each nameserver, while the total limit protects the local host; a loss cuts the
+ * limit of its server sharply and the total limit gently, so that one unresponsive server does not throttle queries
+ * to all the others.
+ */
+public class ConcurrencyLimiter {
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double LOSS_BACKOFF = 0.5;
+    private static final int BASELINE_DRIFT = 256;
+    private static final int MAX_SERVERS = 1024;
+
+    private final Window global;
+    private final int initialServerLimit;
+    private final int maxServerLimit;
+    private final Map<InetAddress, Window> servers = new LinkedHashMap<InetAddress, Window>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Window> eldest) {
+            return size() > MAX_SERVERS && eldest.getValue().inFlight == 0;
+        }
+    };
+    private long throttled;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param initialLimit       Initial number of queries allowed in flight in total.
+     * @param maxLimit           Maximum number of queries allowed in flight in total.
+     * @param initialServerLimit Initial number of queries allowed in flight to each nameserver.
+     * @param maxServerLimit     Maximum number of queries allowed in flight to each nameserver.
+     */
+    public ConcurrencyLimiter(int initialLimit, int maxLimit, int initialServerLimit, int maxServerLimit) {
+        if (initialLimit < 1 || maxLimit < initialLimit || initialServerLimit < 1 || maxServerLimit < initialServerLimit)
+            throw new IllegalArgumentException("Invalid concurrency limits");
+        this.global = new Window(initialLimit, maxLimit);
+        this.initialServerLimit = initialServerLimit;
+        this.maxServerLimit = maxServerLimit;
+    }
+
+    /**
+     * Obtains a token to send a query to a server, if both the total limit and the server's limit allow it.
+     *
+     * @param server The nameserver the query is sent to.
+     * @return A token, or null if the query must wait for another query to complete.
+     */
+    public synchronized Token tryAcquire(InetAddress server) {
+        Token token = grant(server);
+        if (token == null) throttled++;
+        return token;
+    }
+
+    /**
+     * Obtains a token for a query that was already refused one, without counting it as throttled again.
+     */
+    synchronized Token retry(InetAddress server) {
+        return grant(server);
+    }
+
+    private Token grant(InetAddress server) {
+        Window window = servers.get(server);
+        if (window == null) {
+            window = new Window(initialServerLimit, maxServerLimit);
+            servers.put(server, window);
+        }
+        if (!global.hasRoom() || !window.hasRoom()) return null;
+        global.inFlight++;
+        window.inFlight++;
+        return new Token(window);
+    }
+
+    /**
+     * Waits for a token to send a query to a server.
+     *
+     * @param server The nameserver the query is sent to.
+     * @return The token obtained.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized Token acquire(InetAddress server) throws InterruptedException {
+        Token token = tryAcquire(server);
+        while (token == null) {
+            wait();
+            token = grant(server);
+        }
+        return token;
+    }
+
+    /**
+     * @return The current limit of queries in flight in total.
+     */
+    public synchronized int getLimit() {
+        return global.getLimit();
+    }
+
+    /**
+     * @return The current limit of queries in flight to a nameserver.
+     */
+    public synchronized int getLimit(InetAddress server) {
+        Window window = servers.get(server);
+        return window == null ? initialServerLimit : window.getLimit();
+    }
+
+    public synchronized int getInFlight() {
+        return global.inFlight;
+    }
+
+    /**
+     * @return The number of queries that had to wait for another query to complete before being sent.
+     */
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * The right to have one query in flight. The outcome of each transmission of the query is reported with
+     * onResponse or onTimeout, and the token is closed once the query is complete.
+     */
+    public class Token implements AutoCloseable {
+        private final Window window;
+        private final long acquiredNanos = System.nanoTime();
+        private boolean closed;
+
+        private Token(Window window) {
+            this.window = window;
+        }
+
+        /**
+         * Reports that a response was received.
+         *
+         * @param rttNanos Time between the transmission and the response, in nanoseconds.
+         */
+        public void onResponse(long rttNanos) {
+            synchronized (ConcurrencyLimiter.this) {
+                if (closed) return;
+                window.sample(rttNanos, acquiredNanos, LATENCY_BACKOFF);
+                global.sample(rttNanos, acquiredNanos, LATENCY_BACKOFF);
+            }
+        }
+
+        /**
+         * Reports that a transmission was not answered in time, or could not be sent.
+         */
+        public void onTimeout() {
+            synchronized (ConcurrencyLimiter.this) {
+                if (closed) return;
+                window.decrease(acquiredNanos, LOSS_BACKOFF);
+                global.decrease(acquiredNanos, LATENCY_BACKOFF);
+            }
+        }
+
+        /**
+         * Gives the token back, allowing another query to be sent.
+         */
+        @Override
+        public void close() {
+            synchronized (ConcurrencyLimiter.this) {
+                if (closed) return;
+                closed = true;
+                window.inFlight--;
+                global.inFlight--;
+                ConcurrencyLimiter.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * An adaptive limit and the number of queries in flight under it.
+     */
+    private static class Window {
+        final int maxLimit;
+        double limit;
+        int inFlight;
+        long minRttNanos = Long.MAX_VALUE;
+        long lastDecreaseNanos;
+
+        Window(int initialLimit, int maxLimit) {
+            this.limit = initialLimit;
+            this.maxLimit = maxLimit;
+            this.lastDecreaseNanos = System.nanoTime();
+        }
+
+        boolean hasRoom() {
+            return inFlight < getLimit();
+        }
+
+        int getLimit() {
+            return (int) limit;
+        }
+
+        void sample(long rttNanos, long sentNanos, double backoff) {
+            // the baseline follows the lowest round-trip time, drifting up slowly in case the path changed
+            minRttNanos = rttNanos < minRttNanos ? rttNanos : minRttNanos + (rttNanos - minRttNanos) / BASELINE_DRIFT;
+            if (rttNanos > minRttNanos * LATENCY_TOLERANCE) {
+                decrease(sentNanos, backoff);
+            } else if (inFlight * 2 >= limit) {
+                // only grow a limit that is actually being used
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        void decrease(long sentNanos, double backoff) {
+            if (sentNanos - lastDecreaseNanos < 0) return;
+            limit = Math.max(1, limit * backoff);
+            lastDecreaseNanos = System.nanoTime();
+        }
+    }
+}
@@ -6,9 +6,12 @@ import java.util.*;
 import java.util.function.BiConsumer;
 
 /**
- * This class handles a cache of DNS results. It is based on a map that links questions to a set of resource
- * records (results). Cached results are only maintained for the duration of the TTL (time-to-live) returned by the
- * server.  Expired entries are removed each time the cache is accessed.
+ * This class handles a cache of DNS results. It is based on a store that links questions to a set of resource
+ * records (results), kept on the heap by default or off the heap with an OffHeapRecordStore. Cached results are only
+ * maintained for the duration of the TTL (time-to-live) returned by the server. Expired records are never returned,
+ * and are removed from the store, the final answers and the delegation index at most every PRUNE_INTERVAL
+ * milliseconds, so a large cache is not scanned on every access. Operations on the cache are synchronized, so it
+ * can be shared by lookups running in different threads.
  */
 public class DNSCache {
 
@@ -28,17 +31,27 @@ public class DNSCache {
             { "l.root-servers.net", "199.7.83.42" },
             { "m.root-servers.net", "202.12.27.33" }
     };
-    private static final Set<ResourceRecord> rootNameServersSet = new HashSet<>();
+    private static final long PRUNE_INTERVAL = 1000;
     private static final DNSCache instance = new DNSCache();
-    private final Map<DNSQuestion, Set<ResourceRecord>> cachedResults = new HashMap<>();
+    private RecordStore records = new HeapRecordStore();
+    private long lastPruneMillis;
+    private final Map<DNSQuestion, FinalAnswer> finalAnswers = new HashMap<>();
+    private final DelegationIndex delegations = new DelegationIndex();
+    private SharedMemoryCache sharedStore;
+    private RootZone rootZone;
+    private volatile LocalData localData;
 
-    private DNSCache() {
+    /**
+     * Creates a cache separate from the singleton instance, initialized with the root nameservers. Only needed when
+     * several resolver nodes run in the same process (e.g., cache peers started on localhost).
+     */
+    DNSCache() {
         reset();
     }
 
     /**
-     * Singleton retrieval method. Only one instance of the DNS cache can be created. This method returns the single DNS
-     * cache instance.
+     * Singleton retrieval method. Returns the DNS cache shared by the lookups of this process; separate instances
+     * are only created for resolver nodes running in the same process (see DNSCache()).
      *
      * @return Instance of a DNS cache.
      */
@@ -53,24 +66,35 @@ public class DNSCache {
         reset(rootServers);
     }
 
-    public void reset(String[] ... nameservers) {
-        cachedResults.clear();
-        this.cachedResults.put(rootQuestion, rootNameServersSet);
-        rootNameServersSet.clear();
+    public synchronized void reset(String[] ... nameservers) {
+        records.clear();
+        finalAnswers.clear();
+        delegations.clear();
         for (String[] nameserver : nameservers) {
             String name = nameserver[0];
             String ipAddress = nameserver[1];
             InetAddress address = stringToInetAddress(ipAddress);
-            ResourceRecord rr = new ResourceRecord(rootQuestion, Integer.MAX_VALUE, name);
-            rootNameServersSet.add(rr);
-            DNSQuestion q = AQuestion(name);
-            rr = new ResourceRecord(AQuestion(name), Integer.MAX_VALUE, address);
-            Set<ResourceRecord> value = new HashSet<>();
-            value.add(rr);
-            this.cachedResults.put(q, value);
+            storeResult(new ResourceRecord(rootQuestion, Integer.MAX_VALUE, name));
+            storeResult(new ResourceRecord(AQuestion(name), Integer.MAX_VALUE, address));
         }
     }
 
+    /**
+     * Moves the cached records to another store, e.g., to keep them off the heap.
+     *
+     * @param store The new store, which should be empty.
+     */
+    public synchronized void setRecordStore(RecordStore store) {
+        RecordStore old = records;
+        records = store;
+        old.forEach((question, results) -> results.forEach(this::storeResult));
+        old.clear();
+    }
+
+    public synchronized RecordStore getRecordStore() {
+        return records;
+    }
+
     /**
      * Returns a set of resource records already cached for a particular query. If no results are cached for the
      * specified query, returns an empty set. Expired results are removed from the cache before being returned. This
@@ -80,20 +104,22 @@ public class DNSCache {
      * @param question     DNS query (host name/type/class) for the results to be obtained.
      * @return A potentially empty set of resources associated to the query.
      */
-    public List<ResourceRecord> getCachedResults(DNSQuestion question) {
-        List<ResourceRecord> ans = new ArrayList<>();
+    public synchronized List<ResourceRecord> getCachedResults(DNSQuestion question) {
+        List<ResourceRecord> ans = getLocalAnswer(question);
+        if (ans != null) return ans;
+        ans = new ArrayList<>();
         pruneExpired();
-        Set<ResourceRecord> results = cachedResults.get(question);
+        Set<ResourceRecord> results = getResultSet(question);
         if (results != null) {
             ans.addAll(results);
         }
 
         // Include in the results any records we have for the canonical name (if any)
-        results = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
-        if (results != null) {
+        results = getResultSet(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
+        if (results != null && question.getRecordType() != RecordType.CNAME) {
             for (ResourceRecord r : results) {
-                DNSQuestion aquestion = new DNSQuestion(r.getTextResult(), RecordType.A, r.getRecordClass());
-                Set<ResourceRecord> arecords = cachedResults.get(aquestion);
+                DNSQuestion aquestion = new DNSQuestion(r.getTextResult(), question.getRecordType(), r.getRecordClass());
+                Set<ResourceRecord> arecords = getResultSet(aquestion);
                 if (!ans.contains(r)) ans.add(r);
                 if (arecords != null) {
                     for (ResourceRecord rr : arecords) {
@@ -107,23 +133,137 @@ public class DNSCache {
         return ans;
     }
 
+    /**
+     * Uses a cache file shared with other processes on the same host as a second level for this cache. Questions
+     * missing from this cache are looked up in the shared file, and every record added to this cache is also written
+     * to it along with the rest of its record set.
+     *
+     * @param sharedStore The shared cache file, or null to stop using one.
+     */
+    public synchronized void setSharedStore(SharedMemoryCache sharedStore) {
+        this.sharedStore = sharedStore;
+    }
+
+    /**
+     * Uses local data answered before anything cached. The data can be replaced at any time by newer data, which
+     * lookups see at once, and never partly.
+     *
+     * @param localData The local data, or null to stop using any.
+     */
+    public void setLocalData(LocalData localData) {
+        this.localData = localData;
+    }
+
+    public LocalData getLocalData() {
+        return localData;
+    }
+
+    /**
+     * Answers a question from the local data.
+     *
+     * @param question DNS query (host name/type/class).
+     * @return The records of the local data for the question, possibly none, or null if the name is not local.
+     */
+    public List<ResourceRecord> getLocalAnswer(DNSQuestion question) {
+        LocalData data = localData;
+        return data == null ? null : data.lookup(question);
+    }
+
+    /**
+     * @return true if the question is for a name that does not exist in a zone of the local data.
+     */
+    public boolean isLocalNameError(DNSQuestion question) {
+        LocalData data = localData;
+        return data != null && data.isNameError(question);
+    }
+
+    /**
+     * Uses a local copy of the root zone (RFC 8806): the delegations of top-level domains and the addresses of their
+     * nameservers are taken from it instead of being obtained from the root servers. The copy can be replaced at any
+     * time by a newer one.
+     *
+     * @param rootZone The root zone, or null to stop using one.
+     */
+    public synchronized void setRootZone(RootZone rootZone) {
+        this.rootZone = rootZone;
+    }
+
+    public synchronized RootZone getRootZone() {
+        return rootZone;
+    }
+
+    /**
+     * Returns the set of records cached for exactly the given question, loading it from the shared store (if any)
+     * when it is not in this cache. Glue records of the local root zone are returned for questions not cached.
+     *
+     * @param question DNS query (host name/type/class).
+     * @return The set of cached records, or null if there are none.
+     */
+    private Set<ResourceRecord> getResultSet(DNSQuestion question) {
+        Set<ResourceRecord> results = records.get(question);
+        if (results == null && sharedStore != null) {
+            List<ResourceRecord> shared = sharedStore.get(question);
+            if (shared != null) {
+                shared.forEach(this::storeResult);
+                results = records.get(question);
+            }
+        }
+        if (results == null && rootZone != null) results = rootZone.getGlue(question);
+        return results;
+    }
+
+    /**
+     * Returns the complete answer previously stored for a question with addFinalAnswer, including every CNAME
+     * record of the chain followed to obtain it. Answers are only kept until the first of their records expires,
+     * after which null is returned and the chain has to be resolved again.
+     *
+     * @param question DNS query (host name/type/class) originally asked.
+     * @return The records of the final answer, or null if no valid final answer is cached.
+     */
+    public synchronized Collection<ResourceRecord> getFinalAnswer(DNSQuestion question) {
+        // answers obtained before the local data was loaded must not hide it
+        if (getLocalAnswer(question) != null) return null;
+        FinalAnswer answer = finalAnswers.get(question);
+        if (answer == null) return null;
+        if (answer.isExpired()) {
+            finalAnswers.remove(question);
+            return null;
+        }
+        return answer.records;
+    }
+
+    /**
+     * Stores the complete answer to a question, as obtained by following its CNAME chain. The answer expires as
+     * soon as any of its records (CNAME links or final records) expires. Empty answers are not stored.
+     *
+     * @param question DNS query (host name/type/class) originally asked.
+     * @param records  All the records of the answer, including the CNAME records of the chain.
+     */
+    public synchronized void addFinalAnswer(DNSQuestion question, Collection<ResourceRecord> records) {
+        if (records.isEmpty()) return;
+        FinalAnswer answer = new FinalAnswer(records);
+        if (!answer.isExpired())
+            finalAnswers.put(question, answer);
+    }
+
     /**
      * Returns a set of resource records for the best nameservers to query for a given question.
      * Will never return an empty set since the root nameservers are always candidates if no better
-     * nameserver can be found.
+     * nameserver can be found. The closest enclosing zone cut is found with a single descent of the delegation
+     * index, so neither the suffixes of the name nor a full pruning of the cache are needed. When no zone cut below
+     * the root is cached, the delegation of the TLD is taken from the local root zone, if any.
      *
      * @param question      DNS query (host name/type/class) for which a nameserver is desired.
      * @return              A non-empty set of NS resources that are the best ones to answer this query.
      */
-    public List<ResourceRecord> getBestNameservers(DNSQuestion question) {
+    public synchronized List<ResourceRecord> getBestNameservers(DNSQuestion question) {
         List<ResourceRecord> returningList = new ArrayList<>();
-        pruneExpired();
-        for (String suffix : new Suffixes(question.getHostName())) {
-            DNSQuestion nsquestion = new DNSQuestion(suffix, RecordType.NS, RecordClass.IN);
-            List<ResourceRecord> nslist = getCachedResults(nsquestion);
-            if (!nslist.isEmpty()) {
-                returningList.addAll(nslist);
-                break;
+        DelegationIndex.Node closest = delegations.findClosest(question.getHostName());
+        if (closest.getZone().isEmpty() && rootZone != null)
+            returningList.addAll(rootZone.getDelegation(question.getHostName()));
+        if (returningList.isEmpty()) {
+            for (ResourceRecord rr : closest.getNameservers()) {
+                if (!rr.isExpired()) returningList.add(rr);
             }
         }
         Collections.shuffle(returningList);
@@ -139,7 +279,7 @@ public class DNSCache {
      * @return A collection of A records providing the IP addresses of those servers for whom
      * the IP address is known.
      */
-    public List<ResourceRecord> filterByKnownIPAddress(Collection<ResourceRecord> servers) {
+    public synchronized List<ResourceRecord> filterByKnownIPAddress(Collection<ResourceRecord> servers) {
         List<ResourceRecord> returningList = new ArrayList<>();
         pruneExpired();
         for (ResourceRecord server : servers) {
@@ -158,18 +298,39 @@ public class DNSCache {
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result of a DNS query.
      */
-    public void addResult(ResourceRecord record) {
+    public synchronized void addResult(ResourceRecord record) {
+        Set<ResourceRecord> results = storeResult(record);
+        if (results != null && sharedStore != null)
+            sharedStore.put(record.getQuestion(), results);
+    }
+
+    /**
+     * Adds a resource record to this cache only, without writing it to the shared store.
+     *
+     * @param record Resource record to be added.
+     * @return The set of cached records for the record's question, or null if the record was already expired.
+     */
+    private Set<ResourceRecord> storeResult(ResourceRecord record) {
 
-        if (record.isExpired()) return;
+        if (record.isExpired()) return null;
 
-        Set<ResourceRecord> results = cachedResults.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+        Set<ResourceRecord> results = records.add(record);
+        // Index the stored instance, which may be an older record whose expiration was extended
+        for (ResourceRecord rr : results) {
+            if (rr.equals(record)) record = rr;
+        }
+        indexDelegation(record);
+        return results;
+    }
 
-        // Find a record for the same question containing the same result
-        ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
-        if (oldRecord == null)
-            results.add(record);
-        else
-            oldRecord.update(record);
+    /**
+     * Keeps the delegation index up to date with a record that was just cached: NS records create or extend a zone
+     * cut.
+     *
+     * @param record The cached instance of the record.
+     */
+    private void indexDelegation(ResourceRecord record) {
+        if (record.getRecordType() == RecordType.NS) delegations.addNameserver(record);
     }
 
     /**
@@ -178,8 +339,9 @@ public class DNSCache {
      *
      * @param consumer Action to be performed for each query and set of records.
      */
-    public void forEachQuestion(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
-        cachedResults.forEach(consumer);
+    public synchronized void forEachQuestion(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
+        records.prune();
+        records.forEach(consumer);
     }
 
     /**
@@ -195,65 +357,37 @@ public class DNSCache {
 
     /**
      * Remove all expired resource records from the cache.  If this results in the set of resource records
-     * associated with a question becoming empty, also remove the question from the cache.
+     * associated with a question becoming empty, also remove the question from the cache. This is only done once
+     * every PRUNE_INTERVAL, since expired records, final answers and nameservers are never returned anyway.
      */
     private void pruneExpired() {
-        Set<DNSQuestion> toRemove = new HashSet<>();
-        cachedResults.forEach((question, records) -> {
-            records.removeIf(ResourceRecord::isExpired);
-            if (records.isEmpty())
-                toRemove.add(question);
-        });
-        for (DNSQuestion question : toRemove) {
-            cachedResults.remove(question);
-        }
+        long now = System.currentTimeMillis();
+        if (now - lastPruneMillis < PRUNE_INTERVAL) return;
+        lastPruneMillis = now;
+        records.prune();
+        finalAnswers.values().removeIf(FinalAnswer::isExpired);
+        delegations.prune();
     }
 
     /**
-     * A utility class to return all the suffixes of a given DNS name.
-     * If given www.cs.ubc.ca, the provided iterator will return:
-     *   "cs.ubc.ca"
-     *   "ubc.ca"
-     *   "ca"
-     *   ""  (the name of the root)
+     * A flattened answer to a question: the records of a resolved CNAME chain, valid until the earliest expiration
+     * time among them.
      */
-    private static class Suffixes implements Iterable<String> {
-        private final String string;
+    private static class FinalAnswer {
+        private final Collection<ResourceRecord> records;
+        private final long expirationMillis;
 
-        public Suffixes(String string) {
-            this.string = string;
-        }
-        private static class SuffixesIterator implements Iterator<String> {
-            private String string;
-            private boolean first = true;
-
-            public SuffixesIterator(String string) {
-                this.string = string;
-            }
-
-            @Override
-            public boolean hasNext() {
-                return !string.isEmpty();
-            }
-
-            @Override
-            public String next() {
-                if (first) {
-                    first = false;
-                    return string;
-                }
-                int firstdot = string.indexOf('.');
-                if (firstdot >= 0) {
-                    string = string.substring(firstdot + 1);
-                } else {
-                    string = "";
-                }
-                return string;
+        private FinalAnswer(Collection<ResourceRecord> records) {
+            this.records = Collections.unmodifiableList(new ArrayList<>(records));
+            long earliest = Long.MAX_VALUE;
+            for (ResourceRecord rr : records) {
+                earliest = Math.min(earliest, rr.getExpirationMillis());
             }
+            this.expirationMillis = earliest;
         }
-        @Override
-        public Iterator<String> iterator() {
-            return new SuffixesIterator(string);
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expirationMillis;
         }
     }
 
@@ -0,0 +1,264 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Shares cached results between resolver nodes. Each question is owned by one of the nodes, chosen by consistent
+ * hashing over the question, so every node agrees on the owner without any coordination. Records learned by a
+ * node are pushed to the owner of their question, and a node that misses in its own cache can ask the owner before
+ * going to the authoritative servers.
+ * <p>
+ * Peers talk over UDP with a small binary protocol. Records are exchanged with their absolute expiration time
+ * (so the nodes' clocks are assumed to be reasonably synchronized), and records received from a peer are added to
+ * the local cache without being forwarded again. Datagrams are only accepted from the configured peers, answers only
+ * from the peer that was asked, and the records received are kept for at most MAX_TTL seconds. Every message fits
+ * in MAX_PEER_MESSAGE_LENGTH bytes: shared records are split over several messages, and a record set too large to
+ * be answered in one message is not answered at all, since the asker would take part of it for the whole set.
+ */
+public class DNSCachePeer {
+
+    private static final byte OP_SHARE = 1;
+    private static final byte OP_QUERY = 2;
+    private static final byte OP_ANSWER = 3;
+    private static final int VIRTUAL_NODES = 64;
+    private static final int MAX_PEER_MESSAGE_LENGTH = 8192;
+    private static final int MAX_SHARED_RECORDS = 16;
+    private static final int PEER_TIMEOUT = 200;
+    private static final long MAX_TTL = 604800;
+
+    private final DNSCache cache;
+    private final DatagramSocket socket;
+    private final InetSocketAddress self;
+    private final TreeMap<Integer, InetSocketAddress> ring = new TreeMap<>();
+    private final Set<InetSocketAddress> peers = new HashSet<>();
+    private final Map<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    private final Thread receiver;
+
+    /**
+     * Creates a peer node sharing the given cache, and starts listening for requests from other nodes.
+     *
+     * @param cache       Cache used to answer other nodes and to store the records they share.
+     * @param bindAddress Address and port this node listens on. The port may be 0 to pick any free port.
+     * @throws SocketException If the socket cannot be bound.
+     */
+    public DNSCachePeer(DNSCache cache, InetSocketAddress bindAddress) throws SocketException {
+        this.cache = cache;
+        this.socket = new DatagramSocket(bindAddress);
+        this.self = new InetSocketAddress(bindAddress.getAddress(), socket.getLocalPort());
+        addToRing(self);
+        receiver = new Thread(this::receiveLoop, "dns-cache-peer");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return The address other nodes must use to reach this node.
+     */
+    public InetSocketAddress getAddress() {
+        return self;
+    }
+
+    /**
+     * Adds another node to the set of peers. Every node must be given the same set of peers for them to agree on
+     * the owner of each question.
+     *
+     * @param peer Address of the other node.
+     */
+    public synchronized void addPeer(InetSocketAddress peer) {
+        peers.add(peer);
+        addToRing(peer);
+    }
+
+    private synchronized boolean isPeer(SocketAddress address) {
+        return peers.contains(address);
+    }
+
+    /**
+     * Returns the node that owns a question.
+     *
+     * @param question The question to be looked up.
+     * @return The address of the owner node, which may be this node.
+     */
+    public synchronized InetSocketAddress ownerOf(DNSQuestion question) {
+        int key = hash(question.getHostName().toLowerCase() + "/" + question.getRecordType().getCode() + "/" +
+                question.getRecordClass().getCode());
+        Map.Entry<Integer, InetSocketAddress> entry = ring.ceilingEntry(key);
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Sends newly cached records to the nodes that own them. Records owned by this node are not sent anywhere.
+     *
+     * @param records Records just added to the local cache.
+     */
+    public void publish(Collection<ResourceRecord> records) {
+        Map<InetSocketAddress, List<ResourceRecord>> byOwner = new HashMap<>();
+        for (ResourceRecord rr : records) {
+            InetSocketAddress owner = ownerOf(rr.getQuestion());
+            if (!owner.equals(self))
+                byOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(rr);
+        }
+        byOwner.forEach((owner, rrs) -> {
+            try {
+                for (int i = 0; i < rrs.size(); i += MAX_SHARED_RECORDS)
+                    share(owner, rrs.subList(i, Math.min(rrs.size(), i + MAX_SHARED_RECORDS)));
+            } catch (IOException e) {
+                // Sharing is best effort
+            }
+        });
+    }
+
+    /**
+     * Asks the owner of a question for the records it has cached for it. Records obtained from the owner are added
+     * to the local cache. If this node owns the question, or the owner does not answer in time, no record is
+     * returned.
+     *
+     * @param question The question to be looked up.
+     * @return The records cached by the owner, possibly empty.
+     */
+    public List<ResourceRecord> query(DNSQuestion question) {
+        InetSocketAddress owner = ownerOf(question);
+        if (owner.equals(self)) return Collections.emptyList();
+
+        PendingQuery query = new PendingQuery(owner);
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (pending.putIfAbsent(id, query) != null);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(OP_QUERY);
+            out.writeShort(id);
+            RecordCodec.writeQuestion(out, question);
+            send(owner, bytes.toByteArray());
+            List<ResourceRecord> records = query.future.get(PEER_TIMEOUT, TimeUnit.MILLISECONDS);
+            records.forEach(cache::addResult);
+            return records;
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            return Collections.emptyList();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    /**
+     * Stops listening for other nodes and releases the socket.
+     */
+    public void close() {
+        socket.close();
+        receiver.interrupt();
+    }
+
+    private void receiveLoop() {
+        byte[] buf = new byte[MAX_PEER_MESSAGE_LENGTH];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(packet);
+                handle(packet);
+            } catch (IOException e) {
+                // Socket closed or malformed message; keep serving until closed
+            }
+        }
+    }
+
+    private void handle(DatagramPacket packet) throws IOException {
+        if (!isPeer(packet.getSocketAddress())) return;
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+        byte op = in.readByte();
+        int id = in.readUnsignedShort();
+        switch (op) {
+            case OP_SHARE:
+                readRecords(in).forEach(cache::addResult);
+                break;
+            case OP_QUERY:
+                DNSQuestion question = RecordCodec.readQuestion(in);
+                byte[] answer = recordsMessage(OP_ANSWER, id, cache.getCachedResults(question));
+                if (answer.length > MAX_PEER_MESSAGE_LENGTH)
+                    answer = recordsMessage(OP_ANSWER, id, Collections.emptyList());
+                send((InetSocketAddress) packet.getSocketAddress(), answer);
+                break;
+            case OP_ANSWER:
+                PendingQuery query = pending.get(id);
+                if (query != null && query.owner.equals(packet.getSocketAddress()))
+                    query.future.complete(readRecords(in));
+                break;
+        }
+    }
+
+    /**
+     * Decodes records received from a peer, keeping them no longer than MAX_TTL.
+     */
+    private static List<ResourceRecord> readRecords(DataInput in) throws IOException {
+        return RecordCodec.readRecords(in, System.currentTimeMillis() + MAX_TTL * 1000);
+    }
+
+    private void send(InetSocketAddress destination, byte[] data) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, destination));
+    }
+
+    /**
+     * Shares records with their owner, in as many messages as needed for each to fit in MAX_PEER_MESSAGE_LENGTH. A
+     * single record that does not fit is not shared.
+     */
+    private void share(InetSocketAddress owner, List<ResourceRecord> records) throws IOException {
+        byte[] message = recordsMessage(OP_SHARE, 0, records);
+        if (message.length <= MAX_PEER_MESSAGE_LENGTH) {
+            send(owner, message);
+        } else if (records.size() > 1) {
+            int half = records.size() / 2;
+            share(owner, records.subList(0, half));
+            share(owner, records.subList(half, records.size()));
+        }
+    }
+
+    private byte[] recordsMessage(byte op, int id, Collection<ResourceRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeShort(id);
+        RecordCodec.writeRecords(out, records);
+        return bytes.toByteArray();
+    }
+
+    private void addToRing(InetSocketAddress node) {
+        String id = node.getAddress().getHostAddress() + ":" + node.getPort();
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(id + "#" + i), node);
+        }
+    }
+
+    /**
+     * A query sent to the owner of a question, waiting for its answer.
+     */
+    private static class PendingQuery {
+        final InetSocketAddress owner;
+        final CompletableFuture<List<ResourceRecord>> future = new CompletableFuture<>();
+
+        PendingQuery(InetSocketAddress owner) {
+            this.owner = owner;
+        }
+    }
+
+    private static int hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) | ((digest[2] & 0xff) << 8) |
+                    (digest[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not available");
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator in the style of dnsperf. Queries are taken from a file (one "name [type]" per line, replayed in
+ * a loop) or drawn from a Zipf distribution over synthetic names, and issued at a fixed rate (open loop, i.e.,
+ * without waiting for previous queries to complete) either to the in-process resolver, driven by a
+ * ResolverEventLoop, or as recursive queries to a resolver listening on a UDP socket. At the end, the achieved rate,
+ * latency percentiles, error and timeout rates and, for the in-process resolver, the cache hit ratio are reported.
+ * <p>
+ * Usage: java ca.ubc.cs.cs317.dnslookup.DNSLoadGenerator [options], where options are:
+ * <pre>
+ *   --server host[:port]  send queries to a resolver socket instead of the in-process resolver
+ *   --zones file          resolve from a SimulatedDNS hierarchy loaded from this file instead of the Internet
+ *   --queries file        query file; otherwise names are drawn from a Zipf distribution
+ *   --names n             number of synthetic names (default 10000)
+ *   --zipf s              Zipf exponent (default 1.0)
+ *   --suffix domain       domain of the synthetic names, named host{rank}.{domain} (default example.com)
+ *   --types mix           record types of synthetic queries, with weights (default A:80,AAAA:15,MX:5)
+ *   --rate qps            target query rate (default 100)
+ *   --duration seconds    duration of the run (default 10)
+ *   --timeout ms          time after which a query is counted as timed out (default 5000)
+ *   --adaptive n          limit the in-process resolver's queries in flight adaptively, up to n
+ * </pre>
+ */
+public class DNSLoadGenerator {
+
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+
+    private final QuerySource source;
+    private final double rate;
+    private final long durationNanos;
+    private final long timeoutMillis;
+    private final Stats stats = new Stats();
+    private int serverPort = DNSLookupService.DEFAULT_DNS_PORT;
+    private ConcurrencyLimiter limiter;
+
+    /**
+     * Creates a load generator.
+     *
+     * @param source        The source of the questions to be sent.
+     * @param rate          Target number of queries per second.
+     * @param duration      Duration of the run, in seconds.
+     * @param timeoutMillis Time after which an unanswered query is counted as timed out.
+     */
+    public DNSLoadGenerator(QuerySource source, double rate, double duration, long timeoutMillis) {
+        this.source = source;
+        this.rate = rate;
+        this.durationNanos = (long) (duration * 1e9);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets the port to which the in-process resolver sends its queries.
+     *
+     * @param serverPort The destination port of queries.
+     */
+    public void setServerPort(int serverPort) {
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Makes the in-process resolver limit its queries in flight adaptively.
+     *
+     * @param limiter The limiter used by the resolver, or null for no limit.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) usage("Invalid argument " + args[i]);
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        DNSLoadGenerator generator;
+        try {
+            QuerySource source = options.containsKey("queries")
+                    ? FileQuerySource.load(new File(options.get("queries")))
+                    : new ZipfQuerySource(Integer.parseInt(options.getOrDefault("names", "10000")),
+                    Double.parseDouble(options.getOrDefault("zipf", "1.0")),
+                    options.getOrDefault("suffix", "example.com"),
+                    parseTypes(options.getOrDefault("types", "A:80,AAAA:15,MX:5")));
+            generator = new DNSLoadGenerator(source,
+                    Double.parseDouble(options.getOrDefault("rate", "100")),
+                    Double.parseDouble(options.getOrDefault("duration", "10")),
+                    Long.parseLong(options.getOrDefault("timeout", "5000")));
+            if (options.containsKey("adaptive")) {
+                int max = Integer.parseInt(options.get("adaptive"));
+                generator.setConcurrencyLimiter(new ConcurrencyLimiter(Math.min(max, 16), max,
+                        Math.min(max, 4), max));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            usage(e.getMessage());
+            return;
+        }
+
+        SimulatedDNS simulation = null;
+        try {
+            if (options.containsKey("zones")) {
+                try (Reader in = new InputStreamReader(new FileInputStream(options.get("zones")),
+                        StandardCharsets.UTF_8)) {
+                    simulation = SimulatedDNS.load(in, 0, 0);
+                }
+                simulation.start();
+                DNSCache.getInstance().reset(simulation.getRootHints());
+                generator.setServerPort(simulation.getPort());
+            }
+            Stats stats;
+            if (options.containsKey("server")) {
+                String[] server = options.get("server").split(":");
+                int port = server.length > 1 ? Integer.parseInt(server[1]) : DNSLookupService.DEFAULT_DNS_PORT;
+                stats = generator.runAgainstSocket(new InetSocketAddress(InetAddress.getByName(server[0]), port));
+            } else {
+                stats = generator.runInProcess();
+            }
+            stats.report(System.out);
+            if (generator.limiter != null)
+                System.out.printf("Concurrency limit: %d (%d throttled)%n", generator.limiter.getLimit(),
+                        generator.limiter.getThrottled());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Load generation failed: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            if (simulation != null) simulation.close();
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage:\n\tjava " + DNSLoadGenerator.class.getName() + " [--server host[:port] | --zones file] " +
+                "[--queries file | --names n --zipf s --suffix domain --types A:80,AAAA:15,MX:5] " +
+                "[--rate qps] [--duration seconds] [--timeout ms] [--adaptive maxInFlight]");
+        System.exit(1);
+    }
+
+    /**
+     * Runs the load against the in-process resolver, following CNAME records like the CUI does. A query is counted
+     * as a cache hit if the cache could answer it when it was issued.
+     *
+     * @return The statistics of the run.
+     * @throws IOException If the resolver's sockets cannot be opened.
+     */
+    public Stats runInProcess() throws IOException {
+        DNSCache cache = DNSCache.getInstance();
+        DNSLookupService service = new DNSLookupService(new DNSLookupCUI());
+        service.setServerPort(serverPort);
+        service.setConcurrencyLimiter(limiter);
+        ScheduledExecutorService timer = newTimer();
+        try (ResolverEventLoop loop = new ResolverEventLoop(service)) {
+            pace(question -> {
+                if (cache.getFinalAnswer(question) != null || !cache.getCachedResults(question).isEmpty())
+                    stats.hit();
+                long start = System.nanoTime();
+                AtomicBoolean done = new AtomicBoolean();
+                ScheduledFuture<?> timeout = timer.schedule(() -> {
+                    if (done.compareAndSet(false, true)) stats.timeout();
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+                loop.resolve(question, MAX_INDIRECTION_LEVEL).whenComplete((results, e) -> {
+                    if (!done.compareAndSet(false, true)) return;
+                    timeout.cancel(false);
+                    if (e == null) stats.answered(System.nanoTime() - start);
+                    else stats.error();
+                });
+            });
+            awaitCompletion();
+        } finally {
+            timer.shutdownNow();
+            service.close();
+        }
+        return stats;
+    }
+
+    /**
+     * Runs the load against a resolver socket, sending recursive queries. Transaction IDs are assigned in sequence;
+     * with 65536 IDs, the rate multiplied by the timeout must stay below that number. A query is counted as timed out
+     * once the timeout has elapsed, and a response arriving after that is dropped.
+     *
+     * @param server Address and port of the resolver.
+     * @return The statistics of the run.
+     * @throws IOException If the socket cannot be opened.
+     */
+    public Stats runAgainstSocket(InetSocketAddress server) throws IOException {
+        AtomicLongArray sendTimes = new AtomicLongArray(65536);
+        ScheduledExecutorService timer = newTimer();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(server);
+            socket.setSoTimeout(100);
+            Thread receiver = new Thread(() -> receive(socket, sendTimes), "dns-load-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            int[] nextId = {0};
+            DNSMessage message = new DNSMessage((short) 0);
+            DatagramPacket packet = new DatagramPacket(message.buffer.array(), 0);
+            pace(question -> {
+                int id = nextId[0]++ & DNSMessage.ShortMask;
+                if (sendTimes.getAndSet(id, 0) != 0) stats.timeout();
+                message.reset((short) id);
+                message.setRD(true);
+                message.addQuestion(question);
+                packet.setLength(message.buffer.position());
+                long sent = System.nanoTime();
+                sendTimes.set(id, sent);
+                try {
+                    socket.send(packet);
+                } catch (IOException e) {
+                    sendTimes.set(id, 0);
+                    stats.error();
+                    return;
+                }
+                timer.schedule(() -> {
+                    if (sendTimes.compareAndSet(id, sent, 0)) stats.timeout();
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            });
+
+            awaitCompletion();
+            receiver.interrupt();
+            for (int id = 0; id < sendTimes.length(); id++) {
+                if (sendTimes.getAndSet(id, 0) != 0) stats.timeout();
+            }
+        } finally {
+            timer.shutdownNow();
+        }
+        return stats;
+    }
+
+    private void receive(DatagramSocket socket, AtomicLongArray sendTimes) {
+        byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        DNSMessage response = new DNSMessage(ByteBuffer.wrap(buffer));
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                return;
+            }
+            if (packet.getLength() < DNSMessage.DataOffset) continue;
+            response.resetReceived(packet.getLength());
+            if (!response.getQR()) continue;
+            long sent = sendTimes.getAndSet(response.getID(), 0);
+            // a response after the timeout was already counted as timed out, or belongs to an earlier use of the ID
+            if (sent == 0) continue;
+            long elapsed = System.nanoTime() - sent;
+            if (elapsed > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) stats.timeout();
+            else if (response.getRcode() == 0) stats.answered(elapsed);
+            else stats.error();
+        }
+    }
+
+    /**
+     * Issues the questions of the source at the target rate until the duration of the run has elapsed. Sending
+     * times are fixed in advance, so a slow send does not lower the rate of the following ones.
+     */
+    private void pace(QuerySender sender) {
+        long start = System.nanoTime();
+        stats.start(start);
+        double interval = 1e9 / rate;
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * interval);
+            if (due - start >= durationNanos) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            sender.send(source.next());
+            stats.sent();
+        }
+        stats.stop(System.nanoTime());
+    }
+
+    /**
+     * Waits until every query sent has been answered, failed or timed out, or for one timeout period at most.
+     */
+    private static ScheduledExecutorService newTimer() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dns-load-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void awaitCompletion() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (stats.getCompleted() < stats.getSent() && System.nanoTime() < deadline)
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    private static Map<RecordType, Integer> parseTypes(String mix) {
+        Map<RecordType, Integer> types = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            types.put(RecordType.valueOf(parts[0].trim().toUpperCase()),
+                    parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+        }
+        return types;
+    }
+
+    private interface QuerySender {
+        void send(DNSQuestion question);
+    }
+
+    /**
+     * A source of questions to be sent.
+     */
+    public interface QuerySource {
+        DNSQuestion next();
+    }
+
+    /**
+     * Replays the questions of a query file in a loop.
+     */
+    public static class FileQuerySource implements QuerySource {
+        private final List<DNSQuestion> questions;
+        private int next;
+
+        public FileQuerySource(List<DNSQuestion> questions) {
+            if (questions.isEmpty()) throw new IllegalArgumentException("No queries to replay");
+            this.questions = questions;
+        }
+
+        /**
+         * Reads a query file, with one "name [type]" per line (the type defaults to A). Blank lines and comments
+         * starting with # are ignored.
+         *
+         * @param file The file to be read.
+         * @return A source replaying the file's questions.
+         * @throws IOException If the file cannot be read.
+         */
+        public static FileQuerySource load(File file) throws IOException {
+            List<DNSQuestion> questions = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.split("#", 2)[0].trim();
+                    if (line.isEmpty()) continue;
+                    String[] fields = line.split("\\s+");
+                    RecordType type = fields.length > 1 ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+                    questions.add(new DNSQuestion(fields[0], type, RecordClass.IN));
+                }
+            }
+            return new FileQuerySource(questions);
+        }
+
+        @Override
+        public DNSQuestion next() {
+            DNSQuestion question = questions.get(next);
+            next = (next + 1) % questions.size();
+            return question;
+        }
+    }
+
+    /**
+     * Draws names host{rank}.{suffix} with a Zipf distribution over their rank, so that a few names are very popular
+     * and most are rarely asked for, as in real resolver traffic. Record types are drawn independently with the
+     * given weights.
+     */
+    public static class ZipfQuerySource implements QuerySource {
+        private final double[] cumulative;
+        private final String suffix;
+        private final RecordType[] types;
+        private final double[] typeCumulative;
+
+        /**
+         * @param names    Number of distinct names.
+         * @param exponent Exponent of the distribution; larger values concentrate queries on the first names.
+         * @param suffix   Domain under which the names are created.
+         * @param types    Record types with their relative weights.
+         */
+        public ZipfQuerySource(int names, double exponent, String suffix, Map<RecordType, Integer> types) {
+            if (names <= 0 || types.isEmpty()) throw new IllegalArgumentException("Empty query distribution");
+            this.suffix = suffix;
+            cumulative = new double[names];
+            double sum = 0;
+            for (int rank = 1; rank <= names; rank++) {
+                sum += 1 / Math.pow(rank, exponent);
+                cumulative[rank - 1] = sum;
+            }
+            for (int i = 0; i < names; i++) cumulative[i] /= sum;
+
+            this.types = types.keySet().toArray(new RecordType[0]);
+            typeCumulative = new double[this.types.length];
+            double total = 0;
+            for (int i = 0; i < this.types.length; i++) {
+                total += types.get(this.types[i]);
+                typeCumulative[i] = total;
+            }
+            for (int i = 0; i < typeCumulative.length; i++) typeCumulative[i] /= total;
+        }
+
+        @Override
+        public DNSQuestion next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int rank = search(cumulative, random.nextDouble()) + 1;
+            RecordType type = types[search(typeCumulative, random.nextDouble())];
+            return new DNSQuestion("host" + rank + "." + suffix, type, RecordClass.IN);
+        }
+
+        private static int search(double[] cumulative, double value) {
+            int index = Arrays.binarySearch(cumulative, value);
+            if (index < 0) index = -index - 1;
+            return Math.min(index, cumulative.length - 1);
+        }
+    }
+
+    /**
+     * The counters and latencies of a run.
+     */
+    public static class Stats {
+        private long startNanos;
+        private long stopNanos;
+        private long sent;
+        private long hits;
+        private long errors;
+        private long timeouts;
+        private long[] latencies = new long[1024];
+        private int answered;
+
+        synchronized void start(long nanos) {
+            startNanos = nanos;
+        }
+
+        synchronized void stop(long nanos) {
+            stopNanos = nanos;
+        }
+
+        synchronized void sent() {
+            sent++;
+        }
+
+        synchronized void hit() {
+            hits++;
+        }
+
+        synchronized void error() {
+            errors++;
+        }
+
+        synchronized void timeout() {
+            timeouts++;
+        }
+
+        synchronized void answered(long latencyNanos) {
+            if (answered == latencies.length) latencies = Arrays.copyOf(latencies, answered * 2);
+            latencies[answered++] = latencyNanos;
+        }
+
+        public synchronized long getSent() {
+            return sent;
+        }
+
+        public synchronized int getAnswered() {
+            return answered;
+        }
+
+        public synchronized long getCompleted() {
+            return answered + errors + timeouts;
+        }
+
+        public synchronized long getErrors() {
+            return errors;
+        }
+
+        public synchronized long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Returns a latency percentile of the answered queries.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The latency in milliseconds, or 0 if no query was answered.
+         */
+        public synchronized double getLatencyMillis(double percentile) {
+            if (answered == 0) return 0;
+            long[] sorted = Arrays.copyOf(latencies, answered);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * answered) - 1;
+            return sorted[Math.max(0, Math.min(index, answered - 1))] / 1e6;
+        }
+
+        public synchronized void report(PrintStream out) {
+            double seconds = Math.max(1, stopNanos - startNanos) / 1e9;
+            out.printf("Queries sent:      %d (%.1f qps)%n", sent, sent / seconds);
+            out.printf("Queries answered:  %d (%.1f qps)%n", answered, answered / seconds);
+            out.printf("Errors:            %d (%.2f%%)%n", errors, percent(errors));
+            out.printf("Timeouts:          %d (%.2f%%)%n", timeouts, percent(timeouts));
+            out.printf("Cache hits:        %d (%.2f%%)%n", hits, percent(hits));
+            out.printf("Latency (ms):      p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                    getLatencyMillis(50), getLatencyMillis(90), getLatencyMillis(99), getLatencyMillis(99.9),
+                    getLatencyMillis(100));
+        }
+
+        private double percent(long count) {
+            return sent == 0 ? 0 : 100.0 * count / sent;
+        }
+    }
+}
@@ -1,18 +1,26 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.Console;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class DNSLookupCUI implements DNSVerbosePrinter {
 
     public static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_TRACES = 1000;
+    private static final int MAX_QUERIES_IN_FLIGHT = 64;
+    private static final long ROOT_ZONE_RELOAD_PERIOD = 3600;
+    private static final long LOCAL_DATA_CHECK_PERIOD = 5;
 
     private static boolean verboseTracing = false;
     private static DNSLookupService lookupService;
+    private static ResolutionTracer tracer;
+    private static RootZone.Reloader rootZone;
+    private static LocalData.Reloader localData;
+    private static final List<File> localHostsFiles = new ArrayList<>();
+    private static final List<File> localZoneFiles = new ArrayList<>();
+    private static final QueryScheduler scheduler = new QueryScheduler(MAX_QUERIES_IN_FLIGHT);
     private static final DNSCache cache = DNSCache.getInstance();
 
     /**
@@ -40,6 +48,8 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
 
         try {
             lookupService = new DNSLookupService(new DNSLookupCUI());
+            lookupService.setScheduler(scheduler);
+            lookupService.setLane(QueryScheduler.Lane.INTERACTIVE);
         } catch (SocketException | UnknownHostException e) {
             e.printStackTrace();
             System.exit(1);
@@ -93,32 +103,172 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
-                RecordType type;
+                // Several types separated by commas (e.g., A,AAAA,MX) are resolved together.
+                List<RecordType> types = new ArrayList<>();
                 if (commandArgs.length == 2)
-                    type = RecordType.A;
+                    types.add(RecordType.A);
                 else if (commandArgs.length == 3)
                     try {
-                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                        for (String type : commandArgs[2].split(","))
+                            types.add(RecordType.valueOf(type.trim().toUpperCase()));
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, SOA, TXT, SRV, PTR, CAA");
                         continue;
                     }
                 else {
-                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
+                    System.err.println("Invalid call. Format:\n\tlookup hostName [type[,type...]]");
                     continue;
                 }
-                findAndPrintResults(commandArgs[1], type);
+                if (types.size() == 1) findAndPrintResults(commandArgs[1], types.get(0));
+                else findAndPrintResults(commandArgs[1], types);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachQuestion(DNSLookupCUI::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("trace")) {
+                // TRACE: Record sampled resolution traces, or save them to a file
+                if (commandArgs.length >= 2 && commandArgs.length <= 3 && commandArgs[1].equalsIgnoreCase("on")) {
+                    try {
+                        double rate = commandArgs.length == 3 ? Double.parseDouble(commandArgs[2]) : 1;
+                        tracer = new ResolutionTracer(rate, MAX_TRACES);
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid sample rate. Must be between 0 and 1.");
+                        continue;
+                    }
+                    lookupService.setTracer(tracer);
+                    System.out.println("Tracing is now: ON (sample rate " + tracer.getSampleRate() + ")");
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    lookupService.setTracer(null);
+                    System.out.println("Tracing is now: OFF");
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("save") && tracer != null) {
+                    saveTraces(commandArgs[2]);
+                } else {
+                    System.err.println("Invalid call. Format:\n\ttrace on [sampleRate]|off|save fileName");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("lanes")) {
+                // LANES: Print the query budget and latency of each priority lane
+                scheduler.report(System.out);
+            } else if (commandArgs[0].equalsIgnoreCase("budget")) {
+                // BUDGET: Print the lookups that exhausted their work budget
+                lookupService.getBudgetStats().report(System.out);
+            } else if (commandArgs[0].equalsIgnoreCase("forward")) {
+                // FORWARD: Send recursive queries to upstream resolvers, or resolve names iteratively again
+                if (commandArgs.length == 1 && lookupService.getUpstreams() != null) {
+                    lookupService.getUpstreams().report(System.out);
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    lookupService.setUpstreams(null);
+                    System.out.println("Forwarding is now: OFF");
+                } else if (commandArgs.length >= 2) {
+                    List<InetSocketAddress> upstreams = new ArrayList<>();
+                    try {
+                        for (int i = 1; i < commandArgs.length; i++) upstreams.add(parseUpstream(commandArgs[i]));
+                    } catch (IllegalArgumentException | UnknownHostException ex) {
+                        System.err.println("Invalid upstream: " + ex.getMessage());
+                        continue;
+                    }
+                    lookupService.setUpstreams(new UpstreamPool(upstreams));
+                    System.out.println("Forwarding is now: ON (" + upstreams.size() + " upstreams)");
+                } else {
+                    System.err.println("Invalid call. Format:\n\tforward [address[:port]...|off]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("hedge")) {
+                // HEDGE: Send slow queries to a second nameserver as well, or stop doing so
+                if (commandArgs.length == 1 && lookupService.getHedging() != null) {
+                    lookupService.getHedging().report(System.out);
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    lookupService.setHedging(null);
+                    System.out.println("Hedging is now: OFF");
+                } else if (commandArgs.length <= 3) {
+                    try {
+                        double percentile = commandArgs.length >= 2 ? Double.parseDouble(commandArgs[1]) / 100 : 0.95;
+                        double ratio = commandArgs.length == 3 ? Double.parseDouble(commandArgs[2]) : 0.1;
+                        lookupService.setHedging(new HedgePolicy(percentile, ratio));
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid hedging settings: " + ex.getMessage());
+                        continue;
+                    }
+                    System.out.println("Hedging is now: ON");
+                } else {
+                    System.err.println("Invalid call. Format:\n\thedge [percentile [maxRatio]]|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("rootzone")) {
+                // ROOTZONE: Use a local copy of the root zone, reloaded periodically, or stop using it
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    if (rootZone != null) rootZone.close();
+                    rootZone = null;
+                    System.out.println("Local root zone is now: OFF");
+                } else if (commandArgs.length >= 2 && commandArgs.length <= 3) {
+                    if (rootZone != null) rootZone.close();
+                    rootZone = null;
+                    try {
+                        long period = commandArgs.length == 3 ? Long.parseLong(commandArgs[2]) : ROOT_ZONE_RELOAD_PERIOD;
+                        rootZone = new RootZone.Reloader(new File(commandArgs[1]), cache, period);
+                    } catch (IOException | IllegalArgumentException ex) {
+                        System.err.println("Could not load the root zone: " + ex.getMessage());
+                        continue;
+                    }
+                    System.out.println("Local root zone is now: ON (" + cache.getRootZone().getDelegationCount() +
+                            " delegations)");
+                } else {
+                    System.err.println("Invalid call. Format:\n\trootzone fileName [reloadSeconds]|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("local")) {
+                // LOCAL: Answer names from hosts and zone files, reloaded when they change, or stop doing so
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    if (localData != null) localData.close();
+                    localData = null;
+                    cache.setLocalData(null);
+                    localHostsFiles.clear();
+                    localZoneFiles.clear();
+                    System.out.println("Local data is now: OFF");
+                } else if (commandArgs.length == 3 && (commandArgs[1].equalsIgnoreCase("hosts") ||
+                        commandArgs[1].equalsIgnoreCase("zone"))) {
+                    List<File> hostsFiles = new ArrayList<>(localHostsFiles);
+                    List<File> zoneFiles = new ArrayList<>(localZoneFiles);
+                    (commandArgs[1].equalsIgnoreCase("hosts") ? hostsFiles : zoneFiles).add(new File(commandArgs[2]));
+                    // the data loaded so far stays in the cache until the new data replaces it
+                    if (localData != null) localData.stop();
+                    localData = null;
+                    try {
+                        localData = new LocalData.Reloader(hostsFiles, zoneFiles, cache, LOCAL_DATA_CHECK_PERIOD);
+                    } catch (IOException ex) {
+                        System.err.println("Could not load local data: " + ex.getMessage());
+                        continue;
+                    }
+                    localHostsFiles.clear();
+                    localHostsFiles.addAll(hostsFiles);
+                    localZoneFiles.clear();
+                    localZoneFiles.addAll(zoneFiles);
+                    System.out.println("Local data is now: ON (" + cache.getLocalData().getRecordCount() + " records)");
+                } else {
+                    System.err.println("Invalid call. Format:\n\tlocal hosts|zone fileName|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("store")) {
+                // STORE: Keep the cached records on or off the heap
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("heap")) {
+                    cache.setRecordStore(new HeapRecordStore());
+                    System.out.println("Cache store is now: HEAP");
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("offheap")) {
+                    cache.setRecordStore(new OffHeapRecordStore(1024));
+                    System.out.println("Cache store is now: OFF-HEAP");
+                } else {
+                    System.err.println("Invalid call. Format:\n\tstore heap|offheap");
+                }
             } else if (commandArgs[0].equalsIgnoreCase("reset")) {
                 // RESET: Remove all entries from the cache
                 cache.reset();
             } else {
                 System.err.println("Invalid command. Valid commands are:");
-                System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tlookup fqdn [type[,type...]]");
                 System.err.println("\tverbose on|off");
                 System.err.println("\tdump");
+                System.err.println("\ttrace on [sampleRate]|off|save fileName");
+                System.err.println("\tlanes");
+                System.err.println("\tbudget");
+                System.err.println("\tforward [address[:port]...|off]");
+                System.err.println("\thedge [percentile [maxRatio]]|off");
+                System.err.println("\trootzone fileName [reloadSeconds]|off");
+                System.err.println("\tlocal hosts|zone fileName|off");
+                System.err.println("\tstore heap|offheap");
                 System.err.println("\treset");
                 System.err.println("\tquit");
             }
@@ -129,10 +279,44 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Parses the address of an upstream resolver, given as an IPv4 address with an optional port (53 by default).
+     */
+    private static InetSocketAddress parseUpstream(String upstream) throws UnknownHostException {
+        String[] parts = upstream.split(":", 2);
+        int port = parts.length == 2 ? Integer.parseInt(parts[1]) : DNSLookupService.DEFAULT_DNS_PORT;
+        return new InetSocketAddress(InetAddress.getByName(parts[0]), port);
+    }
+
     public static void setVerboseTracing(boolean onoff) {
         verboseTracing = onoff;
     }
 
+    /**
+     * Saves the traces recorded so far. Files ending in .json are written in the Chrome trace-event format, other
+     * files in the compact binary format.
+     *
+     * @param fileName Name of the file to be written.
+     */
+    private static void saveTraces(String fileName) {
+        List<ResolutionTrace> traces = tracer.getTraces();
+        try {
+            if (fileName.endsWith(".json")) {
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8)) {
+                    ResolutionTrace.writeChromeTrace(traces, out);
+                }
+            } else {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(fileName)))) {
+                    ResolutionTrace.writeBinary(traces, out);
+                }
+            }
+            System.out.println(traces.size() + " traces saved to " + fileName);
+        } catch (IOException e) {
+            System.err.println("Could not save traces: " + e.getMessage());
+        }
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -151,6 +335,27 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
         }
     }
 
+    /**
+     * Finds all results for a host name and several types, and prints them on the standard output, type by type.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param types    Record types for search.
+     */
+    private static void findAndPrintResults(String hostName, List<RecordType> types) {
+
+        Map<RecordType, DNSLookupService.TypeResult> results =
+                lookupService.getResultsFollowingCNames(hostName, types, MAX_INDIRECTION_LEVEL);
+        if (verboseTracing) System.out.println("\n========== FINAL RESULT ==========");
+        for (Map.Entry<RecordType, DNSLookupService.TypeResult> entry : results.entrySet()) {
+            try {
+                printResults(new DNSQuestion(hostName, entry.getKey(), RecordClass.IN), entry.getValue().getRecords());
+            } catch (DNSLookupService.DNSErrorException e) {
+                System.out.println("Server returned an error \"" + e.getMessage() + "\" instead of a result for " +
+                        entry.getKey() + ".");
+            }
+        }
+    }
+
     /**
      * If verbose tracing is on, prints a specific query before it is sent to the server. If verbose tracing is off,
      * does nothing.
@@ -2,7 +2,10 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.IOException;
 import java.net.*;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DNSLookupService {
 
@@ -11,15 +14,52 @@ public class DNSLookupService {
     private static final int MAX_QUERY_ATTEMPTS = 3;
     private static final int MAX_DNS_MESSAGE_LENGTH = 512;
     private static final int SO_TIMEOUT = 5000;
+    private static final int MAX_PARALLEL_NS_LOOKUPS = 3;
+    private static final int MAX_BACKGROUND_THREADS = 64;
+    private static final int MAX_POOLED_MESSAGES = 64;
+    private static final int DEFAULT_MAX_QUERIES = 100;
+    private static final int DEFAULT_MAX_SUB_RESOLUTIONS = 20;
+    private static final int DEFAULT_RESOLUTION_TIMEOUT = 30000;
+    private static final int MAX_EXHAUSTED_NAMES = 100;
+    private static final int MAX_FORWARD_ATTEMPTS = 3;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int FAMILY_RACE_DELAY = 50;
+    private static final DNSMessagePool messagePool = new DNSMessagePool(MAX_POOLED_MESSAGES, false);
 
     private final DNSCache cache = DNSCache.getInstance();
-    private final Random random = new Random();
+    private final Random random = new SecureRandom();
     private final DNSVerbosePrinter verbose;
-    private final DatagramSocket socket;
+    private DNSTransport transport;
+    private boolean ownsTransport;
+    private final ExecutorService executor;
+    private final ExecutorService queryExecutor;
+    private final boolean ownsExecutor;
+    private DNSCachePeer cachePeer;
+    private int serverPort = DEFAULT_DNS_PORT;
+    private ResolutionTracer tracer;
+    private ResolutionTrace.Span traceSpan;
+    private QueryScheduler scheduler;
+    private QueryScheduler.Lane lane = QueryScheduler.Lane.NORMAL;
+    private ConcurrencyLimiter limiter;
+    private ServerHealth serverHealth = ServerHealth.getInstance();
+    private UpstreamPool upstreams;
+    private HedgePolicy hedging;
+    private FamilyPreference families = FamilyPreference.getInstance();
+    private int maxQueries = DEFAULT_MAX_QUERIES;
+    private int maxSubResolutions = DEFAULT_MAX_SUB_RESOLUTIONS;
+    private int resolutionTimeout = DEFAULT_RESOLUTION_TIMEOUT;
+    private ResolutionBudget.Stats budgetStats = new ResolutionBudget.Stats(MAX_EXHAUSTED_NAMES);
+    private ResolutionBudget budget;
+    private int nameserverDepth;
+    private Runnable onEnclosingZoneQuery;
 
 
     /**
-     * Creates a new lookup service. Also initializes the datagram socket object with a default timeout.
+     * Creates a new lookup service. Also initializes the UDP transport used to send queries. Background lookups
+     * (nameserver addresses, parallel queries) run on at most MAX_BACKGROUND_THREADS threads; once they are all busy,
+     * a background lookup runs on the thread that starts it instead. Queries raced against each other (hedging,
+     * both address families, forwarding) never run on the thread that waits for them, so that it can send the next
+     * query in time: they run on their own threads, of which there are at most three per waiting thread.
      *
      * @param verbose A DNSVerbosePrinter listener object with methods to be called at key events in the query
      *                processing.
@@ -27,39 +67,243 @@ public class DNSLookupService {
      * @throws UnknownHostException If the nameserver is not a valid server.
      */
     public DNSLookupService(DNSVerbosePrinter verbose) throws SocketException, UnknownHostException {
+        this(verbose, new ThreadPoolExecutor(0, MAX_BACKGROUND_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), daemonThreads("dns-ns-lookup"), new ThreadPoolExecutor.CallerRunsPolicy()),
+                Executors.newCachedThreadPool(daemonThreads("dns-query")), true, new UdpTransport(), true);
+    }
+
+    /**
+     * Creates a lookup service that runs its background lookups in the given executors.
+     *
+     * @param verbose       A DNSVerbosePrinter listener object.
+     * @param executor      Executor used to resolve nameserver addresses in parallel.
+     * @param queryExecutor Executor used to send queries in parallel; it must not run them on the calling thread.
+     * @param ownsExecutor  true if the executors must be shut down when this service is closed.
+     * @param transport     Transport used to exchange messages with nameservers.
+     * @param ownsTransport true if the transport must be closed when this service is closed.
+     */
+    private DNSLookupService(DNSVerbosePrinter verbose, ExecutorService executor, ExecutorService queryExecutor,
+                             boolean ownsExecutor, DNSTransport transport, boolean ownsTransport) {
         this.verbose = verbose;
-        socket = new DatagramSocket();
-        socket.setSoTimeout(SO_TIMEOUT);
+        this.executor = executor;
+        this.queryExecutor = queryExecutor;
+        this.ownsExecutor = ownsExecutor;
+        this.transport = transport;
+        this.ownsTransport = ownsTransport;
     }
 
     /**
-     * Closes the lookup service and related sockets and resources.
+     * Replaces the transport used to exchange messages with nameservers, e.g., with a RecordingTransport or a
+     * ReplayTransport. The caller remains responsible for closing the new transport; the default UDP transport is
+     * closed.
+     *
+     * @param transport The transport to be used from now on.
      */
-    public void close() {
-        socket.close();
+    public void setTransport(DNSTransport transport) {
+        closeTransport();
+        this.transport = transport;
+        this.ownsTransport = false;
+    }
+
+    public DNSTransport getTransport() {
+        return transport;
     }
 
     /**
-     * Examines a set of resource records to see if any of them are an answer to the given question.
+     * Enables cache peering. Questions missing from the local cache are first asked to the peer node that owns them,
+     * and records received from nameservers are shared with their owners.
      *
-     * @param rrs      The set of resource records to be examined
-     * @param question The DNS question
-     * @return true if the collection of resource records contains an answer to the given question.
-     */
-    private boolean containsAnswer(Collection<ResourceRecord> rrs, DNSQuestion question) {
-        for (ResourceRecord rr : rrs) {
-            if (rr.getQuestion().equals(question) && rr.getRecordType() == question.getRecordType()) {
-                return true;
-            }
+     * @param cachePeer The peer node of this resolver, or null to disable peering.
+     */
+    public void setCachePeer(DNSCachePeer cachePeer) {
+        this.cachePeer = cachePeer;
+    }
+
+    /**
+     * Sets the port to which queries are sent, e.g., to resolve names from a SimulatedDNS hierarchy. All nameservers
+     * are assumed to listen on the same port.
+     *
+     * @param serverPort The destination port of queries (DEFAULT_DNS_PORT unless set).
+     */
+    public void setServerPort(int serverPort) {
+        this.serverPort = serverPort;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Enables tracing of resolutions. Each sampled resolution records a span for every query it sends and every
+     * nameserver it has to resolve, and its trace is kept by the tracer once the resolution completes.
+     *
+     * @param tracer The tracer deciding which resolutions are traced, or null to disable tracing.
+     */
+    public void setTracer(ResolutionTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Makes every query sent by this service obtain a permit from a scheduler first, so that services sharing the
+     * scheduler share its query budget according to the priority of their lanes.
+     *
+     * @param scheduler The scheduler shared by the services of this process, or null to send queries immediately.
+     */
+    public void setScheduler(QueryScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the lane of the queries sent by this service, including those sent to resolve nameserver addresses.
+     *
+     * @param lane The priority lane of this service's lookups (NORMAL unless set).
+     */
+    public void setLane(QueryScheduler.Lane lane) {
+        this.lane = lane;
+    }
+
+    public QueryScheduler.Lane getLane() {
+        return lane;
+    }
+
+    /**
+     * Limits the number of queries in flight, in total and per nameserver, with limits adapting to the latency and
+     * loss observed. The limiter applies to the queries of this service and of event loops driving it, and may be
+     * shared by several services.
+     *
+     * @param limiter The limiter, or null to send queries without adaptive limit.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Switches the service to forwarding mode: instead of resolving names iteratively from the root, lookups send
+     * recursive (RD=1) queries to a pool of upstream resolvers, and cache what they return. Event loops driving
+     * this service still resolve names iteratively.
+     *
+     * @param upstreams The upstream resolvers, or null to resolve names iteratively.
+     */
+    public void setUpstreams(UpstreamPool upstreams) {
+        this.upstreams = upstreams;
+    }
+
+    public UpstreamPool getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * Sets the table of failed nameservers consulted when picking a nameserver, and updated with the nameservers
+     * that time out or turn out to be lame. By default, the table shared by all services is used.
+     *
+     * @param serverHealth The health table, or null to try every nameserver.
+     */
+    public void setServerHealth(ServerHealth serverHealth) {
+        this.serverHealth = serverHealth;
+    }
+
+    ServerHealth getServerHealth() {
+        return serverHealth;
+    }
+
+    /**
+     * Enables hedging: when a nameserver is slow to respond, the same query is sent to another nameserver of the
+     * zone, and the first response is used. Queries are then sent from threads of their own.
+     *
+     * @param hedging The policy deciding when to hedge, or null to wait for each nameserver in turn.
+     */
+    public void setHedging(HedgePolicy hedging) {
+        this.hedging = hedging;
+    }
+
+    public HedgePolicy getHedging() {
+        return hedging;
+    }
+
+    /**
+     * Sets the table remembering which address family each dual-stack nameserver responds fastest on. Nameservers
+     * with addresses of both families are queried over the preferred family, and over the other one as well if no
+     * response arrives within FAMILY_RACE_DELAY.
+     *
+     * @param families The table (the shared one unless set), or null to query IPv4 addresses first without racing.
+     */
+    public void setFamilyPreference(FamilyPreference families) {
+        this.families = families;
+    }
+
+    /**
+     * Sets the work allowed for each lookup, including the lookups of nameserver addresses it needs. A lookup that
+     * exceeds any of these limits fails with a DNSErrorException.
+     *
+     * @param maxQueries        Maximum number of queries sent to nameservers, including retransmissions.
+     * @param maxSubResolutions Maximum number of nameserver addresses resolved.
+     * @param timeoutMillis     Time allowed for a lookup, in milliseconds, or 0 for no deadline.
+     */
+    public void setBudget(int maxQueries, int maxSubResolutions, int timeoutMillis) {
+        this.maxQueries = maxQueries;
+        this.maxSubResolutions = maxSubResolutions;
+        this.resolutionTimeout = timeoutMillis;
+    }
+
+    /**
+     * @return The number of lookups that exhausted their budget, and the names they were for.
+     */
+    public ResolutionBudget.Stats getBudgetStats() {
+        return budgetStats;
+    }
+
+    /**
+     * Creates the budget of a new top-level lookup, according to the limits of this service.
+     */
+    ResolutionBudget newBudget(DNSQuestion question) {
+        return new ResolutionBudget(question, maxQueries, maxSubResolutions, resolutionTimeout);
+    }
+
+    DNSVerbosePrinter getVerbose() {
+        return verbose;
+    }
+
+    DNSCachePeer getCachePeer() {
+        return cachePeer;
+    }
+
+    /**
+     * Closes the lookup service and related sockets and resources.
+     */
+    public void close() {
+        closeTransport();
+        if (ownsExecutor) {
+            executor.shutdownNow();
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private void closeTransport() {
+        if (!ownsTransport) return;
+        try {
+            transport.close();
+        } catch (IOException ignored) {
         }
-        return false;
     }
 
     /**
      * Finds all the results for a specific question. If there are valid (not expired) results in the cache, uses these
      * results, otherwise queries the nameserver for new records. If there are CNAME records associated to the question,
-     * they are retrieved recursively for new records of the same type, and the returning set will contain both the
-     * CNAME record and the resulting resource records of the indicated type.
+     * they are retrieved for new records of the same type, and the returning set will contain both the CNAME record
+     * and the resulting resource records of the indicated type. Complete answers are kept in the cache as a single
+     * entry for the original question, so a later lookup does not need to walk the CNAME chain again.
      *
      * @param question             Host and record type to be used for search.
      * @param maxIndirectionLevels Number of CNAME indirection levels to support.
@@ -71,22 +315,91 @@ public class DNSLookupService {
             throws DNSErrorException {
 
         if (maxIndirectionLevels < 0) throw new DNSErrorException("CNAME indirection limit exceeded");
+        if (upstreams != null) return forward(question, true);
+        return resolve(new Resolution(question, maxIndirectionLevels, cache, cachePeer != null));
+    }
 
-        Collection<ResourceRecord> directResults = iterativeQuery(question);
-        if (containsAnswer(directResults, question)) {
-            return directResults;
+    /**
+     * Finds all the results for several record types of the same name. The first type is resolved on the calling
+     * thread, which walks the delegation down to the authoritative nameservers of the name and leaves it in the
+     * cache. The other types are resolved in parallel, starting from the cached delegation, as soon as the first type
+     * sends its query to the zone directly enclosing the name (or once it completes, if it never does), so that they
+     * only need one query each to the authoritative nameservers. In forwarding mode, all types are resolved in
+     * parallel at once.
+     *
+     * @param hostName             Fully qualified domain name to be searched.
+     * @param types                Record types to be searched, in order.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return The outcome of each type, in the order of the types; the lookup of a type may fail while the others
+     * succeed.
+     */
+    public Map<RecordType, TypeResult> getResultsFollowingCNames(String hostName, List<RecordType> types,
+                                                                 int maxIndirectionLevels) {
+        Map<RecordType, TypeResult> results = new LinkedHashMap<>();
+        if (types.isEmpty()) return results;
+        RecordType first = types.get(0);
+        Map<RecordType, Future<Collection<ResourceRecord>>> lookups = new LinkedHashMap<>();
+        Runnable launch = () -> {
+            for (RecordType type : types) {
+                if (type == first || lookups.containsKey(type)) continue;
+                DNSQuestion question = new DNSQuestion(hostName, type, RecordClass.IN);
+                lookups.put(type, executor.submit(() -> {
+                    DNSLookupService helper = newHelper();
+                    try {
+                        return helper.getResultsFollowingCNames(question, maxIndirectionLevels);
+                    } finally {
+                        helper.close();
+                    }
+                }));
+            }
+        };
+
+        if (upstreams != null) launch.run();
+        else onEnclosingZoneQuery = launch;
+        try {
+            results.put(first, new TypeResult(getResultsFollowingCNames(
+                    new DNSQuestion(hostName, first, RecordClass.IN), maxIndirectionLevels), null));
+        } catch (DNSErrorException e) {
+            results.put(first, new TypeResult(null, e));
+        } finally {
+            onEnclosingZoneQuery = null;
         }
+        if (lookups.isEmpty()) launch.run();
 
-        Set<ResourceRecord> newResults = new HashSet<>();
-        for (ResourceRecord record : directResults) {
-            newResults.add(record);
-            if (record.getRecordType() == RecordType.CNAME) {
-                newResults.addAll(getResultsFollowingCNames(
-                        new DNSQuestion(record.getTextResult(), question.getRecordType(), question.getRecordClass()),
-                        maxIndirectionLevels - 1));
+        for (Map.Entry<RecordType, Future<Collection<ResourceRecord>>> lookup : lookups.entrySet()) {
+            try {
+                results.put(lookup.getKey(), new TypeResult(lookup.getValue().get(), null));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.put(lookup.getKey(), new TypeResult(null, new DNSErrorException("Lookup interrupted")));
+            } catch (ExecutionException e) {
+                results.put(lookup.getKey(), new TypeResult(null, e.getCause() instanceof DNSErrorException ?
+                        (DNSErrorException) e.getCause() : new DNSErrorException("Lookup failed: " + e.getCause())));
             }
         }
-        return newResults;
+        return results;
+    }
+
+    /**
+     * Creates a service that shares the configuration, transport and executor of this one, to run a lookup on
+     * another thread. The helper must be closed once the lookup is complete.
+     */
+    private DNSLookupService newHelper() {
+        DNSLookupService helper = new DNSLookupService(verbose, executor, queryExecutor, false, transport, false);
+        helper.setCachePeer(cachePeer);
+        helper.setServerPort(serverPort);
+        helper.setTracer(tracer);
+        helper.setScheduler(scheduler);
+        helper.setLane(lane);
+        helper.setConcurrencyLimiter(limiter);
+        helper.setUpstreams(upstreams);
+        helper.setHedging(hedging);
+        helper.setFamilyPreference(families);
+        helper.setServerHealth(serverHealth);
+        helper.setBudget(maxQueries, maxSubResolutions, resolutionTimeout);
+        helper.budgetStats = budgetStats;
+        helper.nameserverDepth = nameserverDepth;
+        return helper;
     }
 
     /**
@@ -101,82 +414,477 @@ public class DNSLookupService {
      */
     public Collection<ResourceRecord> iterativeQuery(DNSQuestion question)
             throws DNSErrorException {
-        Set<ResourceRecord> ans = new HashSet<>();
-        // Available in cache
-        Collection<ResourceRecord> cacheResults = cache.getCachedResults(question);
-        if (cacheResults.size() > 0) return cacheResults;
-
-        // Query rootserver
-        InetAddress server = null;
-        Set<InetAddress> tried = new HashSet<>();
-        List<ResourceRecord> serverList = cache.getBestNameservers(question);
-        Set<ResourceRecord> serversNotTried = new HashSet<>();
-
-        // use first server
-        String strServer = serverList.get(0).getTextResult();
-        DNSQuestion serverQuestion = new DNSQuestion(strServer, RecordType.A, RecordClass.IN);
-        Collection<ResourceRecord> rootServerList = cache.getCachedResults(serverQuestion);
-        server = rootServerList.iterator().next().getInetResult();
-        // Iterate servers
-        while (serverList.size() >= 0) {
-            if (serverList.size() == 0){
-                if (serversNotTried.size() > 0) {
-                    serverList.addAll(serversNotTried);
-                    serversNotTried.clear();
+        if (upstreams != null) return forward(question, false);
+        return resolve(new Resolution(question, cache, cachePeer != null));
+    }
+
+    /**
+     * Answers a question in forwarding mode, from the local data or the cache if possible, otherwise from the
+     * upstream resolvers.
+     * Upstreams resolve CNAME chains themselves, so the records of the chain are picked from the answer.
+     *
+     * @param question     Host name and record type/class to be resolved.
+     * @param followCNames true if the canonical names of CNAME records must be resolved as well.
+     * @return The records answering the question, empty if no upstream could answer it.
+     * @throws DNSErrorException If the name does not exist, or all upstreams returned an error.
+     */
+    private Collection<ResourceRecord> forward(DNSQuestion question, boolean followCNames) throws DNSErrorException {
+        if (cache.isLocalNameError(question))
+            throw new DNSErrorException("Name does not exist in local data", RCODE_NXDOMAIN);
+        List<ResourceRecord> local = cache.getLocalAnswer(question);
+        if (local != null) return local;
+        Collection<ResourceRecord> cached = followCNames ? cache.getFinalAnswer(question) : null;
+        if (cached != null) return cached;
+        List<ResourceRecord> cachedResults = cache.getCachedResults(question);
+        if (!cachedResults.isEmpty() && (!followCNames || containsType(cachedResults, question.getRecordType())))
+            return cachedResults;
+
+        DNSMessage response = forwardQuery(question);
+        if (response == null) return Collections.emptySet();
+        Set<ResourceRecord> records;
+        try {
+            records = processResponse(response);
+        } finally {
+            messagePool.release(response);
+        }
+
+        Set<ResourceRecord> answer = new HashSet<>();
+        String name = question.getHostName();
+        Set<String> names = new HashSet<>();
+        while (names.add(name.toLowerCase())) {
+            String next = null;
+            for (ResourceRecord rr : records) {
+                if (!rr.getHostName().equalsIgnoreCase(name) || rr.getRecordClass() != question.getRecordClass())
                     continue;
-                } else{
-                    return ans;
+                if (rr.getRecordType() == question.getRecordType()) answer.add(rr);
+                else if (rr.getRecordType() == RecordType.CNAME) {
+                    answer.add(rr);
+                    next = rr.getTextResult();
                 }
             }
-            for (ResourceRecord rr : serverList){
-                cache.addResult(rr);
+            if (next == null || !followCNames) break;
+            name = next;
+        }
+        if (followCNames && containsType(answer, question.getRecordType())) cache.addFinalAnswer(question, answer);
+        return answer;
+    }
+
+    static boolean containsType(Collection<ResourceRecord> records, RecordType type) {
+        for (ResourceRecord rr : records) {
+            if (rr.getRecordType() == type) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends a recursive query to the upstream picked by the pool. If no response arrives within the upstream's hedge
+     * delay, the query is also sent to a second upstream, and the first response wins. A timeout or an error other
+     * than NXDOMAIN fails over to another upstream, up to MAX_FORWARD_ATTEMPTS queries in total. Attempts still
+     * running once the outcome is known release their own response, and the last of them releases the query.
+     *
+     * @param question Host name and record type/class to be resolved.
+     * @return The winning response, to be released by the caller, or null if no upstream responded.
+     * @throws DNSErrorException If every upstream that responded returned an error other than NXDOMAIN.
+     */
+    private DNSMessage forwardQuery(DNSQuestion question) throws DNSErrorException {
+        DNSMessage query = buildQuery(question);
+        query.setRD(true);
+        query.buffer.flip();
+        CompletionService<ForwardAttempt> attempts = new ExecutorCompletionService<>(queryExecutor);
+        ForwardRace race = new ForwardRace(query);
+        Set<UpstreamPool.Upstream> used = new HashSet<>();
+        DNSErrorException error = null;
+        boolean hedged = false;
+        int outstanding = 0;
+
+        UpstreamPool.Upstream upstream = upstreams.pick(used);
+        startForward(attempts, race, question, upstream, used, false);
+        outstanding++;
+        long hedgeAt = System.nanoTime() + upstreams.getHedgeDelay(upstream) * 1000000;
+        try {
+            while (outstanding > 0) {
+                Future<ForwardAttempt> done;
+                if (hedged) {
+                    done = attempts.take();
+                } else {
+                    done = attempts.poll(hedgeAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        hedged = true;
+                        upstream = upstreams.pick(used);
+                        if (upstream != null && used.size() < MAX_FORWARD_ATTEMPTS) {
+                            upstreams.onHedge();
+                            startForward(attempts, race, question, upstream, used, true);
+                            outstanding++;
+                        }
+                        continue;
+                    }
+                }
+                outstanding--;
+                ForwardAttempt attempt = done.get();
+                if (attempt.rcode == 0 || attempt.rcode == RCODE_NXDOMAIN) {
+                    if (attempt.hedge) upstreams.onHedgeWin();
+                    return attempt.response;
+                }
+                if (attempt.rcode > 0) error = new DNSErrorException("R-code is " + attempt.rcode, attempt.rcode);
+                messagePool.release(attempt.response);
+
+                upstream = upstreams.pick(used);
+                if (upstream != null && used.size() < MAX_FORWARD_ATTEMPTS) {
+                    upstreams.onFailover();
+                    startForward(attempts, race, question, upstream, used, false);
+                    outstanding++;
+                    hedgeAt = System.nanoTime() + upstreams.getHedgeDelay(upstream) * 1000000;
+                }
             }
-            cacheResults = cache.getCachedResults(question);
-            if (cacheResults.size() > 0) return cacheResults;
-
-            ResourceRecord currServer = serverList.remove(0);
-
-            //cname
-            if (currServer.getRecordType() == RecordType.CNAME) {
-                ans.add(currServer);
-                DNSQuestion q = new DNSQuestion(currServer.getTextResult(), question.getRecordType(), question.getRecordClass());
-                Collection<ResourceRecord> cnameList = iterativeQuery(q);
-                for (ResourceRecord rr : cnameList) {
-                    ans.add(rr);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // attempts report their failures in their result
+        } finally {
+            // attempts that completed before the outcome was known are still to be taken from the service
+            int unclaimed = outstanding - race.finish();
+            try {
+                while (unclaimed > 0) {
+                    ForwardAttempt attempt = attempts.take().get();
+                    if (attempt == null) continue;
+                    messagePool.release(attempt.response);
+                    unclaimed--;
                 }
-                return ans;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // attempts report their failures in their result
+            }
+        }
+        if (error != null) throw error;
+        return null;
+    }
+
+    private void startForward(CompletionService<ForwardAttempt> attempts, ForwardRace race, DNSQuestion question,
+                              UpstreamPool.Upstream upstream, Set<UpstreamPool.Upstream> used, boolean hedge) {
+        DNSMessage query = race.query;
+        used.add(upstream);
+        race.start();
+        attempts.submit(() -> {
+            ForwardAttempt attempt = new ForwardAttempt(messagePool.acquire(), hedge);
+            verbose.printQueryToSend(question, upstream.getAddress().getAddress(), query.getID());
+            long start = System.nanoTime();
+            int length;
+            try {
+                length = exchange(query, upstream.getAddress(), attempt.response, SO_TIMEOUT);
+            } catch (IOException | InterruptedException e) {
+                length = -1;
+            }
+            if (length >= 0) {
+                attempt.response.resetReceived(length);
+                attempt.rcode = attempt.response.getRcode();
+            }
+            if (attempt.rcode == 0 || attempt.rcode == RCODE_NXDOMAIN)
+                upstreams.onResponse(upstream, System.nanoTime() - start);
+            else
+                upstreams.onFailure(upstream);
+            return race.complete(attempt) ? attempt : null;
+        });
+    }
+
+    /**
+     * Drives a resolution to completion on the calling thread, blocking on each query it needs. Nameservers without
+     * glue are resolved in parallel by resolveGluelessNameservers. A top-level resolution gets a new budget, which
+     * the resolutions of nameserver addresses share.
+     *
+     * @param resolution The resolution to be run.
+     * @return The results of the resolution.
+     * @throws DNSErrorException If a nameserver returned an error, the CNAME indirection limit was exceeded, or the
+     *                           budget was exhausted.
+     */
+    private Collection<ResourceRecord> resolve(Resolution resolution) throws DNSErrorException {
+        boolean topLevel = budget == null;
+        if (topLevel) budget = newBudget(resolution.getQuestion());
+        resolution.setBudget(budget);
+        resolution.setServerHealth(serverHealth);
+        resolution.setFamilyPreference(families);
+        try {
+            return trace(resolution);
+        } finally {
+            if (topLevel) {
+                budgetStats.record(budget);
+                budget = null;
+            }
+        }
+    }
+
+    private Collection<ResourceRecord> trace(Resolution resolution) throws DNSErrorException {
+        ResolutionTrace trace = traceSpan == null && tracer != null ? tracer.start(resolution.getQuestion()) : null;
+        if (trace == null) return drive(resolution);
+
+        traceSpan = trace.getRoot();
+        String outcome = "failed";
+        try {
+            Collection<ResourceRecord> results = drive(resolution);
+            outcome = results.size() + " records";
+            return results;
+        } catch (DNSErrorException e) {
+            outcome = e.getMessage();
+            throw e;
+        } finally {
+            traceSpan = null;
+            trace.getRoot().end(0, outcome);
+            tracer.finish(trace);
+        }
+    }
+
+    private Collection<ResourceRecord> drive(Resolution resolution) throws DNSErrorException {
+        while (true) {
+            switch (resolution.advance()) {
+                case SEND_QUERY:
+                    if (onEnclosingZoneQuery != null && isEnclosingZoneQuery(resolution)) {
+                        Runnable listener = onEnclosingZoneQuery;
+                        onEnclosingZoneQuery = null;
+                        listener.run();
+                    }
+                    if (hedging != null || resolution.getAlternateServer() != null) {
+                        sendRacing(resolution);
+                        break;
+                    }
+                    try {
+                        resolution.onResponse(individualQueryProcess(resolution.getQueryQuestion(),
+                                resolution.getServer()));
+                    } catch (DNSErrorException e) {
+                        resolution.onError(e);
+                    }
+                    break;
+                case RESOLVE_NAMESERVER:
+                    resolution.onNameserverAddress(resolveGluelessNameservers(resolution.getNameserver(),
+                            resolution.getOtherNameservers()));
+                    break;
+                case ASK_PEER:
+                    cachePeer.query(resolution.getQueryQuestion());
+                    resolution.onPeerResult();
+                    break;
+                case DONE:
+                    return resolution.getResults();
             }
+        }
+    }
 
-            if (currServer.getRecordType() == RecordType.A) {
-                server = currServer.getInetResult();
-            } else if (currServer.getRecordType() == RecordType.NS) {
-                String nextServer = currServer.getTextResult();
-                DNSQuestion q = new DNSQuestion(nextServer, RecordType.A, RecordClass.IN);
-                Collection<ResourceRecord> nextServerList = cache.getCachedResults(q);
-                if (nextServerList.isEmpty()) {
-                    nextServerList = iterativeQuery(q);
+    /**
+     * Decides whether the query of a resolution is for its original question, sent to the nameservers of the name
+     * itself or of its parent, i.e., most likely to the nameservers authoritative for the name.
+     */
+    private static boolean isEnclosingZoneQuery(Resolution resolution) {
+        String name = resolution.getQuestion().getHostName();
+        String zone = resolution.getZone();
+        if (zone == null || !resolution.getQueryQuestion().equals(resolution.getQuestion())) return false;
+        if (zone.equalsIgnoreCase(name)) return true;
+        int dot = name.indexOf('.');
+        return zone.isEmpty() ? dot < 0 : dot >= 0 && name.substring(dot + 1).equalsIgnoreCase(zone);
+    }
+
+    /**
+     * Sends the query of a resolution to several servers, the next one only when no response arrived in time:
+     * <ul>
+     * <li>if the nameserver has an address in the other family, to that address as well after FAMILY_RACE_DELAY
+     * (Happy Eyeballs);</li>
+     * <li>if hedging is enabled, to a second nameserver of the zone after the hedge delay.</li>
+     * </ul>
+     * The first response received is reported to the resolution, and the other queries stop retransmitting. A query
+     * that times out, or fails with an error other than NXDOMAIN, waits for the others, and brings the next query
+     * forward. The response times are recorded in the hedging policy and in the family preference table.
+     */
+    private void sendRacing(Resolution resolution) {
+        DNSQuestion question = resolution.getQueryQuestion();
+        InetAddress primary = resolution.getServer();
+        InetAddress alternate = resolution.getAlternateServer();
+        String name = resolution.getServerName();
+        AtomicBoolean answered = new AtomicBoolean();
+        CompletionService<Set<ResourceRecord>> queries = new ExecutorCompletionService<>(queryExecutor);
+        Map<Future<Set<ResourceRecord>>, InetAddress> servers = new HashMap<>();
+        Map<InetAddress, Long> sentAt = new HashMap<>();
+        Set<InetAddress> failed = new HashSet<>();
+        long start = System.nanoTime();
+        long raceAt = alternate != null ? start + FAMILY_RACE_DELAY * 1000000L : Long.MAX_VALUE;
+        long hedgeAt = hedging != null ? start + hedging.getDelay() * 1000000L : Long.MAX_VALUE;
+        if (hedging != null) hedging.onQuery();
+        sendRace(queries, servers, sentAt, question, primary, answered);
+        DNSErrorException error = null;
+        InetAddress errorFrom = null;
+        try {
+            int pending = 1;
+            while (true) {
+                long next = Math.min(raceAt, hedgeAt);
+                if (pending == 0 && next == Long.MAX_VALUE) break;
+                Future<Set<ResourceRecord>> done = next == Long.MAX_VALUE ? queries.take()
+                        : queries.poll(Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (raceAt <= hedgeAt) {
+                        raceAt = Long.MAX_VALUE;
+                        sendRace(queries, servers, sentAt, question, alternate, answered);
+                        pending++;
+                    } else {
+                        hedgeAt = Long.MAX_VALUE;
+                        InetAddress secondary;
+                        if (hedging.mayHedge() && (secondary = resolution.hedge()) != null) {
+                            hedging.onHedge();
+                            sendRace(queries, servers, sentAt, question, secondary, answered);
+                            pending++;
+                        }
+                    }
+                    continue;
+                }
+                pending--;
+                InetAddress from = servers.get(done);
+                try {
+                    Set<ResourceRecord> records = done.get();
+                    if (records != null) {
+                        recordRace(name, primary, alternate, from, sentAt, failed);
+                        resolution.onResponse(from, records);
+                        return;
+                    }
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof DNSErrorException)) throw new IllegalStateException(e.getCause());
+                    DNSErrorException cause = (DNSErrorException) e.getCause();
+                    if (cause.getRcode() == RCODE_NXDOMAIN) {
+                        resolution.onError(from, cause);
+                        return;
+                    }
+                    if (error == null) {
+                        error = cause;
+                        errorFrom = from;
+                    }
+                }
+                failed.add(from);
+                if (pending == 0) {
+                    if (raceAt != Long.MAX_VALUE) raceAt = System.nanoTime();
+                    else if (hedgeAt != Long.MAX_VALUE) hedgeAt = System.nanoTime();
                 }
-                if (nextServerList.isEmpty()) continue;
-                server = nextServerList.iterator().next().getInetResult();
             }
-            if (tried.contains(server)) continue;
-            tried.add(server);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            answered.set(true);
+        }
+        if (families != null && name != null) {
+            for (InetAddress address : failed) {
+                if (address == primary || address == alternate) families.onFailure(name, address);
+            }
+        }
+        if (error != null) resolution.onError(errorFrom, error);
+        else resolution.onResponse(primary, null);
+    }
+
+    private void sendRace(CompletionService<Set<ResourceRecord>> queries,
+                          Map<Future<Set<ResourceRecord>>, InetAddress> servers, Map<InetAddress, Long> sentAt,
+                          DNSQuestion question, InetAddress server, AtomicBoolean answered) {
+        sentAt.put(server, System.nanoTime());
+        servers.put(queries.submit(() -> individualQueryProcess(question, server, answered)), server);
+    }
+
+    /**
+     * Records the outcome of a race won by a server: its response time in the hedging policy, and the response time
+     * of each family of the nameserver in the family preference table.
+     */
+    private void recordRace(String name, InetAddress primary, InetAddress alternate, InetAddress winner,
+                            Map<InetAddress, Long> sentAt, Set<InetAddress> failed) {
+        long now = System.nanoTime();
+        if (hedging != null) {
+            // when the hedge wins, the time it took is a lower bound of the primary's response time
+            hedging.onResponse(now - sentAt.get(primary));
+            if (winner != primary && winner != alternate) hedging.onHedgeWin();
+        }
+        if (families == null || name == null) return;
+        for (InetAddress address : new InetAddress[]{primary, alternate}) {
+            Long sent = address == null ? null : sentAt.get(address);
+            if (sent == null) continue;
+            if (address == winner) families.onResponse(name, address, now - sent);
+            else if (failed.contains(address)) families.onFailure(name, address);
+            else families.onSlow(name, address, now - sent);
+        }
+    }
 
-            Set<ResourceRecord> nextServers = individualQueryProcess(question, server);
-            if (nextServers.size() > 0) {
-                serversNotTried.addAll(serverList);
-                serverList = cache.getBestNameservers(question);
+    /**
+     * Resolves the address of a nameserver for which no glue is known. The address of the given nameserver is
+     * looked up in parallel with those of the next few nameservers in the list that also lack an address, for both
+     * A and AAAA records. The first IPv4 address obtained is returned as soon as it is known, or an IPv6 address
+     * once all lookups are complete if no nameserver has an IPv4 address; the remaining lookups keep running in the
+     * background, so their results end up in the cache and are available when the next nameserver is tried.
+     * Nameservers are not resolved more than MAX_INDIRECTION_LEVEL_NS levels deep, i.e., when resolving the address
+     * of a nameserver already required resolving that many other nameservers in a chain.
+     *
+     * @param nameserver The NS record of the nameserver currently being tried.
+     * @param others     The NS records still to be tried for the same question.
+     * @return The address of one of the nameservers, or null if none of them could be resolved.
+     */
+    private InetAddress resolveGluelessNameservers(ResourceRecord nameserver, List<ResourceRecord> others) {
+        if (nameserverDepth >= MAX_INDIRECTION_LEVEL_NS) return null;
+        List<String> names = new ArrayList<>();
+        names.add(nameserver.getTextResult());
+        for (ResourceRecord rr : others) {
+            if (names.size() >= MAX_PARALLEL_NS_LOOKUPS) break;
+            if (rr.getRecordType() != RecordType.NS || names.contains(rr.getTextResult())) continue;
+            if (cache.getCachedResults(DNSCache.AQuestion(rr.getTextResult())).isEmpty())
+                names.add(rr.getTextResult());
+        }
+
+        CompletionService<Collection<ResourceRecord>> lookups = new ExecutorCompletionService<>(executor);
+        ResolutionTrace.Span parentSpan = traceSpan;
+        ResolutionBudget parentBudget = budget;
+        int pending = 0;
+        for (String name : names) {
+            for (RecordType type : new RecordType[]{RecordType.A, RecordType.AAAA}) {
+                DNSQuestion q = new DNSQuestion(name, type, RecordClass.IN);
+                lookups.submit(() -> {
+                    DNSLookupService helper = newHelper();
+                    // the lookup is part of the parent's trace and budget, if any
+                    helper.setTracer(null);
+                    helper.budget = parentBudget;
+                    helper.nameserverDepth = nameserverDepth + 1;
+                    helper.traceSpan = parentSpan == null ? null : parentSpan.startResolution(q);
+                    String outcome = "failed";
+                    try {
+                        Collection<ResourceRecord> results = helper.iterativeQuery(q);
+                        outcome = results.size() + " records";
+                        return results;
+                    } catch (DNSErrorException e) {
+                        outcome = e.getMessage();
+                        throw e;
+                    } finally {
+                        if (helper.traceSpan != null) helper.traceSpan.end(0, outcome);
+                        helper.close();
+                    }
+                });
+                pending++;
             }
         }
-        return ans;
+
+        InetAddress ipv6 = null;
+        while (pending > 0) {
+            Collection<ResourceRecord> results;
+            try {
+                results = lookups.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ipv6;
+            } catch (ExecutionException e) {
+                results = Collections.emptySet();
+            }
+            pending--;
+            for (ResourceRecord rr : results) {
+                if (rr.getRecordType() == RecordType.A && rr.getInetResult() != null)
+                    return rr.getInetResult();
+                if (rr.getRecordType() == RecordType.AAAA && rr.getInetResult() != null && ipv6 == null)
+                    ipv6 = rr.getInetResult();
+            }
+        }
+        return ipv6;
     }
 
     /**
-     * Handles the process of sending an individual DNS query with a single question. Builds and sends the query (request)
-     * message, then receives and parses the response. Received responses that do not match the requested transaction ID
-     * are ignored. If no response is received after SO_TIMEOUT milliseconds, the request is sent again, with the same
-     * transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times, after which the function should return
-     * without changing any values. If a response is received, all of its records are added to the cache.
+     * Handles the process of sending an individual DNS query with a single question. Builds and sends the query
+     * (request) message, then receives and parses the response, through the service's transport. Received responses
+     * that do not match the requested transaction ID are ignored. If no response is received after SO_TIMEOUT
+     * milliseconds, the request is sent again, with the same transaction ID. The query should be sent at most
+     * MAX_QUERY_ATTEMPTS times, after which the function should return without changing any values. If a response is
+     * received, all of its records are added to the cache.
      * <p>
      * If the reply contains a non-zero Rcode value, then throw a DNSErrorException.
      * <p>
@@ -190,81 +898,149 @@ public class DNSLookupService {
      */
     public Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server)
             throws DNSErrorException {
+        return individualQueryProcess(question, server, null);
+    }
+
+    /**
+     * Sends an individual query, as individualQueryProcess(question, server), but stops retransmitting it once the
+     * same question is answered by another server.
+     *
+     * @param answered Set once another server answered the question, or null.
+     */
+    private Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server,
+                                                       AtomicBoolean answered) throws DNSErrorException {
         int attemptNumber = MAX_QUERY_ATTEMPTS;
+        int sent = 0;
+        String outcome = "no response";
+        ResolutionTrace.Span span = traceSpan == null ? null : traceSpan.startQuery(question, server);
 
         /* Build and Send */
-        DNSMessage responseMsg;
-        DatagramPacket packet = null;
         DNSMessage reqMsg = buildQuery(question);
-        byte[] reqMsgBuf = reqMsg.getUsed();
+        DNSMessage responseMsg = messagePool.acquire();
+        reqMsg.buffer.flip();
+        InetSocketAddress destination = new InetSocketAddress(server, serverPort);
 
         try {
-            verbose.printQueryToSend(question, server, reqMsg.getID());
-            packet = new DatagramPacket(reqMsgBuf, reqMsgBuf.length, server, DEFAULT_DNS_PORT);
-            socket.send(packet);
-            // allocate space and receive
+            // the transport receives into the pooled response buffer
             while (attemptNumber > 0) {
-                byte[] buf = new byte[512];
-                packet = new DatagramPacket(buf, buf.length);
-                try {
-                    socket.receive(packet);
-                    byte[] data = packet.getData();
-                    int dataLength = packet.getLength();
-                    responseMsg = new DNSMessage(data, dataLength);
-                    if (responseMsg.getRcode() != 0)
-                        throw new DNSErrorException("R-code is " + responseMsg.getRcode());
-
-                    if (responseMsg.getQR() && responseMsg.getID() == reqMsg.getID()) {
-                        Set<ResourceRecord> responses = processResponse(responseMsg);
-                        return responses;
-                    }
-                } catch (SocketTimeoutException e) {
-                    verbose.printQueryToSend(question, server, reqMsg.getID());
-                    packet = new DatagramPacket(reqMsgBuf, reqMsgBuf.length, server, DEFAULT_DNS_PORT);
-                    socket.send(packet);
+                // the first transmission was taken from the budget by the resolution
+                if (sent > 0 && budget != null && !budget.tryQuery()) {
+                    outcome = "budget exhausted";
+                    break;
+                }
+                if (answered != null && answered.get()) {
+                    outcome = "answered by another server";
+                    break;
+                }
+                verbose.printQueryToSend(question, server, reqMsg.getID());
+                sent++;
+                int length = exchange(reqMsg, destination, responseMsg,
+                        budget == null ? SO_TIMEOUT : budget.boundTimeout(SO_TIMEOUT));
+                if (length < 0) {
                     attemptNumber--;
+                    continue;
                 }
+                responseMsg.resetReceived(length);
+                if (responseMsg.getRcode() != 0) {
+                    outcome = "R-code is " + responseMsg.getRcode();
+                    throw new DNSErrorException(outcome, responseMsg.getRcode());
+                }
+                Set<ResourceRecord> responses = processResponse(responseMsg);
+                outcome = responses.size() + " records" + (responseMsg.getAA() ? ", authoritative" : "");
+                return responses;
             }
         } catch (IOException e) {
-            // for socket.send()
+            // the query could not be sent
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (span != null) span.end(sent, outcome);
+            messagePool.release(reqMsg);
+            messagePool.release(responseMsg);
         }
         return null;
     }
 
+    /**
+     * Sends a query once through the transport and waits for its response, after obtaining a permit from the
+     * scheduler and a token from the concurrency limiter, if there are any.
+     *
+     * @return The length of the response, or -1 if no response was received in time.
+     */
+    private int exchange(DNSMessage query, InetSocketAddress destination, DNSMessage response, int timeoutMillis)
+            throws IOException, InterruptedException {
+        if (scheduler == null) return limitedExchange(query, destination, response, timeoutMillis);
+        QueryScheduler.Permit permit = scheduler.acquire(lane);
+        try {
+            return limitedExchange(query, destination, response, timeoutMillis);
+        } finally {
+            permit.close();
+        }
+    }
+
+    private int limitedExchange(DNSMessage query, InetSocketAddress destination, DNSMessage response,
+                                int timeoutMillis) throws IOException, InterruptedException {
+        if (limiter == null) return transport.exchange(query.buffer, destination, response.buffer, timeoutMillis);
+        try (ConcurrencyLimiter.Token token = limiter.acquire(destination.getAddress())) {
+            long start = System.nanoTime();
+            int length;
+            try {
+                length = transport.exchange(query.buffer, destination, response.buffer, timeoutMillis);
+            } catch (IOException e) {
+                token.onTimeout();
+                throw e;
+            }
+            if (length < 0) token.onTimeout();
+            else token.onResponse(System.nanoTime() - start);
+            return length;
+        }
+    }
+
     /**
      * Creates a DNSMessage containing a DNS query.
      * A random transaction ID must be generated and filled in the corresponding part of the query. The query
      * must be built as an iterative (non-recursive) request for a regular query with a single question. When the
      * function returns, the message's buffer's position (`message.buffer.position`) must be equivalent
-     * to the size of the query data.
+     * to the size of the query data. The message is taken from a pool of reusable messages, to which
+     * individualQueryProcess (or releaseMessage) gives it back once the query is done.
      *
      * @param question Host name and record type/class to be used for the query.
      * @return The DNSMessage containing the query.
      */
     public DNSMessage buildQuery(DNSQuestion question) {
         short randomId = (short) random.nextInt(65536);
-        DNSMessage message = new DNSMessage(randomId);
+        DNSMessage message = messagePool.acquire();
+        message.reset(randomId);
         message.setQR(false); // this message is a query
         message.addQuestion(question);
         assert message.getUsed().length == message.buffer.position();
         return message;
     }
 
+    /**
+     * Gives a message obtained from buildQuery back to the pool, once the query it contains is no longer needed.
+     *
+     * @param message The message to be released.
+     */
+    static void releaseMessage(DNSMessage message) {
+        messagePool.release(message);
+    }
+
     /**
      * Parses and processes a response received by a nameserver.
      * If the reply contains a non-zero Rcode value, then throw a DNSErrorException.
      * Adds all resource records found in the response message to the cache.
-     * Calls methods in the verbose object at appropriate points of the processing sequence. Must be able
-     * to properly parse records of the types: A, AAAA, NS, CNAME and MX (the priority field for MX may be ignored). Any
-     * other unsupported record type must create a record object with the data represented as a hex string (see method
-     * byteArrayToHexString).
+     * Calls methods in the verbose object at appropriate points of the processing sequence. Records keep their raw
+     * data and only decode it when their result is first requested (see RecordData for the supported types); any
+     * unsupported record type has its data represented as a hex string.
      *
      * @param message The DNSMessage received from the server.
      * @return A set of all resource records received in the response.
      * @throws DNSErrorException if the Rcode value in the reply header is non-zero
      */
     public Set<ResourceRecord> processResponse(DNSMessage message) throws DNSErrorException {
-        if (message.getRcode() != 0) throw new DNSErrorException("R-code is " + message.getRcode());
+        if (message.getRcode() != 0)
+            throw new DNSErrorException("R-code is " + message.getRcode(), message.getRcode());
         int id = message.getID();
         boolean aa = message.getAA();
         int errorCode = message.getOpcode();
@@ -306,12 +1082,109 @@ public class DNSLookupService {
             // break
             // include out of bounds for message.getRR
         }
+        if (cachePeer != null) cachePeer.publish(ans);
         return ans;
     }
 
+    /**
+     * The outcome of a query sent to one upstream resolver.
+     */
+    private static class ForwardAttempt {
+        final DNSMessage response;
+        final boolean hedge;
+        int rcode = -1;
+
+        ForwardAttempt(DNSMessage response, boolean hedge) {
+            this.response = response;
+            this.hedge = hedge;
+        }
+    }
+
+    /**
+     * The attempts sharing one forwarded query. Once the caller of forwardQuery knows the outcome, an attempt that
+     * completes releases its own response, and the last one to complete releases the query.
+     */
+    private static class ForwardRace {
+        final DNSMessage query;
+        private int running;
+        private boolean answered;
+
+        ForwardRace(DNSMessage query) {
+            this.query = query;
+        }
+
+        synchronized void start() {
+            running++;
+        }
+
+        /**
+         * Records the completion of an attempt.
+         *
+         * @return True if the caller still waits for the attempt, false if its response has been released.
+         */
+        synchronized boolean complete(ForwardAttempt attempt) {
+            running--;
+            if (!answered) return true;
+            messagePool.release(attempt.response);
+            if (running == 0) messagePool.release(query);
+            return false;
+        }
+
+        /**
+         * Records that the caller no longer waits for any attempt.
+         *
+         * @return The number of attempts still running.
+         */
+        synchronized int finish() {
+            answered = true;
+            if (running == 0) messagePool.release(query);
+            return running;
+        }
+    }
+
+    /**
+     * The outcome of the lookup of one record type, when several types of a name are looked up together.
+     */
+    public static class TypeResult {
+        private final Collection<ResourceRecord> records;
+        private final DNSErrorException error;
+
+        private TypeResult(Collection<ResourceRecord> records, DNSErrorException error) {
+            this.records = records;
+            this.error = error;
+        }
+
+        /**
+         * @return The records found for the type.
+         * @throws DNSErrorException If the lookup of the type failed.
+         */
+        public Collection<ResourceRecord> getRecords() throws DNSErrorException {
+            if (error != null) throw error;
+            return records;
+        }
+    }
+
     public static class DNSErrorException extends Exception {
+        private final int rcode;
+
         public DNSErrorException(String msg) {
+            this(msg, -1);
+        }
+
+        /**
+         * @param msg   The error message.
+         * @param rcode The R-code returned by the nameserver.
+         */
+        public DNSErrorException(String msg, int rcode) {
             super(msg);
+            this.rcode = rcode;
+        }
+
+        /**
+         * @return The R-code returned by the nameserver, or -1 if the error did not come from a nameserver.
+         */
+        public int getRcode() {
+            return rcode;
         }
     }
 }
\ No newline at end of file
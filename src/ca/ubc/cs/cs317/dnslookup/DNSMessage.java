@@ -1,12 +1,11 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.IntStream;
 
 public class DNSMessage {
     public static final int MAX_DNS_MESSAGE_LENGTH = 512;
@@ -34,6 +33,7 @@ public class DNSMessage {
     public static final int QUERY = 0;
     private final Map<String, Integer> nameToPosition = new HashMap<>();
     private final Map<Integer, String> positionToName = new HashMap<>();
+    private byte[] rdataScratch;
     public final ByteBuffer buffer;
 
     /**
@@ -42,7 +42,40 @@ public class DNSMessage {
      * @param id The id of the message.
      */
     public DNSMessage(short id) {
-        this.buffer = ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH);
+        this(ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH));
+        reset(id);
+    }
+
+    /**
+     * Initializes a DNSMessage with the first length bytes of the given byte array.
+     *
+     * @param recvd  The byte array containing the received message
+     * @param length The length of the data in the array
+     */
+    public DNSMessage(byte[] recvd, int length) {
+        buffer = ByteBuffer.wrap(recvd, 0, length);
+        buffer.position(DataOffset);
+    }
+
+    /**
+     * Initializes a DNSMessage backed by the given buffer, which may be a direct buffer. The message must be
+     * reset, either as an empty message or as a received one, before it is used. This is meant for messages that
+     * are kept in a DNSMessagePool and reused.
+     *
+     * @param buffer The buffer holding the message data, at least MAX_DNS_MESSAGE_LENGTH bytes long.
+     */
+    public DNSMessage(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Turns this message into an empty message with the given id, forgetting any previous content.
+     *
+     * @param id The id of the message.
+     */
+    public void reset(short id) {
+        clearNames();
+        buffer.clear();
         short zero = 0;
         buffer.putShort(IDOffset, id);
         buffer.putShort(CMDOffset, zero);
@@ -54,16 +87,23 @@ public class DNSMessage {
     }
 
     /**
-     * Initializes a DNSMessage with the first length bytes of the given byte array.
+     * Prepares this message to be decoded after length bytes have been received into its buffer (e.g., in the
+     * array returned by buffer.array()), forgetting any previous content.
      *
-     * @param recvd  The byte array containing the received message
-     * @param length The length of the data in the array
+     * @param length The length of the received data.
      */
-    public DNSMessage(byte[] recvd, int length) {
-        buffer = ByteBuffer.wrap(recvd, 0, length);
+    public void resetReceived(int length) {
+        clearNames();
+        buffer.clear();
+        buffer.limit(length);
         buffer.position(DataOffset);
     }
 
+    private void clearNames() {
+        if (!nameToPosition.isEmpty()) nameToPosition.clear();
+        if (!positionToName.isEmpty()) positionToName.clear();
+    }
+
     /**
      * Getters and setters for the various fixed size and fixed location fields of a DNSMessage
      */
@@ -202,7 +242,16 @@ public class DNSMessage {
         if ((len & PtrMask) == PtrMask) {  // This is a pointer
             int pointer = ((len & PtrHOBMask) << PtrHOBShift) | (buffer.get() & ByteMask);
             String suffix = positionToName.get(pointer);
-            assert suffix != null;
+            if (suffix == null) {
+                // The target was not decoded as a name yet (e.g., it is inside the data of a record that was
+                // retained without being decoded), so decode it in place. Only backward pointers are allowed,
+                // which guarantees termination.
+                if (pointer >= start) throw new IllegalStateException("Invalid name pointer " + pointer);
+                int end = buffer.position();
+                buffer.position(pointer);
+                suffix = getName();
+                buffer.position(end);
+            }
             positionToName.put(start, suffix);
             return suffix;
         }
@@ -301,15 +350,13 @@ public class DNSMessage {
     /**
      * Decode and return the resource record that appears next in the message.  The current
      * position in the buffer indicates where the resource record starts.
+     * <p>
+     * Only the owner name, type, class and TTL are decoded. The record data is copied as is, except that
+     * compressed domain names it contains are expanded, so that the record can decode it later on its own.
      *
      * @return The decoded resource record
      */
     public ResourceRecord getRR() {
-        String cname;
-        String mxname;
-        String nsname;
-        byte[] rdata;
-        ResourceRecord rr;
         String owner = getName();
         short type = buffer.getShort();
         short klass = buffer.getShort();
@@ -319,51 +366,80 @@ public class DNSMessage {
         DNSQuestion question = new DNSQuestion(owner, rtype, rklass);
         int rdatalen = buffer.getShort() & ShortMask;
         int startpos = buffer.position();
-        if (rtype == RecordType.A && rklass == RecordClass.IN) {
-            rdata = new byte[4];
-            buffer.get(rdata, 0, 4);
-            InetAddress address;
-            try {
-                address = InetAddress.getByAddress(rdata);
-                rr = new ResourceRecord(question, ttl, address);
-            } catch (UnknownHostException e) {
-                rr = null;
+        int length;
+        switch (rtype) {
+            case NS:
+            case CNAME:
+            case PTR:
+                length = copyName(0);
+                break;
+            case MX:
+                length = copyName(copyBytes(0, 2));
+                break;
+            case SRV:
+                length = copyName(copyBytes(0, 6));
+                break;
+            case SOA:
+                length = copyBytes(copyName(copyName(0)), 20);
+                break;
+            default:
+                length = copyBytes(0, rdatalen);
+                break;
+        }
+        buffer.position(startpos + rdatalen);
+        return new ResourceRecord(question, ttl, Arrays.copyOf(rdataScratch, length));
+    }
+
+    /**
+     * Copies bytes from the current position of the buffer into the record data scratch area.
+     *
+     * @param offset Offset in the scratch area at which the bytes are copied.
+     * @param count  Number of bytes to copy.
+     * @return The offset in the scratch area following the copied bytes.
+     */
+    private int copyBytes(int offset, int count) {
+        ensureRDataCapacity(offset + count);
+        buffer.get(rdataScratch, offset, count);
+        return offset + count;
+    }
+
+    /**
+     * Copies the name at the current position of the buffer into the record data scratch area, following
+     * compression pointers so that the copy is uncompressed. The buffer is left positioned after the name as it
+     * appears in the message.
+     *
+     * @param offset Offset in the scratch area at which the name is copied.
+     * @return The offset in the scratch area following the copied name.
+     */
+    private int copyName(int offset) {
+        int pos = buffer.position();
+        int end = -1;
+        while (true) {
+            int len = buffer.get(pos) & ByteMask;
+            if ((len & PtrMask) == PtrMask) {
+                int pointer = ((len & PtrHOBMask) << PtrHOBShift) | (buffer.get(pos + 1) & ByteMask);
+                if (pointer >= pos) throw new IllegalStateException("Invalid name pointer " + pointer);
+                if (end < 0) end = pos + 2;
+                pos = pointer;
+                continue;
             }
-        } else if (rtype == RecordType.AAAA && rklass == RecordClass.IN) {
-            rdata = new byte[16];
-            buffer.get(rdata, 0, 16);
-            InetAddress address;
-            try {
-                address = InetAddress.getByAddress(rdata);
-                rr = new ResourceRecord(question, ttl, address);
-            } catch (UnknownHostException e) {
-                rr = null;
+            ensureRDataCapacity(offset + len + 1);
+            rdataScratch[offset++] = (byte) len;
+            pos++;
+            if (len == 0) break;
+            for (int i = 0; i < len; i++) {
+                rdataScratch[offset++] = buffer.get(pos++);
             }
-        } else if (rtype == RecordType.CNAME) {
-            cname = getName();
-            rr = new ResourceRecord(question, ttl, cname);
-        } else if (rtype == RecordType.MX) {
-            //noinspection unused We ignore mx preference fields
-            int pref = buffer.getShort() & ShortMask;
-            mxname = getName();
-            rr = new ResourceRecord(question, ttl, mxname);
-        } else if (rtype == RecordType.NS) {
-            nsname = getName();
-            rr = new ResourceRecord(question, ttl, nsname);
-        } else if (rtype == RecordType.SOA) {
-            rdata = new byte[rdatalen];
-            buffer.get(rdata, 0, rdatalen);
-            String hex = byteArrayToHexString(rdata);
-            rr = new ResourceRecord(question, ttl, hex);
-        } else {
-            rdata = new byte[rdatalen];
-            buffer.get(rdata, 0, rdatalen);
-            String hex = byteArrayToHexString(rdata);
-            rr = new ResourceRecord(question, ttl, hex);
         }
-        int endpos = buffer.position();
-        assert endpos - startpos == rdatalen;
-        return rr;
+        buffer.position(end < 0 ? pos : end);
+        return offset;
+    }
+
+    private void ensureRDataCapacity(int capacity) {
+        if (rdataScratch == null)
+            rdataScratch = new byte[Math.max(capacity, MAX_DNS_MESSAGE_LENGTH)];
+        else if (rdataScratch.length < capacity)
+            rdataScratch = Arrays.copyOf(rdataScratch, Math.max(capacity, rdataScratch.length * 2));
     }
 
     /**
@@ -374,7 +450,7 @@ public class DNSMessage {
      * @return A string containing the hex value of every byte in the data.
      */
     public static String byteArrayToHexString(byte[] data) {
-        return IntStream.range(0, data.length).mapToObj(i -> String.format("%02x", data[i])).reduce("", String::concat);
+        return RecordData.toHexString(data);
     }
 
     /**
@@ -463,7 +539,9 @@ public class DNSMessage {
         buffer.putInt((int) rr.getRemainingTTL());
         int startpos = buffer.position();
         buffer.putShort((short) 0);
-        if (rr.getRecordType() == RecordType.A && rr.getRecordClass() == RecordClass.IN) {
+        if (rr.getRData() != null) {
+            buffer.put(rr.getRData());
+        } else if (rr.getRecordType() == RecordType.A && rr.getRecordClass() == RecordClass.IN) {
             InetAddress address = rr.getInetResult();
             rdata = address.getAddress();
             assert rdata.length == 4;
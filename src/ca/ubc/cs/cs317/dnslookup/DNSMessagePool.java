@@ -0,0 +1,58 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of DNSMessage objects and their buffers, so that queries and responses can be built and received without
+ * allocating a new buffer (and the maps used for name compression) for every packet. Messages must be reset before
+ * use, and given back with release() once the caller no longer needs them; records decoded from a message do not
+ * refer to its buffer, so they remain valid after the message is released.
+ */
+public class DNSMessagePool {
+
+    private final Deque<DNSMessage> free = new ArrayDeque<>();
+    private final int maxPooled;
+    private final boolean direct;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param maxPooled Maximum number of released messages kept for reuse; extra messages are left to the GC.
+     * @param direct    true if new messages must use direct buffers (only usable with channel-based I/O, since
+     *                  DatagramPacket requires an array).
+     */
+    public DNSMessagePool(int maxPooled, boolean direct) {
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns a message from the pool, or a new one if the pool is empty. The content of the message is undefined
+     * until it is reset.
+     *
+     * @return A message of MAX_DNS_MESSAGE_LENGTH bytes.
+     */
+    public DNSMessage acquire() {
+        DNSMessage message;
+        synchronized (this) {
+            message = free.pollFirst();
+        }
+        if (message != null) return message;
+        return new DNSMessage(direct ? ByteBuffer.allocateDirect(DNSMessage.MAX_DNS_MESSAGE_LENGTH)
+                : ByteBuffer.allocate(DNSMessage.MAX_DNS_MESSAGE_LENGTH));
+    }
+
+    /**
+     * Gives a message back to the pool. The caller must not use the message afterwards.
+     *
+     * @param message A message previously obtained from acquire(), or null (ignored).
+     */
+    public void release(DNSMessage message) {
+        if (message == null) return;
+        synchronized (this) {
+            if (free.size() < maxPooled) free.addFirst(message);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The means by which DNSLookupService exchanges messages with nameservers. The default implementation sends UDP
+ * datagrams (UdpTransport); others record the exchanges of a real transport (RecordingTransport) or play recorded
+ * exchanges back without any network (ReplayTransport). Implementations must allow exchanges from several threads
+ * at once, since nameserver addresses are resolved in parallel.
+ */
+public interface DNSTransport extends Closeable {
+
+    /**
+     * Sends a query once and waits for the response carrying the same transaction ID.
+     *
+     * @param query         The query, between position 0 and the buffer's limit. The buffer is not modified.
+     * @param server        The address and port of the nameserver.
+     * @param response      Buffer into which the response is written, starting at position 0; it is cleared first.
+     * @param timeoutMillis Time to wait for the response, in milliseconds.
+     * @return The length of the response, or -1 if no response was received in time.
+     * @throws IOException If the query cannot be sent.
+     */
+    int exchange(ByteBuffer query, InetSocketAddress server, ByteBuffer response, int timeoutMillis)
+            throws IOException;
+
+    /**
+     * Returns the transaction ID of a message held in a buffer.
+     *
+     * @param message A buffer containing a DNS message.
+     * @return The transaction ID of the message.
+     */
+    static int transactionId(ByteBuffer message) {
+        return message.getShort(DNSMessage.IDOffset) & DNSMessage.ShortMask;
+    }
+}
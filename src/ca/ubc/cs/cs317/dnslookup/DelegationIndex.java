@@ -0,0 +1,192 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+
+/**
+ * An index of known zone cuts, used to find the closest enclosing zone of a name without building
+ * every suffix of that name. It is a trie keyed by the labels of a name in reverse order (so "www.cs.ubc.ca" is
+ * stored under "ca", then "ubc", then "cs", then "www"). Each node that is the apex of a known zone holds the NS
+ * records for that zone; the addresses of the nameservers are looked up in the cache itself.
+ * <p>
+ * Labels are compared in place against the queried name, and the children of a node are stored in a small
+ * open-addressing table, so that a lookup does not allocate any object. Expired records are skipped during the
+ * lookup and physically removed by prune().
+ */
+class DelegationIndex {
+
+    private static final int INITIAL_CHILDREN = 4;
+
+    private final Node root = new Node(null, "");
+
+    /**
+     * A zone cut, i.e., the apex of a zone for which nameservers are known.
+     */
+    static class Node {
+        private final Node parent;
+        private final String label;
+        private final String zone;
+        private final Set<ResourceRecord> nameservers = new HashSet<>();
+        private Node[] children;
+        private int childCount;
+
+        private Node(Node parent, String label) {
+            this.parent = parent;
+            this.label = label;
+            if (parent == null || parent.zone.isEmpty())
+                this.zone = label;
+            else
+                this.zone = label + "." + parent.zone;
+        }
+
+        /**
+         * @return The name of the zone whose apex is this node (empty string for the root).
+         */
+        String getZone() {
+            return zone;
+        }
+
+        /**
+         * @return The NS records known for this zone, including records that may have expired.
+         */
+        Set<ResourceRecord> getNameservers() {
+            return nameservers;
+        }
+
+        private boolean hasLiveNameserver() {
+            for (ResourceRecord rr : nameservers) {
+                if (!rr.isExpired()) return true;
+            }
+            return false;
+        }
+
+        private Node findChild(String name, int start, int end) {
+            if (children == null) return null;
+            int mask = children.length - 1;
+            int i = labelHash(name, start, end) & mask;
+            int len = end - start;
+            for (Node child = children[i]; child != null; child = children[i = (i + 1) & mask]) {
+                if (child.label.length() == len && child.label.regionMatches(true, 0, name, start, len))
+                    return child;
+            }
+            return null;
+        }
+
+        private Node addChild(String label) {
+            if (children == null) {
+                children = new Node[INITIAL_CHILDREN];
+            } else if ((childCount + 1) * 2 > children.length) {
+                Node[] old = children;
+                children = new Node[old.length * 2];
+                for (Node child : old) {
+                    if (child != null) insertChild(child);
+                }
+            }
+            Node child = new Node(this, label);
+            insertChild(child);
+            childCount++;
+            return child;
+        }
+
+        private void insertChild(Node child) {
+            int mask = children.length - 1;
+            int i = labelHash(child.label, 0, child.label.length()) & mask;
+            while (children[i] != null) i = (i + 1) & mask;
+            children[i] = child;
+        }
+
+        private void removeChild(Node child) {
+            Node[] old = children;
+            children = childCount == 1 ? null : new Node[old.length];
+            childCount--;
+            if (children == null) return;
+            for (Node other : old) {
+                if (other != null && other != child) insertChild(other);
+            }
+        }
+    }
+
+    /**
+     * Removes all zone cuts from the index.
+     */
+    void clear() {
+        root.children = null;
+        root.childCount = 0;
+        root.nameservers.clear();
+    }
+
+    /**
+     * Adds an NS record to the index, creating the zone cut for its owner name if needed.
+     *
+     * @param record An NS record. The record instance is kept, replacing any equal one, so later updates to its
+     *               expiration are seen.
+     */
+    void addNameserver(ResourceRecord record) {
+        Node node = getOrCreate(record.getHostName());
+        node.nameservers.remove(record);
+        node.nameservers.add(record);
+    }
+
+    /**
+     * Finds the deepest zone cut enclosing the given name for which at least one unexpired NS record is known.
+     * The root is returned if no better zone cut is known.
+     *
+     * @param name A fully-qualified domain name, without a trailing dot.
+     * @return The closest enclosing zone cut.
+     */
+    Node findClosest(String name) {
+        Node best = root;
+        Node node = root;
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.') end--;
+        while (end > 0 && node != null) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.findChild(name, start, end);
+            if (node != null && node.hasLiveNameserver()) best = node;
+            end = start - 1;
+        }
+        return best;
+    }
+
+    /**
+     * Removes expired records from every zone cut, and removes zone cuts (other than the root) that no longer have
+     * any nameserver.
+     */
+    void prune() {
+        prune(root);
+    }
+
+    private void prune(Node node) {
+        node.nameservers.removeIf(ResourceRecord::isExpired);
+        if (node.children != null) {
+            for (Node child : node.children.clone()) {
+                if (child != null) prune(child);
+            }
+        }
+        if (node.parent != null && node.children == null && node.nameservers.isEmpty())
+            node.parent.removeChild(node);
+    }
+
+    private Node getOrCreate(String name) {
+        Node node = root;
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.') end--;
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            Node child = node.findChild(name, start, end);
+            node = child != null ? child : node.addChild(name.substring(start, end).toLowerCase());
+            end = start - 1;
+        }
+        return node;
+    }
+
+    /**
+     * Case-insensitive hash of the label stored in name[start, end).
+     */
+    private static int labelHash(String name, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(name.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,107 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, for each nameserver with both an IPv4 and an IPv6 address, which address family responds faster, so
+ * that resolutions query the nameserver over that family first, and only race the other family when the first is
+ * slow to respond (Happy Eyeballs, RFC 8305). Until both families of a nameserver are measured, IPv6 is queried
+ * first, as the RFC recommends.
+ * <p>
+ * Each family of a nameserver keeps a smoothed response time. A family that lost a race is charged the time it had
+ * been waiting, which is a lower bound of its response time, and a family whose query failed is charged
+ * FAILURE_PENALTY. The table is shared by all lookups, and keeps the MAX_ENTRIES nameservers used most recently.
+ */
+public class FamilyPreference {
+
+    private static final double GAIN = 0.25;
+    private static final long FAILURE_PENALTY = 1000000000L;
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final FamilyPreference instance = new FamilyPreference();
+
+    private final Map<String, Times> entries = new LinkedHashMap<String, Times>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Times> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public static FamilyPreference getInstance() {
+        return instance;
+    }
+
+    /**
+     * Decides which family to query a nameserver over first, when it has addresses of both families.
+     *
+     * @param nameserver The host name of the nameserver.
+     * @return true if the nameserver must be queried over IPv6 first.
+     */
+    public synchronized boolean prefersIPv6(String nameserver) {
+        Times entry = entries.get(nameserver.toLowerCase());
+        if (entry == null || !entry.measured[0] || !entry.measured[1]) return true;
+        return entry.srttNanos[0] <= entry.srttNanos[1];
+    }
+
+    /**
+     * Records the time a nameserver took to respond over one of its addresses.
+     */
+    public synchronized void onResponse(String nameserver, InetAddress address, long rttNanos) {
+        update(nameserver, address, rttNanos);
+    }
+
+    /**
+     * Records that a query to a nameserver was answered over another address while this one had been waiting for
+     * its response.
+     */
+    public synchronized void onSlow(String nameserver, InetAddress address, long waitedNanos) {
+        Times entry = entries.get(nameserver.toLowerCase());
+        int family = family(address);
+        if (entry != null && entry.measured[family] && entry.srttNanos[family] >= waitedNanos) return;
+        update(nameserver, address, waitedNanos);
+    }
+
+    /**
+     * Records that a query to a nameserver failed over one of its addresses.
+     */
+    public synchronized void onFailure(String nameserver, InetAddress address) {
+        update(nameserver, address, FAILURE_PENALTY);
+    }
+
+    private void update(String nameserver, InetAddress address, long sampleNanos) {
+        Times entry = entries.computeIfAbsent(nameserver.toLowerCase(), k -> new Times());
+        int family = family(address);
+        if (!entry.measured[family]) {
+            entry.srttNanos[family] = sampleNanos;
+            entry.measured[family] = true;
+        } else {
+            entry.srttNanos[family] += GAIN * (sampleNanos - entry.srttNanos[family]);
+        }
+    }
+
+    private static int family(InetAddress address) {
+        return address instanceof Inet6Address ? 0 : 1;
+    }
+
+    /**
+     * @return The number of nameservers with measurements.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void reset() {
+        entries.clear();
+    }
+
+    /**
+     * The smoothed response times of a nameserver, indexed by family: IPv6 first, then IPv4.
+     */
+    private static class Times {
+        final double[] srttNanos = new double[2];
+        final boolean[] measured = new boolean[2];
+    }
+}
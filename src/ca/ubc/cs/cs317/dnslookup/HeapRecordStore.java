@@ -0,0 +1,62 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * The default store of a DNSCache: a map from each question to the set of its records, on the heap. Records are
+ * kept as they are added, so a record updated in the store is the same instance as the one found in the delegation
+ * index.
+ */
+class HeapRecordStore implements RecordStore {
+
+    private final Map<DNSQuestion, Set<ResourceRecord>> records = new HashMap<>();
+
+    @Override
+    public Set<ResourceRecord> get(DNSQuestion question) {
+        Set<ResourceRecord> results = records.get(question);
+        if (results == null) return null;
+        results.removeIf(ResourceRecord::isExpired);
+        if (!results.isEmpty()) return results;
+        records.remove(question);
+        return null;
+    }
+
+    @Override
+    public Set<ResourceRecord> add(ResourceRecord record) {
+        Set<ResourceRecord> results = records.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+
+        // Find a record for the same question containing the same result
+        ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
+        if (oldRecord == null)
+            results.add(record);
+        else
+            oldRecord.update(record);
+        return results;
+    }
+
+    @Override
+    public void prune() {
+        Iterator<Set<ResourceRecord>> it = records.values().iterator();
+        while (it.hasNext()) {
+            Set<ResourceRecord> results = it.next();
+            results.removeIf(ResourceRecord::isExpired);
+            if (results.isEmpty()) it.remove();
+        }
+    }
+
+    @Override
+    public void clear() {
+        records.clear();
+    }
+
+    @Override
+    public void forEach(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
+        records.forEach(consumer);
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+}
@@ -0,0 +1,146 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Decides when a DNSLookupService resolving names iteratively hedges a query, i.e., sends the same question to a
+ * second nameserver of the zone while the first one has not responded yet, and takes whichever response arrives
+ * first. This bounds the latency of a lookup by that of the faster of two servers, instead of the timeout of the
+ * slow one.
+ * <p>
+ * The hedge delay is a percentile (the 95th by default) of the response times of the last WINDOW queries, so only
+ * the slowest queries are hedged. The number of hedges is capped at a fraction of the queries sent (10% by default),
+ * with a token bucket: each query adds that fraction of a token, up to MAX_BURST tokens, and each hedge takes a whole
+ * token. When many servers are slow at once, the cap keeps hedging from doubling the load.
+ */
+public class HedgePolicy {
+
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_EVERY = 16;
+    private static final long MIN_DELAY = 10;
+    private static final long MAX_DELAY = 5000;
+    private static final long INITIAL_DELAY = 500;
+    private static final double MAX_BURST = 10;
+
+    private final double percentile;
+    private final double maxHedgeRatio;
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private int next;
+    private long delay = INITIAL_DELAY;
+    private double tokens = MAX_BURST;
+    private long queries;
+    private long hedged;
+    private long hedgeWins;
+    private long capped;
+
+    /**
+     * Creates a policy hedging the queries slower than the 95th percentile, for at most 10% of the queries.
+     */
+    public HedgePolicy() {
+        this(0.95, 0.1);
+    }
+
+    /**
+     * @param percentile    Fraction of the queries expected to respond before they are hedged, e.g., 0.95.
+     * @param maxHedgeRatio Maximum number of hedges per query sent, e.g., 0.1.
+     */
+    public HedgePolicy(double percentile, double maxHedgeRatio) {
+        if (percentile <= 0 || percentile >= 1) throw new IllegalArgumentException("Invalid percentile " + percentile);
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) throw new IllegalArgumentException("Invalid ratio " + maxHedgeRatio);
+        this.percentile = percentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * @return How long to wait for a response before hedging a query, in milliseconds.
+     */
+    public synchronized long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Counts a query about to be sent, which earns a fraction of a hedge.
+     */
+    synchronized void onQuery() {
+        queries++;
+        tokens = Math.min(MAX_BURST, tokens + maxHedgeRatio);
+    }
+
+    /**
+     * Records the time a nameserver took to respond to a query.
+     *
+     * @param rttNanos The response time, in nanoseconds.
+     */
+    synchronized void onResponse(long rttNanos) {
+        samples[next] = rttNanos;
+        next = (next + 1) % WINDOW;
+        if (sampleCount < WINDOW) sampleCount++;
+        if (sampleCount >= MIN_SAMPLES && (sampleCount < WINDOW || next % RECOMPUTE_EVERY == 0)) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            long millis = sorted[Math.min(sampleCount - 1, (int) (percentile * sampleCount))] / 1000000;
+            delay = Math.max(MIN_DELAY, Math.min(MAX_DELAY, millis));
+        }
+    }
+
+    /**
+     * Checks the rate cap before a query is hedged.
+     *
+     * @return true if the query may be hedged, false if too many queries were hedged recently.
+     */
+    synchronized boolean mayHedge() {
+        if (tokens >= 1) return true;
+        capped++;
+        return false;
+    }
+
+    /**
+     * Counts a hedge sent, which is taken from the rate cap.
+     */
+    synchronized void onHedge() {
+        tokens--;
+        hedged++;
+    }
+
+    synchronized void onHedgeWin() {
+        hedgeWins++;
+    }
+
+    /**
+     * @return The number of queries sent, not counting hedges.
+     */
+    public synchronized long getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return The number of queries sent to a second nameserver because the first one was slow to respond.
+     */
+    public synchronized long getHedged() {
+        return hedged;
+    }
+
+    /**
+     * @return The number of hedged queries answered first by the second nameserver.
+     */
+    public synchronized long getHedgeWins() {
+        return hedgeWins;
+    }
+
+    /**
+     * @return The number of slow queries not hedged because of the rate cap.
+     */
+    public synchronized long getCapped() {
+        return capped;
+    }
+
+    public synchronized void report(PrintStream out) {
+        out.printf("Hedge delay: %d ms (p%.0f of %d responses), queries: %d%n", delay, percentile * 100,
+                sampleCount, queries);
+        out.printf("Hedged: %d (%d won by the second nameserver), not hedged because of the rate cap: %d%n",
+                hedged, hedgeWins, capped);
+    }
+}
@@ -0,0 +1,234 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves host names to addresses, and addresses to host names, for applications that would otherwise use
+ * InetAddress.getByName and the platform resolver. It offers the two operations of a JDK InetAddressResolver
+ * (lookupByName and lookupByAddress), and can back one directly on JDK 18 and later.
+ * <p>
+ * Lookups are answered from the DNSCache when possible, so they respect the TTL of each record. Otherwise the A and
+ * AAAA records of a name are resolved at the same time by a ResolverEventLoop, and concurrent lookups of the same
+ * question share a single resolution.
+ */
+public class HostResolver implements Closeable {
+
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final long DEFAULT_TIMEOUT = 10000;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final ResolverEventLoop loop;
+    private final ConcurrentMap<DNSQuestion, CompletableFuture<Collection<ResourceRecord>>> inFlight =
+            new ConcurrentHashMap<>();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private long timeoutMillis = DEFAULT_TIMEOUT;
+
+    /**
+     * Creates a resolver using the settings (server port, budget, concurrency limit, ...) of a lookup service.
+     *
+     * @param service The lookup service whose settings are used.
+     * @throws IOException If the event loop cannot be started.
+     */
+    public HostResolver(DNSLookupService service) throws IOException {
+        this.loop = new ResolverEventLoop(service);
+    }
+
+    /**
+     * Sets the time a lookup may take before it fails.
+     *
+     * @param timeoutMillis The timeout, in milliseconds (DEFAULT_TIMEOUT unless set).
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns all the addresses of a host, IPv4 addresses first, like InetAddress.getAllByName.
+     *
+     * @param host A host name, or an address literal.
+     * @return The addresses of the host, each carrying the host name.
+     * @throws UnknownHostException If the host has no address, or could not be resolved.
+     */
+    public InetAddress[] getAllByName(String host) throws UnknownHostException {
+        return lookupByName(host, true, true).toArray(new InetAddress[0]);
+    }
+
+    /**
+     * Returns the first address of a host, like InetAddress.getByName.
+     */
+    public InetAddress getByName(String host) throws UnknownHostException {
+        return lookupByName(host, true, true).get(0);
+    }
+
+    /**
+     * Returns the addresses of a host, in the families requested. When both families are requested, the A and AAAA
+     * records are resolved concurrently.
+     *
+     * @param host A host name, or an address literal.
+     * @param ipv4 true if IPv4 addresses are requested.
+     * @param ipv6 true if IPv6 addresses are requested.
+     * @return The addresses of the host, IPv4 addresses first, each carrying the host name.
+     * @throws UnknownHostException If the host has no address in the families requested, or could not be resolved.
+     */
+    public List<InetAddress> lookupByName(String host, boolean ipv4, boolean ipv6) throws UnknownHostException {
+        if (!ipv4 && !ipv6) throw new IllegalArgumentException("No address family requested");
+        if (host.endsWith(".")) host = host.substring(0, host.length() - 1);
+        if (IPV4_LITERAL.matcher(host).matches() || host.indexOf(':') >= 0) {
+            // literals are parsed without any lookup, and a malformed IPv4 literal (e.g., 999.1.1.1) is not a name
+            InetAddress address;
+            if (host.indexOf(':') >= 0) {
+                address = InetAddress.getByName(host);
+            } else {
+                try {
+                    address = InetAddress.getByAddress(RecordData.fromText(RecordType.A, host));
+                } catch (IllegalArgumentException e) {
+                    throw new UnknownHostException(host);
+                }
+            }
+            if ((address instanceof Inet4Address ? ipv4 : ipv6)) return Collections.singletonList(address);
+            throw new UnknownHostException(host);
+        }
+        lookups.incrementAndGet();
+
+        CompletableFuture<Collection<ResourceRecord>> a = ipv4 ? lookup(host, RecordType.A) : null;
+        CompletableFuture<Collection<ResourceRecord>> aaaa = ipv6 ? lookup(host, RecordType.AAAA) : null;
+        List<InetAddress> addresses = new ArrayList<>();
+        UnknownHostException failure = null;
+        for (CompletableFuture<Collection<ResourceRecord>> future : Arrays.asList(a, aaaa)) {
+            if (future == null) continue;
+            try {
+                addAddresses(host, await(host, future), addresses);
+            } catch (UnknownHostException e) {
+                failure = e;
+            }
+        }
+        if (!addresses.isEmpty()) return addresses;
+        throw failure != null ? failure : new UnknownHostException(host);
+    }
+
+    /**
+     * Returns the host name of an address, from its PTR record.
+     *
+     * @param address An IPv4 or IPv6 address.
+     * @return The host name the address points to.
+     * @throws UnknownHostException If the address has no PTR record, or could not be resolved.
+     */
+    public String lookupByAddress(InetAddress address) throws UnknownHostException {
+        lookups.incrementAndGet();
+        String name = reverseName(address);
+        for (ResourceRecord rr : await(name, lookup(name, RecordType.PTR))) {
+            if (rr.getRecordType() == RecordType.PTR) return rr.getTextResult();
+        }
+        throw new UnknownHostException(address.getHostAddress());
+    }
+
+    /**
+     * Starts the resolution of a question, unless it is answered by the cache or already being resolved. Cached
+     * records only answer the question if they include a record of its type, not just the CNAME of the name.
+     */
+    private CompletableFuture<Collection<ResourceRecord>> lookup(String name, RecordType type) {
+        DNSQuestion question = new DNSQuestion(name, type, RecordClass.IN);
+        Collection<ResourceRecord> cached = cache.getFinalAnswer(question);
+        if (cached == null) {
+            List<ResourceRecord> results = cache.getCachedResults(question);
+            if (DNSLookupService.containsType(results, type)) cached = results;
+        }
+        if (cached != null) {
+            cacheHits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        boolean[] started = new boolean[1];
+        CompletableFuture<Collection<ResourceRecord>> future = inFlight.computeIfAbsent(question, q -> {
+            started[0] = true;
+            return loop.resolve(q, MAX_INDIRECTION_LEVEL);
+        });
+        if (started[0]) future.whenComplete((results, e) -> inFlight.remove(question, future));
+        else shared.incrementAndGet();
+        return future;
+    }
+
+    private Collection<ResourceRecord> await(String name, CompletableFuture<Collection<ResourceRecord>> future)
+            throws UnknownHostException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(name + ": interrupted");
+        } catch (TimeoutException e) {
+            throw new UnknownHostException(name + ": timed out");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DNSLookupService.DNSErrorException &&
+                    ((DNSLookupService.DNSErrorException) cause).getRcode() == RCODE_NXDOMAIN)
+                throw new UnknownHostException(name);
+            throw new UnknownHostException(name + ": " + cause.getMessage());
+        }
+    }
+
+    private static void addAddresses(String host, Collection<ResourceRecord> records, List<InetAddress> addresses)
+            throws UnknownHostException {
+        for (ResourceRecord rr : records) {
+            InetAddress address = rr.getInetResult();
+            if (address == null || (rr.getRecordType() != RecordType.A && rr.getRecordType() != RecordType.AAAA))
+                continue;
+            address = InetAddress.getByAddress(host, address.getAddress());
+            if (!addresses.contains(address)) addresses.add(address);
+        }
+    }
+
+    /**
+     * Builds the name under in-addr.arpa or ip6.arpa whose PTR record gives the host name of an address.
+     */
+    static String reverseName(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        StringBuilder name = new StringBuilder();
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes.length == 4) {
+                name.append(bytes[i] & 0xFF).append('.');
+            } else {
+                name.append(Character.forDigit(bytes[i] & 0xF, 16)).append('.')
+                        .append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append('.');
+            }
+        }
+        return name.append(bytes.length == 4 ? "in-addr.arpa" : "ip6.arpa").toString();
+    }
+
+    /**
+     * @return The number of name and address lookups made, excluding address literals.
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * @return The number of questions answered by the cache without any resolution.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return The number of questions that joined a resolution already in progress.
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    @Override
+    public void close() {
+        loop.close();
+    }
+}
@@ -0,0 +1,461 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records answered locally, without any query on the network, loaded from hosts files and zone files. Given to
+ * DNSCache.setLocalData, the local data is consulted before anything cached: a name of the local data is answered
+ * with its records (or with no record, if it has none of the type asked), and a name that does not exist in a zone
+ * loaded from a zone file is a name error, so names of local zones never leak to the network.
+ * <p>
+ * Hosts files have the usual format ("address name [alias...]"), and give A or AAAA records for every name, and a PTR
+ * record for every address pointing to its first name. Zone files are in master file format (RFC 1035, section 5),
+ * with $ORIGIN, $TTL, relative names, "@" and records spanning several lines in parentheses; the owner of the SOA
+ * record is the apex of the zone.
+ * <p>
+ * The data is kept in a compact index rather than as ResourceRecord objects: owner names are sorted in an array
+ * searched by binary search, and the records of each owner are stored in parallel arrays of types, TTLs and raw
+ * data, sorted by type. The owner names are also kept with their labels in reverse order, sorted, so that the names
+ * below a name are found by a binary search for their common prefix. Records are created when a lookup returns
+ * them, with their TTL counting from then. A LocalData is never modified once built: new data is loaded into a new
+ * instance, which replaces the old one in the cache at once (see Reloader), so lookups never see partly loaded data.
+ */
+public class LocalData {
+
+    private static final int HOSTS_TTL = 300;
+    private static final int DEFAULT_TTL = 3600;
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    private final String[] owners;
+    private final String[] reversedOwners;
+    private final int[] firstRecord;
+    private final RecordType[] types;
+    private final int[] ttls;
+    private final byte[][] rdata;
+    private final Set<String> zones;
+
+    private LocalData(Builder builder) {
+        List<Entry> entries = builder.entries;
+        entries.sort(Comparator.comparing((Entry e) -> e.owner).thenComparing(e -> e.type));
+        List<String> names = new ArrayList<>();
+        int[] first = new int[entries.size() + 1];
+        RecordType[] types = new RecordType[entries.size()];
+        int[] ttls = new int[entries.size()];
+        byte[][] rdata = new byte[entries.size()][];
+        int n = 0;
+        for (Entry entry : entries) {
+            if (names.isEmpty() || !entry.owner.equals(names.get(names.size() - 1))) {
+                first[names.size()] = n;
+                names.add(entry.owner);
+            } else if (isDuplicate(entry, types, rdata, first[names.size() - 1], n)) {
+                // the same record given twice, e.g., by a hosts file and a zone file
+                continue;
+            }
+            types[n] = entry.type;
+            ttls[n] = entry.ttl;
+            rdata[n] = entry.rdata;
+            n++;
+        }
+        first[names.size()] = n;
+        this.owners = names.toArray(new String[0]);
+        this.reversedOwners = new String[owners.length];
+        for (int i = 0; i < owners.length; i++) reversedOwners[i] = reverseLabels(owners[i]);
+        Arrays.sort(reversedOwners);
+        this.firstRecord = Arrays.copyOf(first, names.size() + 1);
+        this.types = Arrays.copyOf(types, n);
+        this.ttls = Arrays.copyOf(ttls, n);
+        this.rdata = Arrays.copyOf(rdata, n);
+        this.zones = new HashSet<>(builder.zones);
+    }
+
+    private static boolean isDuplicate(Entry entry, RecordType[] types, byte[][] rdata, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (types[i] == entry.type && Arrays.equals(rdata[i], entry.rdata)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Loads local data from files.
+     *
+     * @param hostsFiles Files in hosts format.
+     * @param zoneFiles  Files in master file format.
+     * @return The local data of all the files.
+     * @throws IOException If a file cannot be read, or is not valid.
+     */
+    public static LocalData load(Collection<File> hostsFiles, Collection<File> zoneFiles) throws IOException {
+        Builder builder = new Builder();
+        for (File file : hostsFiles) {
+            try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                builder.addHosts(in);
+            } catch (IOException e) {
+                throw new IOException(file + ": " + e.getMessage(), e);
+            }
+        }
+        for (File file : zoneFiles) {
+            try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                builder.addZone(in);
+            } catch (IOException e) {
+                throw new IOException(file + ": " + e.getMessage(), e);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Answers a question from the local data. A CNAME record of the name is returned along with the records of its
+     * canonical name, if that name is local as well.
+     *
+     * @param question The question.
+     * @return The records answering the question, possibly none, or null if the name is not part of the local data.
+     */
+    public List<ResourceRecord> lookup(DNSQuestion question) {
+        String name = normalize(question.getHostName());
+        if (question.getRecordClass() != RecordClass.IN || !isLocal(name)) return null;
+        List<ResourceRecord> records = new ArrayList<>();
+        // the records of the name asked keep its spelling, as in a response
+        String ownerName = question.getHostName();
+        for (int i = 0; i < MAX_CNAME_CHAIN; i++) {
+            int owner = Arrays.binarySearch(owners, name);
+            if (owner < 0) break;
+            if (addRecords(records, owner, ownerName, question.getRecordType()) ||
+                    question.getRecordType() == RecordType.CNAME ||
+                    !addRecords(records, owner, ownerName, RecordType.CNAME)) break;
+            name = normalize(records.get(records.size() - 1).getTextResult());
+            ownerName = name;
+        }
+        return records;
+    }
+
+    /**
+     * @return true if the question is for a name of a local zone that does not exist in the zone, i.e., that has no
+     * records and no name below it with records (an empty non-terminal has no data, but exists).
+     */
+    public boolean isNameError(DNSQuestion question) {
+        String name = normalize(question.getHostName());
+        return question.getRecordClass() == RecordClass.IN && Arrays.binarySearch(owners, name) < 0 &&
+                !hasNamesBelow(name) && findZone(name) != null;
+    }
+
+    /**
+     * @return The number of distinct owner names.
+     */
+    public int getNameCount() {
+        return owners.length;
+    }
+
+    /**
+     * @return The number of records.
+     */
+    public int getRecordCount() {
+        return types.length;
+    }
+
+    private boolean isLocal(String name) {
+        return Arrays.binarySearch(owners, name) >= 0 || findZone(name) != null;
+    }
+
+    private boolean hasNamesBelow(String name) {
+        // the reversed names below a name all start with its reversed name followed by a dot
+        String prefix = reverseLabels(name) + ".";
+        int index = Arrays.binarySearch(reversedOwners, prefix);
+        if (index < 0) index = -index - 1;
+        return index < reversedOwners.length && reversedOwners[index].startsWith(prefix);
+    }
+
+    private static String reverseLabels(String name) {
+        String[] labels = name.split("\\.");
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = labels.length - 1; i >= 0; i--) {
+            sb.append(labels[i]);
+            if (i > 0) sb.append('.');
+        }
+        return sb.toString();
+    }
+
+    private String findZone(String name) {
+        for (String suffix = name; ; suffix = suffix.substring(suffix.indexOf('.') + 1)) {
+            if (zones.contains(suffix)) return suffix;
+            if (suffix.indexOf('.') < 0) return null;
+        }
+    }
+
+    private boolean addRecords(List<ResourceRecord> records, int owner, String ownerName, RecordType type) {
+        boolean found = false;
+        for (int i = firstRecord[owner]; i < firstRecord[owner + 1]; i++) {
+            if (types[i] != type) continue;
+            records.add(new ResourceRecord(new DNSQuestion(ownerName, type, RecordClass.IN), ttls[i], rdata[i]));
+            found = true;
+        }
+        return found;
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase();
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        return name;
+    }
+
+    /**
+     * Collects records from hosts and zone files before building the index.
+     */
+    public static class Builder {
+        private final List<Entry> entries = new ArrayList<>();
+        private final Set<String> zones = new HashSet<>();
+
+        /**
+         * Adds the entries of a hosts file.
+         *
+         * @param in The contents of the file.
+         * @return This builder.
+         * @throws IOException If the file cannot be read, or an address is not valid.
+         */
+        public Builder addHosts(Reader in) throws IOException {
+            BufferedReader reader = new BufferedReader(in);
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] fields = line.split("#", 2)[0].trim().split("\\s+");
+                if (fields.length < 2) continue;
+                RecordType type = fields[0].indexOf(':') >= 0 ? RecordType.AAAA : RecordType.A;
+                byte[] address;
+                try {
+                    address = RecordData.fromText(type, fields[0]);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+                }
+                for (int i = 1; i < fields.length; i++) add(fields[i], type, HOSTS_TTL, address);
+                add(HostResolver.reverseName(InetAddress.getByAddress(address)), RecordType.PTR, HOSTS_TTL,
+                        RecordData.fromText(RecordType.PTR, fields[1]));
+            }
+            return this;
+        }
+
+        /**
+         * Adds the records of a zone file.
+         *
+         * @param in The contents of the file.
+         * @return This builder.
+         * @throws IOException If the file cannot be read, or a record is not valid.
+         */
+        public Builder addZone(Reader in) throws IOException {
+            BufferedReader reader = new BufferedReader(in);
+            String origin = "";
+            String owner = null;
+            int defaultTtl = DEFAULT_TTL;
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int start = lineNumber;
+                line = stripComment(line);
+                while (line.indexOf('(') >= 0 && line.indexOf(')') < 0) {
+                    String next = reader.readLine();
+                    if (next == null) throw new IOException("Line " + start + ": unbalanced parentheses");
+                    lineNumber++;
+                    line += " " + stripComment(next);
+                }
+                boolean inherited = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+                line = line.replace('(', ' ').replace(')', ' ').trim();
+                String[] fields = line.split("\\s+");
+                if (fields[0].isEmpty()) continue;
+                try {
+                    if (fields[0].equalsIgnoreCase("$ORIGIN")) {
+                        origin = absolute(fields[1], origin);
+                        continue;
+                    }
+                    if (fields[0].equalsIgnoreCase("$TTL")) {
+                        defaultTtl = Integer.parseInt(fields[1]);
+                        continue;
+                    }
+                    if (fields[0].startsWith("$")) throw new IOException("Line " + start + ": unsupported " + fields[0]);
+
+                    int i = 0;
+                    if (!inherited) owner = absolute(fields[i++], origin);
+                    if (owner == null) throw new IOException("Line " + start + ": no owner name");
+                    int ttl = defaultTtl;
+                    for (int j = 0; j < 2; j++) {
+                        if (Character.isDigit(fields[i].charAt(0))) ttl = Integer.parseInt(fields[i++]);
+                        else if (fields[i].equalsIgnoreCase("IN")) i++;
+                    }
+                    RecordType type = RecordType.valueOf(fields[i++].toUpperCase());
+                    String[] data = Arrays.copyOfRange(fields, i, fields.length);
+                    switch (type) {
+                        case NS:
+                        case CNAME:
+                        case PTR:
+                            data[0] = absolute(data[0], origin);
+                            break;
+                        case MX:
+                            data[1] = absolute(data[1], origin);
+                            break;
+                        case SOA:
+                            data[0] = absolute(data[0], origin);
+                            data[1] = absolute(data[1], origin);
+                            zones.add(owner);
+                            break;
+                        case SRV:
+                            data[3] = absolute(data[3], origin);
+                            break;
+                        default:
+                            break;
+                    }
+                    // TXT strings may contain spaces, so their data is taken from the line itself
+                    String text = type == RecordType.TXT ? skipFields(line, i) : String.join(" ", data);
+                    add(owner, type, ttl, RecordData.fromText(type, text));
+                } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                    throw new IOException("Line " + start + ": invalid record", e);
+                }
+            }
+            return this;
+        }
+
+        private void add(String owner, RecordType type, int ttl, byte[] data) {
+            entries.add(new Entry(normalize(owner), type, ttl, data));
+        }
+
+        /**
+         * Builds the index of the records added so far.
+         */
+        public LocalData build() {
+            return new LocalData(this);
+        }
+
+        private static String stripComment(String line) {
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '\\') i++;
+                else if (c == '"') quoted = !quoted;
+                else if (c == ';' && !quoted) return line.substring(0, i);
+            }
+            return line;
+        }
+
+        /**
+         * Returns what follows the first fields of a line.
+         */
+        private static String skipFields(String line, int count) {
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                while (Character.isWhitespace(line.charAt(pos))) pos++;
+                while (!Character.isWhitespace(line.charAt(pos))) pos++;
+            }
+            return line.substring(pos).trim();
+        }
+
+        /**
+         * Returns the fully-qualified form of a name of a zone file, without a trailing dot.
+         */
+        private static String absolute(String name, String origin) {
+            if (name.equals("@")) return origin;
+            if (name.endsWith(".")) return normalize(name);
+            return normalize(origin.isEmpty() ? name : name + "." + origin);
+        }
+    }
+
+    private static class Entry {
+        final String owner;
+        final RecordType type;
+        final int ttl;
+        final byte[] rdata;
+
+        Entry(String owner, RecordType type, int ttl, byte[] rdata) {
+            this.owner = owner;
+            this.type = type;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+    }
+
+    /**
+     * Loads local data into a cache, and checks its files periodically on a background thread: when any of them
+     * changed, all of them are loaded again and the new data replaces the old one in the cache at once. If the new
+     * files cannot be loaded, the previous data is kept.
+     */
+    public static class Reloader implements Closeable {
+        private final List<File> hostsFiles;
+        private final List<File> zoneFiles;
+        private final DNSCache cache;
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dns-local-data");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private long lastModified;
+        private volatile IOException lastError;
+
+        /**
+         * Loads local data into a cache, then schedules the checks of its files.
+         *
+         * @param hostsFiles    Files in hosts format.
+         * @param zoneFiles     Files in master file format.
+         * @param cache         The cache using the data.
+         * @param periodSeconds Time between two checks of the files, in seconds.
+         * @throws IOException If the data cannot be loaded the first time.
+         */
+        public Reloader(List<File> hostsFiles, List<File> zoneFiles, DNSCache cache, long periodSeconds)
+                throws IOException {
+            this.hostsFiles = new ArrayList<>(hostsFiles);
+            this.zoneFiles = new ArrayList<>(zoneFiles);
+            this.cache = cache;
+            try {
+                lastModified = getLastModified();
+                cache.setLocalData(load(hostsFiles, zoneFiles));
+            } catch (IOException e) {
+                executor.shutdownNow();
+                throw e;
+            }
+            executor.scheduleWithFixedDelay(this::reload, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+
+        private long getLastModified() {
+            long latest = 0;
+            for (File file : hostsFiles) latest = Math.max(latest, file.lastModified());
+            for (File file : zoneFiles) latest = Math.max(latest, file.lastModified());
+            return latest;
+        }
+
+        private void reload() {
+            long modified = getLastModified();
+            if (modified == lastModified) return;
+            try {
+                cache.setLocalData(load(hostsFiles, zoneFiles));
+                lastModified = modified;
+                lastError = null;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+
+        /**
+         * @return The error of the last reload, or null if it succeeded.
+         */
+        public IOException getLastError() {
+            return lastError;
+        }
+
+        /**
+         * Stops checking the files, leaving the data last loaded in the cache.
+         */
+        public void stop() {
+            executor.shutdownNow();
+        }
+
+        /**
+         * Stops checking the files, and stops using the local data in the cache.
+         */
+        @Override
+        public void close() {
+            stop();
+            cache.setLocalData(null);
+        }
+    }
+}
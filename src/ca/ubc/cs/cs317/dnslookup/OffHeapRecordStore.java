@@ -0,0 +1,356 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A RecordStore keeping the record sets of a DNSCache outside the heap, in direct buffers, so that the garbage
+ * collector has a few buffers to trace instead of several objects per cached record. Record sets are encoded with
+ * RecordCodec, and decoded again each time they are looked up, so lookups return new instances.
+ * <p>
+ * Sets are found through an open-addressing hash table with linear probing, itself in a direct buffer. Each bucket
+ * holds the 64-bit hash of a question, the reference of the block holding its records, and the earliest expiration
+ * among them, so prune() only decodes the sets that have expired records. A removed bucket is filled by shifting the
+ * following buckets back, so the table has no tombstones; it doubles in size once it is MAX_LOAD full.
+ * <p>
+ * Blocks are allocated from slabs of SLAB_SIZE bytes, each slab holding blocks of a single size class: multiples of
+ * SMALL_STEP bytes up to SMALL_LIMIT, then powers of two up to MAX_BLOCK. Freed blocks are kept in a free list per
+ * class, linked through their first bytes, and reused before any new block. Slabs are only given back by clear(),
+ * when their buffers are dropped (direct buffers are freed once they are garbage collected). Record sets too large
+ * for MAX_BLOCK are not stored.
+ */
+public class OffHeapRecordStore implements RecordStore {
+
+    private static final int BUCKET_SIZE = 24;
+    private static final int HashOffset = 0;
+    private static final int RefOffset = 8;
+    private static final int ExpirationOffset = 16;
+    private static final int LengthOffset = 0;
+    private static final int PayloadOffset = 4;
+    private static final double MAX_LOAD = 0.7;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / BUCKET_SIZE;
+    private static final int SLAB_SHIFT = 20;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int SMALL_STEP = 32;
+    private static final int SMALL_LIMIT = 1024;
+    private static final int MAX_BLOCK = 64 * 1024;
+    private static final int CLASS_COUNT = SMALL_LIMIT / SMALL_STEP + 6;
+
+    private final int initialCapacity;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final long[] freeLists = new long[CLASS_COUNT];
+    private final int[] currentSlab = new int[CLASS_COUNT];
+    private final int[] currentOffset = new int[CLASS_COUNT];
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private byte[] scratch = new byte[SMALL_LIMIT];
+    private ByteBuffer table;
+    private int mask;
+    private int size;
+    private long usedBytes;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param initialCapacity The number of buckets of the hash table, rounded up to a power of two; the table grows
+     *                        as needed.
+     */
+    public OffHeapRecordStore(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        clear();
+    }
+
+    @Override
+    public Set<ResourceRecord> get(DNSQuestion question) {
+        long hash = SharedMemoryCache.hash(question);
+        int bucket = find(hash, question);
+        if (bucket < 0) return null;
+        Set<ResourceRecord> results = live(readRecords(refAt(bucket)));
+        if (table.getLong(bucket * BUCKET_SIZE + ExpirationOffset) > System.currentTimeMillis()) return results;
+        if (results.isEmpty()) {
+            removeAt(bucket);
+            return null;
+        }
+        store(bucket, hash, question, results);
+        return results;
+    }
+
+    @Override
+    public Set<ResourceRecord> add(ResourceRecord record) {
+        DNSQuestion question = record.getQuestion();
+        long hash = SharedMemoryCache.hash(question);
+        int bucket = find(hash, question);
+        Set<ResourceRecord> results = bucket >= 0 ? live(readRecords(refAt(bucket))) : new HashSet<>();
+
+        // Find a record for the same question containing the same result
+        ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
+        if (oldRecord == null)
+            results.add(record);
+        else
+            oldRecord.update(record);
+        store(bucket, hash, question, results);
+        return results;
+    }
+
+    @Override
+    public void prune() {
+        long now = System.currentTimeMillis();
+        List<DNSQuestion> expired = new ArrayList<>();
+        for (int bucket = 0; bucket <= mask; bucket++) {
+            int position = bucket * BUCKET_SIZE;
+            if (table.getLong(position + HashOffset) != 0 && table.getLong(position + ExpirationOffset) <= now)
+                expired.add(readQuestion(table.getLong(position + RefOffset)));
+        }
+        // get() removes the expired records of a set, and the set itself once it is empty
+        for (DNSQuestion question : expired) get(question);
+    }
+
+    @Override
+    public void clear() {
+        int capacity = MIN_CAPACITY;
+        while (capacity < initialCapacity && capacity < MAX_CAPACITY / 2) capacity <<= 1;
+        table = ByteBuffer.allocateDirect(capacity * BUCKET_SIZE);
+        mask = capacity - 1;
+        size = 0;
+        slabs.clear();
+        Arrays.fill(freeLists, -1);
+        Arrays.fill(currentSlab, -1);
+        usedBytes = 0;
+    }
+
+    @Override
+    public void forEach(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
+        for (int bucket = 0; bucket <= mask; bucket++) {
+            int position = bucket * BUCKET_SIZE;
+            if (table.getLong(position + HashOffset) == 0) continue;
+            try {
+                DataInputStream in = open(table.getLong(position + RefOffset));
+                DNSQuestion question = RecordCodec.readQuestion(in);
+                Set<ResourceRecord> results = live(RecordCodec.readRecords(in));
+                if (!results.isEmpty()) consumer.accept(question, results);
+            } catch (IOException e) {
+                throw new IllegalStateException("Invalid record block", e);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The off-heap memory allocated by the store: its hash table and its slabs, in bytes.
+     */
+    public long getAllocatedBytes() {
+        return table.capacity() + (long) slabs.size() * SLAB_SIZE;
+    }
+
+    /**
+     * @return The off-heap memory in use: the buckets of the stored questions and their blocks, in bytes.
+     */
+    public long getUsedBytes() {
+        return (long) size * BUCKET_SIZE + usedBytes;
+    }
+
+    /**
+     * Returns the bucket holding a question.
+     *
+     * @return The index of the bucket, or -1 if the question is not stored.
+     */
+    private int find(long hash, DNSQuestion question) {
+        for (int bucket = home(hash); ; bucket = (bucket + 1) & mask) {
+            long bucketHash = table.getLong(bucket * BUCKET_SIZE + HashOffset);
+            if (bucketHash == 0) return -1;
+            if (bucketHash == hash && question.equals(readQuestion(refAt(bucket)))) return bucket;
+        }
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private long refAt(int bucket) {
+        return table.getLong(bucket * BUCKET_SIZE + RefOffset);
+    }
+
+    /**
+     * Writes the records of a question in its block, moving it to a block of another size class if needed.
+     *
+     * @param bucket The bucket of the question, or -1 if it is not stored yet.
+     */
+    private void store(int bucket, long hash, DNSQuestion question, Collection<ResourceRecord> records) {
+        byte[] payload = encode(question, records);
+        int length = PayloadOffset + payload.length;
+        if (length > MAX_BLOCK) {
+            if (bucket >= 0) removeAt(bucket);
+            return;
+        }
+        long expiration = Long.MAX_VALUE;
+        for (ResourceRecord rr : records) expiration = Math.min(expiration, rr.getExpirationMillis());
+
+        int sizeClass = classOf(length);
+        long ref;
+        if (bucket >= 0) {
+            ref = refAt(bucket);
+            int oldClass = classOf(PayloadOffset + slab(ref).getInt(offset(ref) + LengthOffset));
+            if (oldClass != sizeClass) {
+                free(ref, oldClass);
+                ref = allocate(sizeClass);
+            }
+        } else {
+            if (size + 1 > (mask + 1) * MAX_LOAD) grow();
+            ref = allocate(sizeClass);
+            for (bucket = home(hash); table.getLong(bucket * BUCKET_SIZE + HashOffset) != 0; )
+                bucket = (bucket + 1) & mask;
+            table.putLong(bucket * BUCKET_SIZE + HashOffset, hash);
+            size++;
+        }
+        ByteBuffer slab = slab(ref);
+        slab.putInt(offset(ref) + LengthOffset, payload.length);
+        ByteBuffer view = slab.duplicate();
+        view.position(offset(ref) + PayloadOffset);
+        view.put(payload);
+        table.putLong(bucket * BUCKET_SIZE + RefOffset, ref);
+        table.putLong(bucket * BUCKET_SIZE + ExpirationOffset, expiration);
+    }
+
+    /**
+     * Empties a bucket, then moves back the following buckets of the same run whose home is not between the emptied
+     * bucket and their current position, so that every question stays reachable from its home bucket.
+     */
+    private void removeAt(int bucket) {
+        long ref = refAt(bucket);
+        free(ref, classOf(PayloadOffset + slab(ref).getInt(offset(ref) + LengthOffset)));
+        size--;
+        int hole = bucket;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long hash = table.getLong(next * BUCKET_SIZE + HashOffset);
+            if (hash == 0) break;
+            int home = home(hash);
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (stays) continue;
+            for (int i = 0; i < BUCKET_SIZE; i += 8)
+                table.putLong(hole * BUCKET_SIZE + i, table.getLong(next * BUCKET_SIZE + i));
+            hole = next;
+        }
+        table.putLong(hole * BUCKET_SIZE + HashOffset, 0);
+    }
+
+    private void grow() {
+        int capacity = mask + 1;
+        if (capacity > MAX_CAPACITY / 2) throw new IllegalStateException("Record store is full");
+        ByteBuffer old = table;
+        table = ByteBuffer.allocateDirect(capacity * 2 * BUCKET_SIZE);
+        mask = capacity * 2 - 1;
+        for (int position = 0; position < old.capacity(); position += BUCKET_SIZE) {
+            long hash = old.getLong(position + HashOffset);
+            if (hash == 0) continue;
+            int bucket = home(hash);
+            while (table.getLong(bucket * BUCKET_SIZE + HashOffset) != 0) bucket = (bucket + 1) & mask;
+            for (int i = 0; i < BUCKET_SIZE; i += 8)
+                table.putLong(bucket * BUCKET_SIZE + i, old.getLong(position + i));
+        }
+    }
+
+    /**
+     * Allocates a block of a size class, from the free list of the class if possible, otherwise from the current
+     * slab of the class, or from a new slab once the current one is full.
+     */
+    private long allocate(int sizeClass) {
+        int blockSize = blockSize(sizeClass);
+        usedBytes += blockSize;
+        long ref = freeLists[sizeClass];
+        if (ref >= 0) {
+            freeLists[sizeClass] = slab(ref).getLong(offset(ref));
+            return ref;
+        }
+        if (currentSlab[sizeClass] < 0 || currentOffset[sizeClass] + blockSize > SLAB_SIZE) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            currentSlab[sizeClass] = slabs.size() - 1;
+            currentOffset[sizeClass] = 0;
+        }
+        ref = ((long) currentSlab[sizeClass] << SLAB_SHIFT) | currentOffset[sizeClass];
+        currentOffset[sizeClass] += blockSize;
+        return ref;
+    }
+
+    private void free(long ref, int sizeClass) {
+        usedBytes -= blockSize(sizeClass);
+        slab(ref).putLong(offset(ref), freeLists[sizeClass]);
+        freeLists[sizeClass] = ref;
+    }
+
+    private static int classOf(int length) {
+        if (length <= SMALL_LIMIT) return (length - 1) / SMALL_STEP;
+        int sizeClass = SMALL_LIMIT / SMALL_STEP;
+        for (int blockSize = 2 * SMALL_LIMIT; blockSize < length; blockSize <<= 1) sizeClass++;
+        return sizeClass;
+    }
+
+    private static int blockSize(int sizeClass) {
+        if (sizeClass < SMALL_LIMIT / SMALL_STEP) return (sizeClass + 1) * SMALL_STEP;
+        return 2 * SMALL_LIMIT << (sizeClass - SMALL_LIMIT / SMALL_STEP);
+    }
+
+    private ByteBuffer slab(long ref) {
+        return slabs.get((int) (ref >>> SLAB_SHIFT));
+    }
+
+    private static int offset(long ref) {
+        return (int) ref & (SLAB_SIZE - 1);
+    }
+
+    private byte[] encode(DNSQuestion question, Collection<ResourceRecord> records) {
+        bytes.reset();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            RecordCodec.writeQuestion(out, question);
+            RecordCodec.writeRecords(out, records);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot encode records", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Copies the payload of a block to the scratch buffer, and returns a stream reading it.
+     */
+    private DataInputStream open(long ref) {
+        ByteBuffer slab = slab(ref);
+        int length = slab.getInt(offset(ref) + LengthOffset);
+        if (scratch.length < length) scratch = new byte[Math.max(length, 2 * scratch.length)];
+        ByteBuffer view = slab.duplicate();
+        view.position(offset(ref) + PayloadOffset);
+        view.get(scratch, 0, length);
+        return new DataInputStream(new ByteArrayInputStream(scratch, 0, length));
+    }
+
+    private DNSQuestion readQuestion(long ref) {
+        try {
+            return RecordCodec.readQuestion(open(ref));
+        } catch (IOException e) {
+            throw new IllegalStateException("Invalid record block", e);
+        }
+    }
+
+    private List<ResourceRecord> readRecords(long ref) {
+        try {
+            DataInputStream in = open(ref);
+            RecordCodec.readQuestion(in);
+            return RecordCodec.readRecords(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Invalid record block", e);
+        }
+    }
+
+    private static Set<ResourceRecord> live(List<ResourceRecord> records) {
+        Set<ResourceRecord> results = new HashSet<>();
+        for (ResourceRecord rr : records) {
+            if (!rr.isExpired()) results.add(rr);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,229 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Shares a budget of queries in flight between lanes of different priority, so that bulk work (batch lookups,
+ * prefetching) cannot delay the queries of interactive lookups made by the same process. Every query sent to a
+ * nameserver first obtains a permit from the scheduler, and gives it back once its exchange is over.
+ * <p>
+ * While permits are available they are granted immediately. Once the budget is exhausted, waiting queries are queued
+ * per lane and each freed permit goes to the lane with the lowest pass value (stride scheduling): a lane's pass
+ * advances by the inverse of its weight each time it is granted a permit, so under contention lanes receive permits
+ * in proportion to their weights, and no lane is starved. A lane that was idle does not accumulate credit for the
+ * time it did not use.
+ * <p>
+ * For every lane the scheduler keeps the time queries waited for a permit and their total latency (waiting plus
+ * exchange), over the most recent LATENCY_SAMPLES queries.
+ */
+public class QueryScheduler {
+
+    public enum Lane {
+        INTERACTIVE(16), NORMAL(4), BULK(1);
+
+        private final int defaultWeight;
+
+        Lane(int defaultWeight) {
+            this.defaultWeight = defaultWeight;
+        }
+    }
+
+    private static final int LATENCY_SAMPLES = 4096;
+    private static final long STRIDE_SCALE = 1 << 20;
+
+    private final int maxInFlight;
+    private final LaneState[] lanes = new LaneState[Lane.values().length];
+    private int inFlight;
+    private long virtualTime;
+
+    /**
+     * Creates a scheduler using the default weight of each lane.
+     *
+     * @param maxInFlight Maximum number of queries sent and not yet completed, across all lanes.
+     */
+    public QueryScheduler(int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("Invalid query budget " + maxInFlight);
+        this.maxInFlight = maxInFlight;
+        for (Lane lane : Lane.values()) lanes[lane.ordinal()] = new LaneState(lane.defaultWeight);
+    }
+
+    /**
+     * Changes the share of the query budget given to a lane when several lanes are waiting.
+     *
+     * @param lane   The lane to be changed.
+     * @param weight Relative weight of the lane, at least 1.
+     */
+    public synchronized void setWeight(Lane lane, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("Invalid weight " + weight);
+        lanes[lane.ordinal()].stride = STRIDE_SCALE / weight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Waits for a permit to send a query. The permit must be closed once the exchange is over, whatever its outcome.
+     *
+     * @param lane The lane of the resolution sending the query.
+     * @return The permit granted.
+     * @throws InterruptedException If the thread is interrupted while waiting; no permit is held in that case.
+     */
+    public Permit acquire(Lane lane) throws InterruptedException {
+        Permit permit = new Permit(lane);
+        synchronized (this) {
+            LaneState state = lanes[lane.ordinal()];
+            if (state.waiting.isEmpty()) state.pass = Math.max(state.pass, virtualTime);
+            state.waiting.addLast(permit);
+            grant();
+            try {
+                while (!permit.granted) wait();
+            } catch (InterruptedException e) {
+                if (permit.granted) release(permit);
+                else state.waiting.remove(permit);
+                throw e;
+            }
+        }
+        return permit;
+    }
+
+    /**
+     * Grants freed permits to waiting queries, choosing the lane with the lowest pass each time.
+     */
+    private void grant() {
+        boolean granted = false;
+        while (inFlight < maxInFlight) {
+            LaneState next = null;
+            for (LaneState state : lanes) {
+                if (!state.waiting.isEmpty() && (next == null || state.pass < next.pass)) next = state;
+            }
+            if (next == null) break;
+            Permit permit = next.waiting.removeFirst();
+            virtualTime = next.pass;
+            next.pass += next.stride;
+            inFlight++;
+            permit.granted = true;
+            permit.grantedNanos = System.nanoTime();
+            granted = true;
+        }
+        if (granted) notifyAll();
+    }
+
+    private synchronized void release(Permit permit) {
+        inFlight--;
+        long now = System.nanoTime();
+        lanes[permit.lane.ordinal()].record(permit.grantedNanos - permit.requestedNanos, now - permit.requestedNanos);
+        grant();
+    }
+
+    /**
+     * @return The number of queries currently waiting for a permit in a lane.
+     */
+    public synchronized int getWaiting(Lane lane) {
+        return lanes[lane.ordinal()].waiting.size();
+    }
+
+    /**
+     * @return The number of queries of a lane that completed since the scheduler was created.
+     */
+    public synchronized long getCompleted(Lane lane) {
+        return lanes[lane.ordinal()].completed;
+    }
+
+    /**
+     * Returns a percentile of the time recent queries of a lane waited for their permit.
+     *
+     * @param lane       The lane.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The waiting time in milliseconds, or 0 if no query of this lane completed.
+     */
+    public synchronized double getWaitMillis(Lane lane, double percentile) {
+        return lanes[lane.ordinal()].percentile(lanes[lane.ordinal()].waits, percentile);
+    }
+
+    /**
+     * Returns a percentile of the latency (waiting for a permit, then exchanging with the nameserver) of recent
+     * queries of a lane.
+     *
+     * @param lane       The lane.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency in milliseconds, or 0 if no query of this lane completed.
+     */
+    public synchronized double getLatencyMillis(Lane lane, double percentile) {
+        return lanes[lane.ordinal()].percentile(lanes[lane.ordinal()].latencies, percentile);
+    }
+
+    public synchronized void report(PrintStream out) {
+        out.printf("Queries in flight: %d of %d%n", inFlight, maxInFlight);
+        for (Lane lane : Lane.values()) {
+            LaneState state = lanes[lane.ordinal()];
+            out.printf("%-12s weight %-3d completed %-8d waiting %-4d wait p50 %.3f p99 %.3f  latency p50 %.3f p99 %.3f%n",
+                    lane, STRIDE_SCALE / state.stride, state.completed, state.waiting.size(),
+                    state.percentile(state.waits, 50), state.percentile(state.waits, 99),
+                    state.percentile(state.latencies, 50), state.percentile(state.latencies, 99));
+        }
+    }
+
+    /**
+     * A permit to have one query in flight, obtained from acquire.
+     */
+    public class Permit implements AutoCloseable {
+        private final Lane lane;
+        private final long requestedNanos = System.nanoTime();
+        private long grantedNanos;
+        private boolean granted;
+        private boolean closed;
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        /**
+         * Gives the permit back to the scheduler, and records the latency of the query.
+         */
+        @Override
+        public void close() {
+            synchronized (QueryScheduler.this) {
+                if (closed) return;
+                closed = true;
+                release(this);
+            }
+        }
+    }
+
+    private static class LaneState {
+        final Deque<Permit> waiting = new ArrayDeque<>();
+        final long[] waits = new long[LATENCY_SAMPLES];
+        final long[] latencies = new long[LATENCY_SAMPLES];
+        long stride;
+        long pass;
+        long completed;
+
+        LaneState(int weight) {
+            stride = STRIDE_SCALE / weight;
+        }
+
+        void record(long waitNanos, long latencyNanos) {
+            int index = (int) (completed % LATENCY_SAMPLES);
+            waits[index] = waitNanos;
+            latencies[index] = latencyNanos;
+            completed++;
+        }
+
+        double percentile(long[] samples, double percentile) {
+            int count = (int) Math.min(completed, LATENCY_SAMPLES);
+            if (count == 0) return 0;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * Compact binary encoding of questions and resource records, used where cached records are exchanged outside of
+ * DNS messages (between cache peers, or through a shared cache file). Unlike the DNS wire format, records keep
+ * their absolute expiration time rather than a TTL. Records that have raw data are encoded with it, so they stay
+ * undecoded on the other side too.
+ */
+class RecordCodec {
+
+    private static final int RAW_DATA = 0xff;
+
+    private RecordCodec() {
+    }
+
+    static void writeQuestion(DataOutput out, DNSQuestion question) throws IOException {
+        out.writeUTF(question.getHostName());
+        out.writeShort(question.getRecordType().getCode());
+        out.writeShort(question.getRecordClass().getCode());
+    }
+
+    static DNSQuestion readQuestion(DataInput in) throws IOException {
+        String hostName = in.readUTF();
+        RecordType type = RecordType.getByCode(in.readUnsignedShort());
+        RecordClass recordClass = RecordClass.getByCode(in.readUnsignedShort());
+        return new DNSQuestion(hostName, type, recordClass);
+    }
+
+    /**
+     * Writes a count followed by every record in the collection that has not expired yet.
+     *
+     * @param out     Destination of the encoded records.
+     * @param records Records to be encoded.
+     * @throws IOException If the destination cannot be written.
+     */
+    static void writeRecords(DataOutput out, Collection<ResourceRecord> records) throws IOException {
+        List<ResourceRecord> live = new ArrayList<>(records.size());
+        for (ResourceRecord rr : records) {
+            if (!rr.isExpired()) live.add(rr);
+        }
+        out.writeShort(live.size());
+        for (ResourceRecord rr : live) {
+            writeRecord(out, rr);
+        }
+    }
+
+    static List<ResourceRecord> readRecords(DataInput in) throws IOException {
+        return readRecords(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decodes records, bringing their expiration times no later than a given time.
+     *
+     * @param in                  Source of the encoded records.
+     * @param maxExpirationMillis Latest expiration time of the decoded records, in milliseconds since the epoch.
+     * @return The decoded records.
+     * @throws IOException If the source cannot be read or holds invalid records.
+     */
+    static List<ResourceRecord> readRecords(DataInput in, long maxExpirationMillis) throws IOException {
+        int count = in.readUnsignedShort();
+        List<ResourceRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(readRecord(in, maxExpirationMillis));
+        }
+        return records;
+    }
+
+    private static void writeRecord(DataOutput out, ResourceRecord rr) throws IOException {
+        writeQuestion(out, rr.getQuestion());
+        out.writeLong(rr.getExpirationMillis());
+        byte[] rdata = rr.getRData();
+        InetAddress address = rr.getInetResult();
+        if (rdata != null) {
+            out.writeByte(RAW_DATA);
+            out.writeShort(rdata.length);
+            out.write(rdata);
+        } else if (address != null) {
+            byte[] raw = address.getAddress();
+            out.writeByte(raw.length);
+            out.write(raw);
+        } else {
+            out.writeByte(0);
+            out.writeUTF(rr.getTextResult());
+        }
+    }
+
+    private static ResourceRecord readRecord(DataInput in, long maxExpirationMillis) throws IOException {
+        DNSQuestion question = readQuestion(in);
+        Date expiration = new Date(Math.min(in.readLong(), maxExpirationMillis));
+        int addressLength = in.readUnsignedByte();
+        if (addressLength == RAW_DATA) {
+            byte[] rdata = new byte[in.readUnsignedShort()];
+            in.readFully(rdata);
+            return new ResourceRecord(question, expiration, rdata);
+        } else if (addressLength > 0) {
+            byte[] raw = new byte[addressLength];
+            in.readFully(raw);
+            return new ResourceRecord(question, expiration, InetAddress.getByAddress(raw));
+        }
+        return new ResourceRecord(question, expiration, in.readUTF());
+    }
+}
@@ -0,0 +1,398 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decoders for the data (RDATA) of resource records. The data is expected in uncompressed form, i.e., with every
+ * domain name spelled out in full rather than as a pointer into the message it was received in, which is how
+ * DNSMessage.getRR retains it. Structured values are provided for the record types whose data has several fields,
+ * and every type can be turned into the text used as the record's result.
+ */
+public class RecordData {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private RecordData() {
+    }
+
+    /**
+     * Returns the text representation of a record's data. Addresses are shown in their usual notation, names as
+     * FQDNs, SOA, SRV and CAA records as their fields separated by spaces (as in a zone file), TXT records as a
+     * sequence of quoted strings, and unknown types as a hex string. Data too short for the fields of its type is
+     * also shown as a hex string.
+     *
+     * @param type        Record type.
+     * @param recordClass Record class.
+     * @param rdata       Uncompressed record data.
+     * @return The text representation of the data.
+     */
+    public static String toText(RecordType type, RecordClass recordClass, byte[] rdata) {
+        try {
+            return decodeText(type, recordClass, rdata);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            return toHexString(rdata);
+        }
+    }
+
+    private static String decodeText(RecordType type, RecordClass recordClass, byte[] rdata) {
+        ByteBuffer data = ByteBuffer.wrap(rdata);
+        switch (type) {
+            case A:
+            case AAAA:
+                if (recordClass != RecordClass.IN) break;
+                InetAddress address = toInetAddress(rdata);
+                if (address != null) return address.getHostAddress();
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                return readName(data);
+            case MX:
+                //noinspection unused We ignore mx preference fields
+                int pref = data.getShort() & DNSMessage.ShortMask;
+                return readName(data);
+            case SOA:
+                return decodeSOA(rdata).toString();
+            case SRV:
+                return decodeSRV(rdata).toString();
+            case CAA:
+                return decodeCAA(rdata).toString();
+            case TXT:
+                StringBuilder sb = new StringBuilder();
+                for (String s : decodeTXT(rdata)) {
+                    if (sb.length() > 0) sb.append(' ');
+                    appendQuoted(sb, s);
+                }
+                return sb.toString();
+            default:
+                break;
+        }
+        return toHexString(rdata);
+    }
+
+    /**
+     * Encodes the data of a record given in zone file notation: an address, a name, "preference name" for MX records,
+     * the fields of SOA and SRV records, text for TXT records (either one or more quoted strings, or unquoted text
+     * taken as a single string); other types are given as a hex string. Names are taken as fully qualified.
+     *
+     * @param type Record type.
+     * @param text The data in zone file notation.
+     * @return The uncompressed record data.
+     * @throws IllegalArgumentException If the text is not valid for the type.
+     */
+    public static byte[] fromText(RecordType type, String text) {
+        text = text.trim();
+        if (type == RecordType.A) return parseIPv4(text);
+        String[] fields = text.split("\\s+");
+        // encoded data is never much longer than its text (up to 3 bytes per character of a TXT string)
+        ByteBuffer out = ByteBuffer.allocate(Math.min(DNSMessage.MAX_DNS_MESSAGE_LENGTH, 3 * text.length() + 32));
+        try {
+            switch (type) {
+                case AAAA:
+                    // only literals are accepted, so that no name is ever looked up here
+                    if (fields[0].indexOf(':') < 0) throw new IllegalArgumentException("Not an AAAA address: " + text);
+                    byte[] address = DNSCache.stringToInetAddress(fields[0]).getAddress();
+                    if (address.length != 16) throw new IllegalArgumentException("Not an AAAA address: " + text);
+                    return address;
+                case NS:
+                case CNAME:
+                case PTR:
+                    putName(out, fields[0]);
+                    break;
+                case MX:
+                    out.putShort((short) Integer.parseInt(fields[0]));
+                    putName(out, fields[1]);
+                    break;
+                case SOA:
+                    putName(out, fields[0]);
+                    putName(out, fields[1]);
+                    for (int i = 2; i < 7; i++) out.putInt((int) Long.parseLong(fields[i]));
+                    break;
+                case SRV:
+                    for (int i = 0; i < 3; i++) out.putShort((short) Integer.parseInt(fields[i]));
+                    putName(out, fields[3]);
+                    break;
+                case TXT:
+                    putText(out, text.trim());
+                    break;
+                default:
+                    return DNSMessage.hexStringtoByteArray(text.trim());
+            }
+        } catch (IndexOutOfBoundsException | BufferOverflowException e) {
+            throw new IllegalArgumentException("Invalid " + type + " data: " + text, e);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Parses an IPv4 address in dotted-decimal notation, without going through InetAddress (which is several times
+     * slower, and would look the text up if it was a name).
+     */
+    private static byte[] parseIPv4(String text) {
+        byte[] address = new byte[4];
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : '.';
+            if (c >= '0' && c <= '9' && digits < 3) {
+                value = value * 10 + (c - '0');
+                digits++;
+            } else if (c == '.' && digits > 0 && value <= 255 && part < 4) {
+                address[part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                part = -1;
+                break;
+            }
+        }
+        if (part != 4) throw new IllegalArgumentException("Not an A address: " + text);
+        return address;
+    }
+
+    private static void putName(ByteBuffer out, String name) {
+        int end = name.endsWith(".") ? name.length() - 1 : name.length();
+        for (int start = 0; start < end; ) {
+            int dot = name.indexOf('.', start);
+            if (dot < 0 || dot > end) dot = end;
+            byte[] label = name.substring(start, dot).toLowerCase().getBytes(StandardCharsets.UTF_8);
+            if (label.length == 0 || label.length > 63) throw new IllegalArgumentException("Invalid name: " + name);
+            out.put((byte) label.length).put(label);
+            start = dot + 1;
+        }
+        out.put((byte) 0);
+    }
+
+    /**
+     * Encodes the character strings of a TXT record: each quoted string (with backslash escapes) is one string, and
+     * text without any quote is a single string.
+     */
+    private static void putText(ByteBuffer out, String text) {
+        if (!text.startsWith("\"")) {
+            putString(out, text.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        StringBuilder sb = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (sb == null) {
+                if (c == '"') sb = new StringBuilder();
+                else if (!Character.isWhitespace(c)) throw new IllegalArgumentException("Unquoted text: " + text);
+            } else if (c == '\\' && i + 1 < text.length()) {
+                sb.append(text.charAt(++i));
+            } else if (c == '"') {
+                putString(out, sb.toString().getBytes(StandardCharsets.UTF_8));
+                sb = null;
+            } else {
+                sb.append(c);
+            }
+        }
+        if (sb != null) throw new IllegalArgumentException("Unterminated string: " + text);
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        if (bytes.length > 255) throw new IllegalArgumentException("String longer than 255 bytes");
+        out.put((byte) bytes.length).put(bytes);
+    }
+
+    /**
+     * Returns the address contained in the data of an A or AAAA record.
+     *
+     * @param rdata Record data, 4 or 16 bytes long.
+     * @return The corresponding address, or null if the data is not an address.
+     */
+    public static InetAddress toInetAddress(byte[] rdata) {
+        try {
+            return InetAddress.getByAddress(rdata);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the data of an SOA record.
+     *
+     * @param rdata Uncompressed record data.
+     * @return The fields of the SOA record.
+     */
+    public static SOA decodeSOA(byte[] rdata) {
+        ByteBuffer data = ByteBuffer.wrap(rdata);
+        String mname = readName(data);
+        String rname = readName(data);
+        return new SOA(mname, rname, data.getInt() & 0xffffffffL, data.getInt() & 0xffffffffL,
+                data.getInt() & 0xffffffffL, data.getInt() & 0xffffffffL, data.getInt() & 0xffffffffL);
+    }
+
+    /**
+     * Decodes the data of an SRV record.
+     *
+     * @param rdata Uncompressed record data.
+     * @return The fields of the SRV record.
+     */
+    public static SRV decodeSRV(byte[] rdata) {
+        ByteBuffer data = ByteBuffer.wrap(rdata);
+        int priority = data.getShort() & DNSMessage.ShortMask;
+        int weight = data.getShort() & DNSMessage.ShortMask;
+        int port = data.getShort() & DNSMessage.ShortMask;
+        return new SRV(priority, weight, port, readName(data));
+    }
+
+    /**
+     * Decodes the data of a CAA record.
+     *
+     * @param rdata Record data.
+     * @return The fields of the CAA record.
+     * @throws IllegalArgumentException If the data is shorter than its tag.
+     */
+    public static CAA decodeCAA(byte[] rdata) {
+        if (rdata.length < 2) throw new IllegalArgumentException("Invalid CAA data length " + rdata.length);
+        int flags = rdata[0] & DNSMessage.ByteMask;
+        int tagLength = rdata[1] & DNSMessage.ByteMask;
+        if (2 + tagLength > rdata.length) throw new IllegalArgumentException("Invalid CAA tag length " + tagLength);
+        String tag = new String(rdata, 2, tagLength, StandardCharsets.US_ASCII);
+        String value = new String(rdata, 2 + tagLength, rdata.length - 2 - tagLength, StandardCharsets.UTF_8);
+        return new CAA(flags, tag, value);
+    }
+
+    /**
+     * Decodes the data of a TXT record, which is a sequence of character strings.
+     *
+     * @param rdata Record data.
+     * @return The character strings of the record, in order.
+     */
+    public static List<String> decodeTXT(byte[] rdata) {
+        List<String> strings = new ArrayList<>();
+        int pos = 0;
+        while (pos < rdata.length) {
+            int len = rdata[pos] & DNSMessage.ByteMask;
+            strings.add(new String(rdata, pos + 1, Math.min(len, rdata.length - pos - 1), StandardCharsets.UTF_8));
+            pos += len + 1;
+        }
+        return Collections.unmodifiableList(strings);
+    }
+
+    /**
+     * Returns a hex string representation of a byte array, used for records whose type is not supported.
+     *
+     * @param data a byte array containing the record data.
+     * @return A string containing the hex value of every byte in the data.
+     */
+    public static String toHexString(byte[] data) {
+        char[] hex = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[data[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Reads an uncompressed domain name at the current position of the buffer.
+     *
+     * @param data Buffer positioned at the start of the name; positioned after the name on return.
+     * @return The name, without a trailing dot.
+     */
+    private static String readName(ByteBuffer data) {
+        StringBuilder sb = new StringBuilder();
+        int len;
+        while ((len = data.get() & DNSMessage.ByteMask) != 0) {
+            if (len > data.remaining()) throw new IllegalArgumentException("Invalid label length " + len);
+            if (sb.length() > 0) sb.append('.');
+            sb.append(new String(data.array(), data.position(), len, StandardCharsets.UTF_8));
+            data.position(data.position() + len);
+        }
+        return sb.toString();
+    }
+
+    private static void appendQuoted(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * The fields of an SOA (start of authority) record.
+     */
+    public static class SOA {
+        public final String mname;
+        public final String rname;
+        public final long serial;
+        public final long refresh;
+        public final long retry;
+        public final long expire;
+        public final long minimum;
+
+        public SOA(String mname, String rname, long serial, long refresh, long retry, long expire, long minimum) {
+            this.mname = mname;
+            this.rname = rname;
+            this.serial = serial;
+            this.refresh = refresh;
+            this.retry = retry;
+            this.expire = expire;
+            this.minimum = minimum;
+        }
+
+        @Override
+        public String toString() {
+            return mname + " " + rname + " " + serial + " " + refresh + " " + retry + " " + expire + " " + minimum;
+        }
+    }
+
+    /**
+     * The fields of an SRV (service location) record.
+     */
+    public static class SRV {
+        public final int priority;
+        public final int weight;
+        public final int port;
+        public final String target;
+
+        public SRV(int priority, int weight, int port, String target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + target;
+        }
+    }
+
+    /**
+     * The fields of a CAA (certification authority authorization) record.
+     */
+    public static class CAA {
+        public final int flags;
+        public final String tag;
+        public final String value;
+
+        public CAA(int flags, String tag, String value) {
+            this.flags = flags;
+            this.tag = tag;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder().append(flags).append(' ').append(tag).append(' ');
+            appendQuoted(sb, value);
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The storage of the record sets of a DNSCache, by question. The default store keeps them in a HashMap on the heap
+ * (HeapRecordStore); OffHeapRecordStore keeps them encoded in direct buffers instead, so that millions of cached
+ * names do not add millions of objects for the garbage collector to trace. DNSCache synchronizes every access to
+ * its store, so implementations need not be thread-safe.
+ */
+public interface RecordStore {
+
+    /**
+     * Returns the unexpired records stored for a question. Expired records may be removed in the process.
+     *
+     * @param question The question to be looked up.
+     * @return The records, or null if there are none. The set must not be modified by the caller.
+     */
+    Set<ResourceRecord> get(DNSQuestion question);
+
+    /**
+     * Adds a record to the set of its question. If the set already has an equal record, the existing record's
+     * expiration is extended to the new one's if it is later.
+     *
+     * @param record An unexpired record.
+     * @return The set of records of the question after the addition, which contains the stored instance of the
+     * record.
+     */
+    Set<ResourceRecord> add(ResourceRecord record);
+
+    /**
+     * Removes every expired record, and the questions left without records.
+     */
+    void prune();
+
+    void clear();
+
+    /**
+     * Performs an action for each question and its records.
+     *
+     * @param consumer Action to be performed for each question and set of records.
+     */
+    void forEach(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer);
+
+    /**
+     * @return The number of questions stored.
+     */
+    int size();
+}
@@ -0,0 +1,141 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport that records every exchange made through another transport: the time it started, the server, the
+ * query, the response (or the fact that none was received) and how long it took. The capture is written in a compact
+ * binary format that ReplayTransport reads back:
+ * <pre>
+ *   header:   int magic "DNSR", byte version
+ *   exchange: long start (microseconds since the capture started), byte address length, address, short port,
+ *             int latency (microseconds), short query length, query, short response length (-1 if none), response
+ * </pre>
+ */
+public class RecordingTransport implements DNSTransport {
+
+    static final int MAGIC = 0x444e5352; // "DNSR"
+    static final int VERSION = 1;
+
+    private final DNSTransport delegate;
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Creates a transport recording the exchanges of another one.
+     *
+     * @param delegate The transport actually used for the exchanges.
+     * @param out      Stream the capture is written to; it is closed with this transport.
+     * @throws IOException If the header of the capture cannot be written.
+     */
+    public RecordingTransport(DNSTransport delegate, OutputStream out) throws IOException {
+        this.delegate = delegate;
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    @Override
+    public int exchange(ByteBuffer query, InetSocketAddress server, ByteBuffer response, int timeoutMillis)
+            throws IOException {
+        long start = System.nanoTime();
+        int length = delegate.exchange(query, server, response, timeoutMillis);
+        long end = System.nanoTime();
+
+        byte[] queryBytes = new byte[query.limit()];
+        for (int i = 0; i < queryBytes.length; i++) queryBytes[i] = query.get(i);
+        byte[] responseBytes = null;
+        if (length >= 0) {
+            responseBytes = new byte[length];
+            for (int i = 0; i < length; i++) responseBytes[i] = response.get(i);
+        }
+        byte[] address = server.getAddress().getAddress();
+        synchronized (out) {
+            out.writeLong((start - startNanos) / 1000);
+            out.writeByte(address.length);
+            out.write(address);
+            out.writeShort(server.getPort());
+            out.writeInt((int) ((end - start) / 1000));
+            out.writeShort(queryBytes.length);
+            out.write(queryBytes);
+            out.writeShort(responseBytes == null ? -1 : responseBytes.length);
+            if (responseBytes != null) out.write(responseBytes);
+        }
+        return length;
+    }
+
+    /**
+     * Writes any buffered exchange to the capture.
+     *
+     * @throws IOException If the capture cannot be written.
+     */
+    public void flush() throws IOException {
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Closes the capture and the underlying transport.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (out) {
+                out.close();
+            }
+        } finally {
+            delegate.close();
+        }
+    }
+
+    /**
+     * One exchange read from a capture.
+     */
+    static class Exchange {
+        final long startMicros;
+        final InetSocketAddress server;
+        final int latencyMicros;
+        final byte[] query;
+        final byte[] response;
+
+        Exchange(long startMicros, InetSocketAddress server, int latencyMicros, byte[] query, byte[] response) {
+            this.startMicros = startMicros;
+            this.server = server;
+            this.latencyMicros = latencyMicros;
+            this.query = query;
+            this.response = response;
+        }
+
+        /**
+         * Reads the next exchange of a capture.
+         *
+         * @return The exchange, or null at the end of the capture.
+         */
+        static Exchange read(DataInputStream in) throws IOException {
+            long start;
+            try {
+                start = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte[] address = new byte[in.readUnsignedByte()];
+            in.readFully(address);
+            int port = in.readUnsignedShort();
+            int latency = in.readInt();
+            byte[] query = new byte[in.readUnsignedShort()];
+            in.readFully(query);
+            int responseLength = in.readShort();
+            byte[] response = null;
+            if (responseLength >= 0) {
+                response = new byte[responseLength];
+                in.readFully(response);
+            }
+            return new Exchange(start, new InetSocketAddress(InetAddress.getByAddress(address), port), latency,
+                    query, response);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport that answers queries from a capture written by RecordingTransport, without using the network. A query
+ * is matched to a recorded exchange by its server and content, ignoring the transaction ID; the recorded response is
+ * returned with the ID of the new query. When the same query was recorded several times, the recorded exchanges are
+ * played in order, the last one being repeated. Queries that were not recorded are treated as lost, without waiting.
+ * <p>
+ * Responses can be delayed by the latency observed when they were recorded, optionally accelerated, or returned
+ * immediately, so that CPU cost and latency of a new build can be compared on the same traffic.
+ */
+public class ReplayTransport implements DNSTransport {
+
+    private final Map<ByteBuffer, Deque<RecordingTransport.Exchange>> exchanges = new HashMap<>();
+    private final double speed;
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Loads a capture.
+     *
+     * @param in    The capture, as written by RecordingTransport.
+     * @param speed Factor by which recorded latencies are divided (1 for recorded timing), or 0 to answer
+     *              immediately.
+     * @throws IOException If the capture cannot be read.
+     */
+    public ReplayTransport(InputStream in, double speed) throws IOException {
+        this.speed = speed;
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != RecordingTransport.MAGIC || data.readByte() != RecordingTransport.VERSION)
+            throw new IOException("Not a transport capture");
+        RecordingTransport.Exchange exchange;
+        while ((exchange = RecordingTransport.Exchange.read(data)) != null) {
+            exchanges.computeIfAbsent(key(exchange.server, ByteBuffer.wrap(exchange.query), exchange.query.length),
+                    k -> new ArrayDeque<>()).add(exchange);
+        }
+    }
+
+    @Override
+    public int exchange(ByteBuffer query, InetSocketAddress server, ByteBuffer response, int timeoutMillis)
+            throws IOException {
+        RecordingTransport.Exchange exchange;
+        Deque<RecordingTransport.Exchange> recorded = exchanges.get(key(server, query, query.limit()));
+        if (recorded == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        synchronized (recorded) {
+            exchange = recorded.size() > 1 ? recorded.pollFirst() : recorded.peekFirst();
+        }
+        replayed.incrementAndGet();
+
+        long delayMicros = speed > 0 ? (long) (exchange.latencyMicros / speed) : 0;
+        boolean timedOut = exchange.response == null || delayMicros > timeoutMillis * 1000L;
+        if (timedOut) delayMicros = Math.min(delayMicros, timeoutMillis * 1000L);
+        if (delayMicros > 0) {
+            try {
+                Thread.sleep(delayMicros / 1000, (int) (delayMicros % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (timedOut) return -1;
+
+        response.clear();
+        response.put(exchange.response);
+        response.putShort(DNSMessage.IDOffset, (short) DNSTransport.transactionId(query));
+        return exchange.response.length;
+    }
+
+    /**
+     * @return The number of queries answered from the capture (including recorded timeouts).
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return The number of queries that were not found in the capture.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Builds the key of an exchange from its server and its query without transaction ID.
+     */
+    private static ByteBuffer key(InetSocketAddress server, ByteBuffer query, int length) {
+        byte[] address = server.getAddress().getAddress();
+        ByteBuffer key = ByteBuffer.allocate(address.length + 2 + length - 2);
+        key.put(address).putShort((short) server.getPort());
+        for (int i = 2; i < length; i++) key.put(query.get(i));
+        key.flip();
+        return key;
+    }
+}
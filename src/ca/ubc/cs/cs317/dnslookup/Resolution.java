@@ -0,0 +1,567 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * The state of one resolution, i.e., of the iterative algorithm used to answer a question starting from the best
+ * nameservers in the cache. The algorithm is expressed as an explicit state machine rather than as recursive calls:
+ * advance() runs it until it needs something from the outside (a query to be sent, the address of a nameserver
+ * with no glue, an answer from a cache peer), and the driver reports the outcome with the matching on...() method
+ * before calling advance() again. This way the same algorithm can be driven by a thread that blocks on each query
+ * (DNSLookupService) or by an event loop advancing many resolutions at once (ResolverEventLoop), and the stack depth
+ * does not depend on the delegation depth or the length of CNAME chains.
+ * <p>
+ * A resolution may optionally follow CNAME records: the canonical names found are then resolved in turn, and the
+ * results contain the whole chain.
+ * <p>
+ * A resolution may also be given a ResolutionBudget, shared with the resolutions of the nameserver addresses it
+ * needs; it then terminates with an error as soon as the budget is exhausted.
+ * <p>
+ * Given a ServerHealth table, the resolution skips the nameservers it holds down, and reports to it the nameservers
+ * that time out or turn out to be lame. A lame nameserver (REFUSED, SERVFAIL, or a response that neither answers the
+ * question nor refers to a closer zone) does not end the resolution: the next nameserver is tried instead.
+ * <p>
+ * Nameservers are queried over IPv4 or IPv6, from their A and AAAA records. Given a FamilyPreference table, the
+ * resolution queries a nameserver with addresses of both families over the family it prefers, and offers the other
+ * address (getAlternateServer) for the driver to race; otherwise IPv4 addresses are used first.
+ */
+public class Resolution {
+
+    /**
+     * What the resolution needs in order to make progress.
+     */
+    public enum Step {
+        /** getQueryQuestion() must be sent to getServer(); the outcome is reported with onResponse or onError. */
+        SEND_QUERY,
+        /** An address is needed for getNameserver(); the outcome is reported with onNameserverAddress. */
+        RESOLVE_NAMESERVER,
+        /** The cache peer may be asked for getQueryQuestion(); completion is reported with onPeerResult. */
+        ASK_PEER,
+        /** The resolution is complete; getResults() returns its outcome. */
+        DONE
+    }
+
+    private enum State { START, SELECT_SERVER, WAITING, FINISHED }
+
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+
+    private final DNSQuestion question;
+    private final boolean followCNames;
+    private final DNSCache cache;
+    private final boolean usePeer;
+
+    private final Deque<DNSQuestion> pendingQuestions = new ArrayDeque<>();
+    private final Map<DNSQuestion, Integer> indirectionLevels = new HashMap<>();
+    private final Set<ResourceRecord> chain = new HashSet<>();
+    private final Set<InetAddress> tried = new HashSet<>();
+    private final Set<ResourceRecord> serversNotTried = new HashSet<>();
+    private List<ResourceRecord> serverList = new ArrayList<>();
+
+    private State state = State.START;
+    private Step step;
+    private DNSQuestion current;
+    private String zone;
+    private boolean peerAsked;
+    private InetAddress server;
+    private ResourceRecord nameserver;
+    private Collection<ResourceRecord> results;
+    private DNSLookupService.DNSErrorException error;
+    private ResolutionBudget budget;
+    private ServerHealth health;
+    private FamilyPreference families;
+    private InetAddress alternate;
+    private String serverName;
+    private DNSLookupService.DNSErrorException serverError;
+
+    /**
+     * Creates a resolution for a single question, without following CNAME records (the results may then be a CNAME
+     * record rather than a record of the requested type).
+     *
+     * @param question The question to be answered.
+     * @param cache    The cache used and updated by the resolution.
+     * @param usePeer  true if the resolution must ask the cache peer before querying nameservers.
+     */
+    public Resolution(DNSQuestion question, DNSCache cache, boolean usePeer) {
+        this(question, -1, cache, usePeer);
+    }
+
+    /**
+     * Creates a resolution that follows CNAME records, up to a given number of indirection levels. If
+     * maxIndirectionLevels is negative, CNAME records are not followed.
+     *
+     * @param question             The question to be answered.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @param cache                The cache used and updated by the resolution.
+     * @param usePeer              true if the resolution must ask the cache peer before querying nameservers.
+     */
+    public Resolution(DNSQuestion question, int maxIndirectionLevels, DNSCache cache, boolean usePeer) {
+        this.question = question;
+        this.followCNames = maxIndirectionLevels >= 0;
+        this.cache = cache;
+        this.usePeer = usePeer;
+        pendingQuestions.add(question);
+        indirectionLevels.put(question, maxIndirectionLevels);
+    }
+
+    /**
+     * Limits the work of this resolution. Every query it asks to send and every nameserver address it needs is taken
+     * from the budget, and the resolution terminates once the budget is exhausted.
+     *
+     * @param budget The budget of the resolution tree this resolution belongs to, or null for no limit.
+     */
+    public void setBudget(ResolutionBudget budget) {
+        this.budget = budget;
+    }
+
+    public ResolutionBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Makes the resolution skip the nameservers held down by a health table, and report failed nameservers to it.
+     *
+     * @param health The health table shared by resolutions, or null to try every nameserver.
+     */
+    public void setServerHealth(ServerHealth health) {
+        this.health = health;
+    }
+
+    public ServerHealth getServerHealth() {
+        return health;
+    }
+
+    /**
+     * Makes the resolution query nameservers over the address family they respond fastest on, and offer their other
+     * address to be raced.
+     *
+     * @param families The preference table shared by resolutions, or null to use IPv4 addresses first, without any
+     *                 alternate address.
+     */
+    public void setFamilyPreference(FamilyPreference families) {
+        this.families = families;
+    }
+
+    public DNSQuestion getQuestion() {
+        return question;
+    }
+
+    /**
+     * @return The question currently being resolved: the original question, or a canonical name of its CNAME chain.
+     */
+    public DNSQuestion getQueryQuestion() {
+        return current;
+    }
+
+    /**
+     * @return The server to send the query to, when the current step is SEND_QUERY.
+     */
+    public InetAddress getServer() {
+        return server;
+    }
+
+    /**
+     * @return The address of the same nameserver as getServer(), in the other address family, to which the query may
+     * also be sent if getServer() is slow to respond; null if there is none.
+     */
+    public InetAddress getAlternateServer() {
+        return alternate;
+    }
+
+    /**
+     * @return The host name of the nameserver at getServer(), or null if it is not known (when the address was
+     * found by resolving several nameservers at once).
+     */
+    public String getServerName() {
+        return serverName;
+    }
+
+    /**
+     * @return The name of the zone whose nameservers are currently being queried, or null before the first query.
+     */
+    public String getZone() {
+        return zone;
+    }
+
+    /**
+     * @return The NS record of the nameserver whose address is needed, when the current step is RESOLVE_NAMESERVER.
+     */
+    public ResourceRecord getNameserver() {
+        return nameserver;
+    }
+
+    /**
+     * @return The other candidate nameservers not tried yet, which the driver may resolve at the same time.
+     */
+    public List<ResourceRecord> getOtherNameservers() {
+        return Collections.unmodifiableList(serverList);
+    }
+
+    public boolean isDone() {
+        return state == State.FINISHED;
+    }
+
+    /**
+     * Returns the outcome of a completed resolution.
+     *
+     * @return The records answering the question, possibly empty if no nameserver could answer it.
+     * @throws DNSLookupService.DNSErrorException If a nameserver returned an error, the CNAME indirection limit
+     *                                            was exceeded, or the budget was exhausted.
+     */
+    public Collection<ResourceRecord> getResults() throws DNSLookupService.DNSErrorException {
+        if (error != null) throw error;
+        return results;
+    }
+
+    /**
+     * Runs the resolution until it needs something from its driver, or until it is complete.
+     *
+     * @return The step the driver must perform next.
+     */
+    public Step advance() {
+        while (true) {
+            if ((state == State.START || state == State.SELECT_SERVER) && budget != null && budget.isExhausted()) {
+                exhausted();
+                continue;
+            }
+            switch (state) {
+                case START:
+                    start();
+                    break;
+                case SELECT_SERVER:
+                    selectServer();
+                    break;
+                case WAITING:
+                    return step;
+                case FINISHED:
+                    return Step.DONE;
+            }
+        }
+    }
+
+    /**
+     * Reports the outcome of the query requested by SEND_QUERY.
+     *
+     * @param records The records received in the response (already added to the cache), or null if no response was
+     *                received.
+     */
+    public void onResponse(Collection<ResourceRecord> records) {
+        onResponse(server, records);
+    }
+
+    /**
+     * Reports the outcome of the query requested by SEND_QUERY when it was also sent to the server returned by
+     * hedge(), in which case the response may come from either server.
+     *
+     * @param from    The server that responded, or getServer() if neither did.
+     * @param records The records received in the response (already added to the cache), or null if no response was
+     *                received.
+     */
+    public void onResponse(InetAddress from, Collection<ResourceRecord> records) {
+        expect(Step.SEND_QUERY);
+        server = from;
+        if (records == null) {
+            // a resolution stopped by its budget did not wait for the server
+            if (health != null && (budget == null || !budget.isExhausted())) health.onTimeout(server);
+        } else if (isLame(records)) {
+            if (health != null) health.onLame(server, zone);
+        } else {
+            if (health != null) health.onResponse(server, zone);
+            serversNotTried.addAll(serverList);
+            serverList = cache.getBestNameservers(current);
+            if (!serverList.isEmpty()) zone = serverList.get(0).getHostName();
+        }
+        state = State.SELECT_SERVER;
+    }
+
+    /**
+     * Reports that the query requested by SEND_QUERY returned an error. SERVFAIL and REFUSED mark the nameserver as
+     * lame and the next nameserver is tried (the error is kept in case none can answer); any other error terminates
+     * the resolution.
+     *
+     * @param e The error returned by the nameserver.
+     */
+    public void onError(DNSLookupService.DNSErrorException e) {
+        onError(server, e);
+    }
+
+    /**
+     * Reports that the query requested by SEND_QUERY, also sent to the server returned by hedge(), returned an
+     * error.
+     *
+     * @param from The server that returned the error.
+     * @param e    The error returned by the nameserver.
+     */
+    public void onError(InetAddress from, DNSLookupService.DNSErrorException e) {
+        expect(Step.SEND_QUERY);
+        server = from;
+        if (e.getRcode() == RCODE_SERVFAIL || e.getRcode() == RCODE_REFUSED) {
+            if (health != null) health.onLame(server, zone);
+            serverError = e;
+            state = State.SELECT_SERVER;
+            return;
+        }
+        error = e;
+        state = State.FINISHED;
+    }
+
+    /**
+     * Picks a second nameserver for the query requested by SEND_QUERY, to which the same question is sent if
+     * getServer() is slow to respond. Only the nameservers of the zone whose address is known, not tried yet and
+     * available are considered, and the query is taken from the budget.
+     *
+     * @return The address of the second nameserver, or null if there is none (or the budget is exhausted).
+     */
+    public InetAddress hedge() {
+        expect(Step.SEND_QUERY);
+        for (Iterator<ResourceRecord> it = serverList.iterator(); it.hasNext(); ) {
+            ResourceRecord rr = it.next();
+            if (rr.getRecordType() != RecordType.NS) continue;
+            String name = rr.getTextResult();
+            InetAddress address = preferred(name, knownAddress(name, RecordType.A),
+                    knownAddress(name, RecordType.AAAA));
+            if (address == null || tried.contains(address) || !isAvailable(address)) continue;
+            if (budget != null && !budget.tryQuery()) return null;
+            it.remove();
+            tried.add(address);
+            return address;
+        }
+        return null;
+    }
+
+    /**
+     * Reports the address found for the nameserver requested by RESOLVE_NAMESERVER.
+     *
+     * @param address The address of the nameserver (or of another candidate nameserver), or null if none was found.
+     */
+    public void onNameserverAddress(InetAddress address) {
+        expect(Step.RESOLVE_NAMESERVER);
+        nameserver = null;
+        if (address == null || !tried.add(address) || !isAvailable(address)) {
+            state = State.SELECT_SERVER;
+        } else {
+            // the address may belong to any of the nameservers resolved together
+            sendQuery(address, null, null);
+        }
+    }
+
+    /**
+     * Reports that the cache peer was asked, as requested by ASK_PEER. Any record it returned must already be in the
+     * cache.
+     */
+    public void onPeerResult() {
+        expect(Step.ASK_PEER);
+        state = State.START;
+    }
+
+    private void start() {
+        current = pendingQuestions.peekFirst();
+        if (current == null) {
+            finish();
+            return;
+        }
+        if (indirectionLevels.get(current) < 0 && followCNames) {
+            error = new DNSLookupService.DNSErrorException("CNAME indirection limit exceeded");
+            state = State.FINISHED;
+            return;
+        }
+        if (cache.isLocalNameError(current)) {
+            error = new DNSLookupService.DNSErrorException("Name does not exist in local data", RCODE_NXDOMAIN);
+            state = State.FINISHED;
+            return;
+        }
+        List<ResourceRecord> localResults = cache.getLocalAnswer(current);
+        if (localResults != null) {
+            answered(localResults);
+            return;
+        }
+        if (followCNames) {
+            Collection<ResourceRecord> finalAnswer = cache.getFinalAnswer(current);
+            if (finalAnswer != null && DNSLookupService.containsType(finalAnswer, question.getRecordType())) {
+                // the answer already holds the whole chain, so its canonical names are not resolved again
+                pendingQuestions.removeFirst();
+                peerAsked = false;
+                chain.addAll(finalAnswer);
+                state = State.START;
+                return;
+            }
+        }
+        Collection<ResourceRecord> cacheResults = cache.getCachedResults(current);
+        if (!cacheResults.isEmpty()) {
+            answered(cacheResults);
+            return;
+        }
+        if (usePeer && !peerAsked) {
+            peerAsked = true;
+            waitFor(Step.ASK_PEER);
+            return;
+        }
+        tried.clear();
+        serversNotTried.clear();
+        serverError = null;
+        serverList = cache.getBestNameservers(current);
+        zone = serverList.isEmpty() ? null : serverList.get(0).getHostName();
+        state = State.SELECT_SERVER;
+    }
+
+    private void selectServer() {
+        if (serverList.isEmpty()) {
+            if (!serversNotTried.isEmpty()) {
+                serverList.addAll(serversNotTried);
+                serversNotTried.clear();
+                return;
+            }
+            if (serverError != null) {
+                error = serverError;
+                state = State.FINISHED;
+                return;
+            }
+            answered(Collections.emptySet());
+            return;
+        }
+        Collection<ResourceRecord> cacheResults = cache.getCachedResults(current);
+        if (!cacheResults.isEmpty()) {
+            answered(cacheResults);
+            return;
+        }
+
+        ResourceRecord currServer = serverList.remove(0);
+        if (currServer.getRecordType() != RecordType.NS) return;
+        String name = currServer.getTextResult();
+        InetAddress ipv4 = knownAddress(name, RecordType.A);
+        InetAddress ipv6 = knownAddress(name, RecordType.AAAA);
+        if (ipv4 == null && ipv6 == null) {
+            if (budget != null && !budget.trySubResolution()) {
+                exhausted();
+                return;
+            }
+            nameserver = currServer;
+            waitFor(Step.RESOLVE_NAMESERVER);
+            return;
+        }
+        InetAddress address = preferred(name, ipv4, ipv6);
+        InetAddress other = families == null ? null : address == ipv4 ? ipv6 : ipv4;
+        if (other != null && (!tried.add(other) || !isAvailable(other))) other = null;
+        if (!tried.add(address) || !isAvailable(address)) {
+            if (other == null) return;
+            address = other;
+            other = null;
+        }
+        sendQuery(address, other, name);
+    }
+
+    private InetAddress knownAddress(String name, RecordType type) {
+        for (ResourceRecord rr : cache.getCachedResults(new DNSQuestion(name, type, RecordClass.IN))) {
+            if (rr.getRecordType() == type && rr.getInetResult() != null) return rr.getInetResult();
+        }
+        return null;
+    }
+
+    /**
+     * Picks the address to query a nameserver at: the family it prefers if there is a preference table, otherwise
+     * IPv4.
+     */
+    private InetAddress preferred(String name, InetAddress ipv4, InetAddress ipv6) {
+        if (ipv6 == null) return ipv4;
+        if (ipv4 == null) return ipv6;
+        return families != null && families.prefersIPv6(name) ? ipv6 : ipv4;
+    }
+
+    private boolean isAvailable(InetAddress address) {
+        return health == null || health.isAvailable(address, zone);
+    }
+
+    /**
+     * Decides whether a response shows its nameserver to be lame for the current zone: it does not answer the
+     * question (not even with a CNAME record), is not a negative answer (with an SOA record), and does not refer to
+     * a zone closer to the question.
+     */
+    private boolean isLame(Collection<ResourceRecord> records) {
+        for (ResourceRecord rr : records) {
+            if (rr.getHostName().equalsIgnoreCase(current.getHostName())) return false;
+            if (rr.getRecordType() == RecordType.SOA) return false;
+            if (rr.getRecordType() == RecordType.NS && isBelow(rr.getHostName(), zone)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isBelow(String name, String zone) {
+        if (zone == null) return true;
+        if (zone.isEmpty()) return !name.isEmpty();
+        return name.length() > zone.length() && name.toLowerCase().endsWith("." + zone.toLowerCase());
+    }
+
+    private void sendQuery(InetAddress address, InetAddress alternate, String name) {
+        if (budget != null && !budget.tryQuery()) {
+            exhausted();
+            return;
+        }
+        server = address;
+        this.alternate = alternate;
+        serverName = name;
+        waitFor(Step.SEND_QUERY);
+    }
+
+    private void exhausted() {
+        error = new DNSLookupService.DNSErrorException("Resolution budget exhausted (" + budget.getExhaustion() + ")");
+        state = State.FINISHED;
+    }
+
+    /**
+     * Records the results obtained for the current question. Unless CNAME records are followed, this completes the
+     * resolution; otherwise, any canonical name without an answer of the requested type is queued for resolution.
+     */
+    private void answered(Collection<ResourceRecord> records) {
+        pendingQuestions.removeFirst();
+        peerAsked = false;
+        if (!followCNames) {
+            results = records;
+            state = State.FINISHED;
+            return;
+        }
+        chain.addAll(records);
+        if (!containsAnswer(records, current)) {
+            int level = indirectionLevels.get(current);
+            for (ResourceRecord rr : records) {
+                if (rr.getRecordType() != RecordType.CNAME) continue;
+                DNSQuestion next = new DNSQuestion(rr.getTextResult(), question.getRecordType(),
+                        question.getRecordClass());
+                if (!indirectionLevels.containsKey(next)) {
+                    indirectionLevels.put(next, level - 1);
+                    pendingQuestions.addLast(next);
+                }
+            }
+        }
+        state = State.START;
+    }
+
+    private void finish() {
+        results = chain;
+        for (ResourceRecord rr : chain) {
+            if (rr.getRecordType() == question.getRecordType()) {
+                cache.addFinalAnswer(question, chain);
+                break;
+            }
+        }
+        state = State.FINISHED;
+    }
+
+    private static boolean containsAnswer(Collection<ResourceRecord> rrs, DNSQuestion question) {
+        for (ResourceRecord rr : rrs) {
+            if (rr.getQuestion().equals(question)) return true;
+        }
+        return false;
+    }
+
+    private void waitFor(Step step) {
+        this.step = step;
+        state = State.WAITING;
+    }
+
+    private void expect(Step expected) {
+        if (state != State.WAITING || step != expected)
+            throw new IllegalStateException("Resolution of " + question + " is not waiting for " + expected);
+    }
+}
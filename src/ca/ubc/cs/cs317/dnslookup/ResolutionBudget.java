@@ -0,0 +1,176 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The work allowed for one resolution, including everything it starts on its behalf: the resolutions of nameserver
+ * addresses (sub-resolutions), their own sub-resolutions, and so on. The budget is shared by the whole resolution tree
+ * and limits the number of queries sent upstream (retransmissions included), the number of sub-resolutions and the
+ * time elapsed since the resolution started. Once any limit is reached the budget is exhausted, and every resolution
+ * of the tree terminates with a DNSErrorException instead of sending more queries.
+ * <p>
+ * The budget is safe to use from several threads, since nameserver addresses may be resolved in parallel.
+ */
+public class ResolutionBudget {
+
+    private final DNSQuestion question;
+    private final int maxQueries;
+    private final int maxSubResolutions;
+    private final long deadlineNanos;
+    private final boolean hasDeadline;
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger subResolutions = new AtomicInteger();
+    private volatile String exhaustion;
+
+    /**
+     * Creates the budget of a resolution starting now.
+     *
+     * @param question          The question of the top-level resolution.
+     * @param maxQueries        Maximum number of queries sent upstream.
+     * @param maxSubResolutions Maximum number of nameserver addresses resolved.
+     * @param timeoutMillis     Time allowed for the whole resolution, in milliseconds, or 0 for no deadline.
+     */
+    public ResolutionBudget(DNSQuestion question, int maxQueries, int maxSubResolutions, long timeoutMillis) {
+        this.question = question;
+        this.maxQueries = maxQueries;
+        this.maxSubResolutions = maxSubResolutions;
+        this.hasDeadline = timeoutMillis > 0;
+        this.deadlineNanos = System.nanoTime() + timeoutMillis * 1000000;
+    }
+
+    public DNSQuestion getQuestion() {
+        return question;
+    }
+
+    /**
+     * Takes one upstream query from the budget.
+     *
+     * @return true if the query may be sent, false if the budget is exhausted.
+     */
+    public boolean tryQuery() {
+        if (isExhausted()) return false;
+        if (queries.incrementAndGet() <= maxQueries) return true;
+        exhaust(maxQueries + " queries");
+        return false;
+    }
+
+    /**
+     * Takes one sub-resolution from the budget.
+     *
+     * @return true if the sub-resolution may be started, false if the budget is exhausted.
+     */
+    public boolean trySubResolution() {
+        if (isExhausted()) return false;
+        if (subResolutions.incrementAndGet() <= maxSubResolutions) return true;
+        exhaust(maxSubResolutions + " sub-resolutions");
+        return false;
+    }
+
+    /**
+     * @return true if a limit of the budget was reached, including the deadline.
+     */
+    public boolean isExhausted() {
+        if (exhaustion == null && hasDeadline && System.nanoTime() - deadlineNanos >= 0) exhaust("deadline");
+        return exhaustion != null;
+    }
+
+    /**
+     * @return The limit that was reached (e.g., "100 queries" or "deadline"), or null if the budget is not exhausted.
+     */
+    public String getExhaustion() {
+        isExhausted();
+        return exhaustion;
+    }
+
+    /**
+     * Bounds a timeout so that it does not extend past the deadline.
+     *
+     * @param timeoutMillis A timeout, in milliseconds.
+     * @return The smaller of the timeout and the time remaining before the deadline, at least 1 millisecond.
+     */
+    public int boundTimeout(int timeoutMillis) {
+        if (!hasDeadline) return timeoutMillis;
+        long remaining = (deadlineNanos - System.nanoTime()) / 1000000;
+        return (int) Math.max(1, Math.min(timeoutMillis, remaining));
+    }
+
+    public int getQueries() {
+        return Math.min(queries.get(), maxQueries);
+    }
+
+    public int getSubResolutions() {
+        return Math.min(subResolutions.get(), maxSubResolutions);
+    }
+
+    private synchronized void exhaust(String reason) {
+        if (exhaustion == null) exhaustion = reason;
+    }
+
+    /**
+     * Counts the resolutions that exhausted their budget, per name and per limit reached, for the names that most
+     * often exhaust it.
+     */
+    public static class Stats {
+        private final int capacity;
+        private final Map<String, Integer> names = new HashMap<>();
+        private final Map<String, Integer> reasons = new TreeMap<>();
+        private long resolutions;
+        private long exhausted;
+
+        /**
+         * @param capacity Maximum number of names tracked; when full, the name seen least often is dropped.
+         */
+        public Stats(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Records the outcome of a completed resolution.
+         *
+         * @param budget The budget of the resolution.
+         */
+        public synchronized void record(ResolutionBudget budget) {
+            resolutions++;
+            String reason = budget.getExhaustion();
+            if (reason == null) return;
+            exhausted++;
+            reasons.merge(reason.replaceFirst("^\\d+ ", ""), 1, Integer::sum);
+            String name = budget.getQuestion().getHostName();
+            if (!names.containsKey(name) && names.size() >= capacity)
+                names.remove(Collections.min(names.entrySet(), Map.Entry.comparingByValue()).getKey());
+            names.merge(name, 1, Integer::sum);
+        }
+
+        public synchronized long getResolutions() {
+            return resolutions;
+        }
+
+        public synchronized long getExhausted() {
+            return exhausted;
+        }
+
+        /**
+         * @return The number of exhausted resolutions per host name, for the names tracked.
+         */
+        public synchronized Map<String, Integer> getExhaustedNames() {
+            return new HashMap<>(names);
+        }
+
+        /**
+         * @return The number of exhausted resolutions per limit reached ("queries", "sub-resolutions", "deadline").
+         */
+        public synchronized Map<String, Integer> getReasons() {
+            return new TreeMap<>(reasons);
+        }
+
+        public synchronized void report(PrintStream out) {
+            out.printf("Resolutions: %d, budget exhausted: %d %s%n", resolutions, exhausted, reasons);
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>(names.entrySet());
+            entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+            for (Map.Entry<String, Integer> entry : entries)
+                out.printf("       %-30s %d%n", entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A record of the work done to resolve one question: a tree of spans whose root is the resolution itself, with a
+ * child span for every query sent (with its server, number of attempts and outcome) and for every sub-resolution
+ * (e.g., of a nameserver without glue). Traces can be exported in the Chrome trace-event JSON format, which can be
+ * opened in chrome://tracing or Perfetto, or in a compact binary format that can be read back with readBinary.
+ * <p>
+ * Spans of a trace may be added from several threads, since sub-resolutions may run in parallel.
+ */
+public class ResolutionTrace {
+
+    private static final int MAGIC = 0x444e5354; // "DNST"
+    private static final int VERSION = 1;
+
+    private final long baseMicros;
+    private final long baseNanos;
+    private final Span root;
+
+    /**
+     * Creates a trace whose root span starts now.
+     *
+     * @param question The question being resolved.
+     */
+    public ResolutionTrace(DNSQuestion question) {
+        baseMicros = System.currentTimeMillis() * 1000;
+        baseNanos = System.nanoTime();
+        root = new Span(this, "resolve " + question, null, baseMicros);
+    }
+
+    private ResolutionTrace(DataInputStream in) throws IOException {
+        root = readSpan(this, in);
+        baseMicros = root.startMicros;
+        baseNanos = 0;
+    }
+
+    public Span getRoot() {
+        return root;
+    }
+
+    private long nowMicros() {
+        return baseMicros + (System.nanoTime() - baseNanos) / 1000;
+    }
+
+    /**
+     * One timed operation of a resolution.
+     */
+    public static class Span {
+        private final ResolutionTrace trace;
+        private final String name;
+        private final String server;
+        private final long startMicros;
+        private long durationMicros = -1;
+        private int attempts;
+        private String outcome = "";
+        private final List<Span> children = new ArrayList<>();
+
+        private Span(ResolutionTrace trace, String name, String server, long startMicros) {
+            this.trace = trace;
+            this.name = name;
+            this.server = server;
+            this.startMicros = startMicros;
+        }
+
+        /**
+         * Starts a span for a query sent to a server.
+         *
+         * @param question The question sent.
+         * @param server   The server the question is sent to.
+         * @return The new span, a child of this one.
+         */
+        public Span startQuery(DNSQuestion question, InetAddress server) {
+            return startChild("query " + question, server.getHostAddress());
+        }
+
+        /**
+         * Starts a span for a sub-resolution.
+         *
+         * @param question The question resolved.
+         * @return The new span, a child of this one.
+         */
+        public Span startResolution(DNSQuestion question) {
+            return startChild("resolve " + question, null);
+        }
+
+        private Span startChild(String name, String server) {
+            synchronized (trace) {
+                Span span = new Span(trace, name, server, trace.nowMicros());
+                children.add(span);
+                return span;
+            }
+        }
+
+        /**
+         * Ends the span.
+         *
+         * @param attempts Number of times the query was sent (0 for a resolution).
+         * @param outcome  A short description of the result, e.g., "3 records", "timeout" or an error message.
+         */
+        public void end(int attempts, String outcome) {
+            synchronized (trace) {
+                this.durationMicros = trace.nowMicros() - startMicros;
+                this.attempts = attempts;
+                this.outcome = outcome;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The address of the server queried, or null if this span is not a query.
+         */
+        public String getServer() {
+            return server;
+        }
+
+        public long getStartMicros() {
+            return startMicros;
+        }
+
+        /**
+         * @return The duration of the span in microseconds, or -1 if it has not ended.
+         */
+        public long getDurationMicros() {
+            synchronized (trace) {
+                return durationMicros;
+            }
+        }
+
+        public int getAttempts() {
+            synchronized (trace) {
+                return attempts;
+            }
+        }
+
+        public String getOutcome() {
+            synchronized (trace) {
+                return outcome;
+            }
+        }
+
+        public List<Span> getChildren() {
+            synchronized (trace) {
+                return Collections.unmodifiableList(new ArrayList<>(children));
+            }
+        }
+    }
+
+    /**
+     * Writes traces as a Chrome trace-event JSON document. Every span is a complete ("X") event; each trace is shown
+     * on a separate row.
+     *
+     * @param traces The traces to be written.
+     * @param out    The destination of the document.
+     * @throws IOException If out cannot be written.
+     */
+    public static void writeChromeTrace(Collection<ResolutionTrace> traces, Appendable out) throws IOException {
+        out.append("{\"traceEvents\":[");
+        boolean first = true;
+        int row = 0;
+        for (ResolutionTrace trace : traces) {
+            row++;
+            List<Span> spans = new ArrayList<>();
+            collect(trace.root, spans);
+            for (Span span : spans) {
+                if (!first) out.append(',');
+                first = false;
+                out.append("\n{\"name\":");
+                appendJsonString(out, span.getName());
+                out.append(",\"cat\":\"").append(span.server == null ? "resolution" : "query")
+                        .append("\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(String.valueOf(row))
+                        .append(",\"ts\":").append(String.valueOf(span.startMicros))
+                        .append(",\"dur\":").append(String.valueOf(Math.max(0, span.getDurationMicros())))
+                        .append(",\"args\":{");
+                if (span.server != null) {
+                    out.append("\"server\":");
+                    appendJsonString(out, span.server);
+                    out.append(",\"attempts\":").append(String.valueOf(span.getAttempts())).append(',');
+                }
+                out.append("\"outcome\":");
+                appendJsonString(out, span.getOutcome());
+                out.append("}}");
+            }
+        }
+        out.append("\n]}\n");
+    }
+
+    /**
+     * Writes traces in the compact binary format.
+     *
+     * @param traces The traces to be written.
+     * @param out    The destination stream.
+     * @throws IOException If out cannot be written.
+     */
+    public static void writeBinary(Collection<ResolutionTrace> traces, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(traces.size());
+        for (ResolutionTrace trace : traces) writeSpan(trace.root, out);
+    }
+
+    /**
+     * Reads traces written by writeBinary.
+     *
+     * @param in The source stream.
+     * @return The traces read, in the order they were written.
+     * @throws IOException If in cannot be read or does not contain traces.
+     */
+    public static List<ResolutionTrace> readBinary(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) throw new IOException("Not a resolution trace log");
+        int count = in.readInt();
+        List<ResolutionTrace> traces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) traces.add(new ResolutionTrace(in));
+        return traces;
+    }
+
+    private static void writeSpan(Span span, DataOutputStream out) throws IOException {
+        out.writeUTF(span.name);
+        out.writeUTF(span.server == null ? "" : span.server);
+        out.writeLong(span.startMicros);
+        out.writeLong(span.getDurationMicros());
+        out.writeShort(span.getAttempts());
+        out.writeUTF(span.getOutcome());
+        List<Span> children = span.getChildren();
+        out.writeShort(children.size());
+        for (Span child : children) writeSpan(child, out);
+    }
+
+    private static Span readSpan(ResolutionTrace trace, DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        String server = in.readUTF();
+        long start = in.readLong();
+        long duration = in.readLong();
+        int attempts = in.readShort();
+        String outcome = in.readUTF();
+        List<Span> children = new ArrayList<>();
+        int count = in.readShort();
+        for (int i = 0; i < count; i++) children.add(readSpan(trace, in));
+
+        Span span = new Span(trace, name, server.isEmpty() ? null : server, start);
+        span.durationMicros = duration;
+        span.attempts = attempts;
+        span.outcome = outcome;
+        span.children.addAll(children);
+        return span;
+    }
+
+    private static void collect(Span span, List<Span> spans) {
+        spans.add(span);
+        for (Span child : span.getChildren()) collect(child, spans);
+    }
+
+    private static void appendJsonString(Appendable out, String s) throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') out.append('\\').append(c);
+            else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+            else out.append(c);
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,68 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which resolutions are traced, and keeps the most recent completed traces. Only a fraction of resolutions
+ * is sampled, so tracing can stay enabled without measurably slowing the resolver; resolutions that are not sampled
+ * cost a single random draw.
+ */
+public class ResolutionTracer {
+
+    private final double sampleRate;
+    private final int capacity;
+    private final Deque<ResolutionTrace> traces = new ArrayDeque<>();
+
+    /**
+     * Creates a tracer.
+     *
+     * @param sampleRate Fraction of resolutions to be traced, between 0 (none) and 1 (all).
+     * @param capacity   Maximum number of completed traces kept, at least 1; older ones are discarded.
+     */
+    public ResolutionTracer(double sampleRate, int capacity) {
+        if (sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException("Invalid sample rate " + sampleRate);
+        if (capacity < 1) throw new IllegalArgumentException("Invalid trace capacity " + capacity);
+        this.sampleRate = sampleRate;
+        this.capacity = capacity;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Starts a trace for a resolution if it is sampled.
+     *
+     * @param question The question being resolved.
+     * @return A new trace, or null if this resolution is not traced.
+     */
+    public ResolutionTrace start(DNSQuestion question) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) return null;
+        return new ResolutionTrace(question);
+    }
+
+    /**
+     * Keeps a completed trace.
+     *
+     * @param trace A trace returned by start, whose root span has ended.
+     */
+    public synchronized void finish(ResolutionTrace trace) {
+        if (traces.size() >= capacity) traces.removeFirst();
+        traces.addLast(trace);
+    }
+
+    /**
+     * @return The completed traces kept, oldest first.
+     */
+    public synchronized List<ResolutionTrace> getTraces() {
+        return new ArrayList<>(traces);
+    }
+
+    public synchronized void clear() {
+        traces.clear();
+    }
+}
@@ -0,0 +1,479 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Drives many resolutions at once from a single thread. Queries are sent from a pool of non-blocking datagram
+ * channels on random source ports (SocketPool), and matched to their resolution by socket and transaction ID (never
+ * shared by two outstanding queries), and
+ * retransmissions are scheduled from a queue of deadlines rather than by blocking on a socket timeout. Nameservers
+ * without glue are resolved by child resolutions run by the same loop, so neither threads nor stack frames are
+ * consumed while a resolution waits.
+ * <p>
+ * Queries are built and responses parsed by a DNSLookupService, so the loop shares its cache, verbose printer and
+ * cache peer. Futures returned by resolve() are completed on the loop thread; callbacks attached to them must not
+ * block.
+ */
+public class ResolverEventLoop implements Closeable {
+
+    private static final int MAX_QUERY_ATTEMPTS = 3;
+    private static final int QUERY_TIMEOUT = 5000;
+    private static final int MAX_PARALLEL_NS_LOOKUPS = 3;
+    private static final int MAX_POOLED_MESSAGES = 256;
+    private static final int SOCKETS = 8;
+
+    private final DNSLookupService service;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final DNSMessagePool receivePool = new DNSMessagePool(MAX_POOLED_MESSAGES, true);
+    private final Selector selector;
+    private final SocketPool sockets;
+    private final Thread thread;
+    private final Queue<Runnable> submitted = new ConcurrentLinkedQueue<>();
+    private final Deque<Task> runnable = new ArrayDeque<>();
+    private final List<Task> throttled = new ArrayList<>();
+    private final Deque<Task> unsent = new ArrayDeque<>();
+    private final Map<Integer, PendingQuery> pending = new HashMap<>();
+    private final PriorityQueue<PendingQuery> deadlines =
+            new PriorityQueue<>(Comparator.comparingLong((PendingQuery p) -> p.deadline));
+    private final Set<Task> active = new HashSet<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates an event loop and starts its thread.
+     *
+     * @param service The lookup service used to build queries and process responses.
+     * @throws IOException If the sockets or selector cannot be opened.
+     */
+    public ResolverEventLoop(DNSLookupService service) throws IOException {
+        this(service, SocketPool.QUERIES_PER_PORT);
+    }
+
+    /**
+     * Creates an event loop whose sockets move to new ports after a given number of queries.
+     *
+     * @param service        The lookup service used to build queries and process responses.
+     * @param queriesPerPort The number of queries sent from a socket before it is replaced.
+     * @throws IOException If the sockets or selector cannot be opened.
+     */
+    ResolverEventLoop(DNSLookupService service, int queriesPerPort) throws IOException {
+        this.service = service;
+        selector = Selector.open();
+        try {
+            sockets = new SocketPool(selector, SOCKETS, queriesPerPort);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "dns-event-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts resolving a question without following CNAME records, like DNSLookupService.iterativeQuery.
+     *
+     * @param question Host name and record type/class to be resolved.
+     * @return A future completed with the results of the resolution.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> resolve(DNSQuestion question) {
+        return submit(new Resolution(question, cache, service.getCachePeer() != null));
+    }
+
+    /**
+     * Starts resolving a question, following CNAME records like DNSLookupService.getResultsFollowingCNames.
+     *
+     * @param question             Host name and record type/class to be resolved.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future completed with the results of the resolution, or with a DNSErrorException if a nameserver
+     * returned an error or the indirection limit was exceeded.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> resolve(DNSQuestion question, int maxIndirectionLevels) {
+        if (maxIndirectionLevels < 0) {
+            CompletableFuture<Collection<ResourceRecord>> future = new CompletableFuture<>();
+            future.completeExceptionally(
+                    new DNSLookupService.DNSErrorException("CNAME indirection limit exceeded"));
+            return future;
+        }
+        return submit(new Resolution(question, maxIndirectionLevels, cache, service.getCachePeer() != null));
+    }
+
+    /**
+     * Stops the loop. Resolutions still in progress are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(QUERY_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The number of sockets the loop has moved to a new port.
+     */
+    long getSocketRotations() {
+        return sockets.getRotations();
+    }
+
+    private CompletableFuture<Collection<ResourceRecord>> submit(Resolution resolution) {
+        resolution.setBudget(service.newBudget(resolution.getQuestion()));
+        resolution.setServerHealth(service.getServerHealth());
+        Task task = new Task(resolution, new CompletableFuture<>(), null);
+        post(() -> {
+            active.add(task);
+            runnable.add(task);
+        });
+        return task.future;
+    }
+
+    /**
+     * Runs an action on the loop thread.
+     */
+    private void post(Runnable action) {
+        if (closed) throw new IllegalStateException("Event loop is closed");
+        submitted.add(action);
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                Runnable action;
+                while ((action = submitted.poll()) != null) action.run();
+                Task task;
+                while ((task = runnable.pollFirst()) != null) step(task);
+
+                PendingQuery next = deadlines.peek();
+                long timeout = next == null ? 0 : Math.max(1, next.deadline - System.currentTimeMillis());
+                selector.select(timeout);
+                for (SelectionKey key : selector.selectedKeys()) receiveResponses((Integer) key.attachment());
+                selector.selectedKeys().clear();
+                expireQueries();
+            }
+        } catch (IOException e) {
+            // the selector is no longer usable; cancel everything below
+        } finally {
+            closed = true;
+            sockets.close();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            Runnable action;
+            while ((action = submitted.poll()) != null) action.run();
+            for (Task task : active) task.future.cancel(false);
+        }
+    }
+
+    /**
+     * Performs the next step requested by a resolution. Completing a step (e.g., receiving a response) puts the
+     * resolution back in the runnable queue rather than advancing it directly, so the stack depth stays constant.
+     */
+    private void step(Task task) {
+        switch (task.resolution.advance()) {
+            case SEND_QUERY:
+                sendQuery(task);
+                break;
+            case RESOLVE_NAMESERVER:
+                resolveNameservers(task);
+                break;
+            case ASK_PEER:
+                CompletableFuture.runAsync(() -> service.getCachePeer().query(task.resolution.getQueryQuestion()))
+                        .whenComplete((ignored, e) -> post(() -> {
+                            task.resolution.onPeerResult();
+                            runnable.add(task);
+                        }));
+                break;
+            case DONE:
+                complete(task);
+                break;
+        }
+    }
+
+    /**
+     * Sends the query requested by a resolution, unless the concurrency limiter does not allow one more query to its
+     * server, in which case the resolution waits in the throttled list until another query completes. If every
+     * socket is full, the resolution waits in the unsent list until a socket has room: the query is not counted as
+     * sent, so neither the server's health nor the concurrency limit is affected.
+     */
+    private void sendQuery(Task task) {
+        ConcurrencyLimiter limiter = service.getConcurrencyLimiter();
+        ConcurrencyLimiter.Token token = null;
+        if (limiter != null) {
+            token = limiter.tryAcquire(task.resolution.getServer());
+            if (token == null) {
+                throttled.add(task);
+                return;
+            }
+        }
+        sendQuery(task, token);
+    }
+
+    private void sendQuery(Task task, ConcurrencyLimiter.Token token) {
+        DNSQuestion question = task.resolution.getQueryQuestion();
+        int key = sockets.allocate();
+        if (key < 0) {
+            if (token != null) token.close();
+            unsent.add(task);
+            return;
+        }
+        DNSMessage message = service.buildQuery(question);
+        message.setID(SocketPool.getId(key));
+        message.buffer.flip();
+        PendingQuery query = new PendingQuery(task, message, task.resolution.getServer(), token, key);
+        pending.put(key, query);
+        try {
+            transmit(query);
+        } catch (IOException e) {
+            if (token != null) token.onTimeout();
+            finishQuery(query);
+            task.resolution.onResponse(null);
+            runnable.add(task);
+            return;
+        }
+        deadlines.add(query);
+    }
+
+    private void transmit(PendingQuery query) throws IOException {
+        ResolutionBudget budget = query.task.resolution.getBudget();
+        query.attempts++;
+        query.sentNanos = System.nanoTime();
+        query.deadline = System.currentTimeMillis() +
+                (budget == null ? QUERY_TIMEOUT : budget.boundTimeout(QUERY_TIMEOUT));
+        service.getVerbose().printQueryToSend(query.task.resolution.getQueryQuestion(), query.server,
+                query.message.getID());
+        query.message.buffer.rewind();
+        sockets.getChannel(query.key).send(query.message.buffer,
+                new InetSocketAddress(query.server, service.getServerPort()));
+    }
+
+    /**
+     * Receives the responses waiting on one socket of the pool. Completing the last query of a retired socket
+     * replaces it and closes its channel, after which its remaining responses are dropped. A channel that fails is
+     * not read any further in this round; the other sockets keep working.
+     */
+    private void receiveResponses(int socket) {
+        DatagramChannel channel = sockets.getChannelAt(socket);
+        while (channel == sockets.getChannelAt(socket)) {
+            DNSMessage message = receivePool.acquire();
+            try {
+                message.buffer.clear();
+                SocketAddress from;
+                try {
+                    from = channel.receive(message.buffer);
+                } catch (IOException e) {
+                    return;
+                }
+                if (from == null) return;
+                int length = message.buffer.position();
+                if (length < DNSMessage.DataOffset) continue;
+                message.resetReceived(length);
+                PendingQuery query = pending.get(SocketPool.getKey(socket, message.getID()));
+                if (query == null || !message.getQR() ||
+                        !(from instanceof InetSocketAddress) ||
+                        !((InetSocketAddress) from).getAddress().equals(query.server))
+                    continue;
+                if (query.token != null) query.token.onResponse(System.nanoTime() - query.sentNanos);
+                finishQuery(query);
+                Resolution resolution = query.task.resolution;
+                try {
+                    resolution.onResponse(service.processResponse(message));
+                } catch (DNSLookupService.DNSErrorException e) {
+                    resolution.onError(e);
+                }
+                runnable.add(query.task);
+            } finally {
+                receivePool.release(message);
+            }
+        }
+    }
+
+    /**
+     * Retransmits the queries whose deadline has passed, or gives up on them after MAX_QUERY_ATTEMPTS attempts or
+     * once the budget of their resolution is exhausted (the first transmission is taken from the budget by the
+     * resolution itself).
+     */
+    private void expireQueries() {
+        long now = System.currentTimeMillis();
+        PendingQuery query;
+        while ((query = deadlines.peek()) != null && query.deadline <= now) {
+            deadlines.poll();
+            if (query.finished) continue;
+            if (query.token != null) query.token.onTimeout();
+            ResolutionBudget budget = query.task.resolution.getBudget();
+            if (query.attempts < MAX_QUERY_ATTEMPTS && (budget == null || budget.tryQuery())) {
+                try {
+                    transmit(query);
+                    deadlines.add(query);
+                    continue;
+                } catch (IOException e) {
+                    // give up on this query below
+                }
+            }
+            finishQuery(query);
+            query.task.resolution.onResponse(null);
+            runnable.add(query.task);
+        }
+    }
+
+    private void finishQuery(PendingQuery query) {
+        query.finished = true;
+        pending.remove(query.key);
+        DNSLookupService.releaseMessage(query.message);
+        sockets.release(query.key);
+        if (query.token != null) {
+            query.token.close();
+            sendThrottled();
+        }
+        Task next = unsent.poll();
+        if (next != null) sendQuery(next);
+    }
+
+    /**
+     * Sends the queries of throttled resolutions that the concurrency limiter now allows.
+     */
+    private void sendThrottled() {
+        ConcurrencyLimiter limiter = service.getConcurrencyLimiter();
+        Map<Task, ConcurrencyLimiter.Token> ready = new LinkedHashMap<>();
+        for (Iterator<Task> it = throttled.iterator(); it.hasNext(); ) {
+            Task task = it.next();
+            ConcurrencyLimiter.Token token = limiter.retry(task.resolution.getServer());
+            if (token == null) continue;
+            it.remove();
+            ready.put(task, token);
+        }
+        // sending may complete other queries, and throttle or release other resolutions
+        ready.forEach(this::sendQuery);
+    }
+
+    /**
+     * Starts child resolutions for the address of a nameserver without glue, and of the next few nameservers that
+     * also lack an address, for both A and AAAA records. The parent resumes with the first IPv4 address found; the
+     * remaining children keep running so that their results end up in the cache.
+     */
+    private void resolveNameservers(Task task) {
+        List<String> names = new ArrayList<>();
+        names.add(task.resolution.getNameserver().getTextResult());
+        for (ResourceRecord rr : task.resolution.getOtherNameservers()) {
+            if (names.size() >= MAX_PARALLEL_NS_LOOKUPS) break;
+            if (rr.getRecordType() != RecordType.NS || names.contains(rr.getTextResult())) continue;
+            if (cache.getCachedResults(DNSCache.AQuestion(rr.getTextResult())).isEmpty())
+                names.add(rr.getTextResult());
+        }
+
+        NameserverLookup lookup = new NameserverLookup(task);
+        for (String name : names) {
+            for (RecordType type : new RecordType[]{RecordType.A, RecordType.AAAA}) {
+                DNSQuestion q = new DNSQuestion(name, type, RecordClass.IN);
+                Resolution child = new Resolution(q, cache, service.getCachePeer() != null);
+                child.setBudget(task.resolution.getBudget());
+                child.setServerHealth(task.resolution.getServerHealth());
+                runnable.add(new Task(child, null, lookup));
+                lookup.remaining++;
+            }
+        }
+    }
+
+    private void complete(Task task) {
+        if (task.lookup == null) service.getBudgetStats().record(task.resolution.getBudget());
+        Collection<ResourceRecord> results;
+        try {
+            results = task.resolution.getResults();
+        } catch (DNSLookupService.DNSErrorException e) {
+            if (task.lookup != null) {
+                nameserverResolved(task.lookup, Collections.emptySet());
+            } else {
+                active.remove(task);
+                task.future.completeExceptionally(e);
+            }
+            return;
+        }
+        if (task.lookup != null) {
+            nameserverResolved(task.lookup, results);
+        } else {
+            active.remove(task);
+            task.future.complete(results);
+        }
+    }
+
+    private void nameserverResolved(NameserverLookup lookup, Collection<ResourceRecord> results) {
+        lookup.remaining--;
+        if (lookup.resumed) return;
+        InetAddress address = null;
+        for (ResourceRecord rr : results) {
+            if (rr.getRecordType() == RecordType.A && rr.getInetResult() != null) {
+                address = rr.getInetResult();
+                break;
+            }
+        }
+        if (address == null && lookup.remaining > 0) return;
+        lookup.resumed = true;
+        lookup.parent.resolution.onNameserverAddress(address);
+        runnable.add(lookup.parent);
+    }
+
+    /**
+     * A resolution run by the loop: either one submitted by a caller, completing a future, or a child resolving the
+     * address of a nameserver for another resolution.
+     */
+    private static class Task {
+        final Resolution resolution;
+        final CompletableFuture<Collection<ResourceRecord>> future;
+        final NameserverLookup lookup;
+
+        Task(Resolution resolution, CompletableFuture<Collection<ResourceRecord>> future, NameserverLookup lookup) {
+            this.resolution = resolution;
+            this.future = future;
+            this.lookup = lookup;
+        }
+    }
+
+    /**
+     * The child resolutions started for a resolution waiting for a nameserver address.
+     */
+    private static class NameserverLookup {
+        final Task parent;
+        int remaining;
+        boolean resumed;
+
+        NameserverLookup(Task parent) {
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * A query sent and not yet answered.
+     */
+    private static class PendingQuery {
+        final Task task;
+        final DNSMessage message;
+        final InetAddress server;
+        final ConcurrencyLimiter.Token token;
+        final int key;
+        int attempts;
+        long deadline;
+        long sentNanos;
+        boolean finished;
+
+        PendingQuery(Task task, DNSMessage message, InetAddress server, ConcurrencyLimiter.Token token, int key) {
+            this.task = task;
+            this.message = message;
+            this.server = server;
+            this.token = token;
+            this.key = key;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Objects;
 
@@ -10,12 +11,17 @@ import java.util.Objects;
  * name, type and class) to either an IP address (e.g., for A or AAAA records) or a textual response (e.g., for CNAME or
  * NS records). An expiration time is also specified, and computed based on the TTL provided when the record is
  * created.
+ * <p>
+ * Records parsed from a DNS message keep their raw (uncompressed) data instead, and only decode it into a text or
+ * address result the first time that result is requested. Since most records of a large response are never
+ * inspected, this keeps parsing cheap.
  */
 public class ResourceRecord implements Serializable {
 
     private final DNSQuestion question;
     private Date expirationTime;
-    private final String textResult;
+    private final byte[] rdata;
+    private String textResult;
     private InetAddress inetResult;
 
     /**
@@ -29,10 +35,66 @@ public class ResourceRecord implements Serializable {
     public ResourceRecord(DNSQuestion question, int ttl, String result) {
         this.question = question;
         this.expirationTime = new Date(System.currentTimeMillis() + ((long) ttl * 1000));
+        this.rdata = null;
         this.textResult = result;
         this.inetResult = null;
     }
 
+    /**
+     * Creates a new resource record based on a string result, with an absolute expiration time instead of a TTL.
+     *
+     * @param question       Question object containing the host name (FQDN), type and class associated to this record.
+     * @param expirationTime Time at which this record expires.
+     * @param result         The string representation associated to the record's result.
+     */
+    public ResourceRecord(DNSQuestion question, Date expirationTime, String result) {
+        this.question = question;
+        this.expirationTime = expirationTime;
+        this.rdata = null;
+        this.textResult = result;
+        this.inetResult = null;
+    }
+
+    /**
+     * Creates a new resource record based on an InetAddress result, with an absolute expiration time instead of a
+     * TTL.
+     *
+     * @param question       Question object containing the host name (FQDN), type and class associated to this record.
+     * @param expirationTime Time at which this record expires.
+     * @param result         The InetAddress object associated to the record's result.
+     */
+    public ResourceRecord(DNSQuestion question, Date expirationTime, InetAddress result) {
+        this(question, expirationTime, result.getHostAddress());
+        this.inetResult = result;
+    }
+
+    /**
+     * Creates a new resource record based on its raw data. The text (and, for A and AAAA records, address) result is
+     * only decoded when first requested.
+     *
+     * @param question Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl      Number of seconds to keep this record in cache.
+     * @param rdata    The record data, with any domain name in uncompressed form. The array is kept, not copied.
+     */
+    public ResourceRecord(DNSQuestion question, int ttl, byte[] rdata) {
+        this(question, new Date(System.currentTimeMillis() + ((long) ttl * 1000)), rdata);
+    }
+
+    /**
+     * Creates a new resource record based on its raw data, with an absolute expiration time instead of a TTL.
+     *
+     * @param question       Question object containing the host name (FQDN), type and class associated to this record.
+     * @param expirationTime Time at which this record expires.
+     * @param rdata          The record data, with any domain name in uncompressed form. The array is kept, not copied.
+     */
+    public ResourceRecord(DNSQuestion question, Date expirationTime, byte[] rdata) {
+        this.question = question;
+        this.expirationTime = expirationTime;
+        this.rdata = rdata;
+        this.textResult = null;
+        this.inetResult = null;
+    }
+
     /**
      * Creates a new resource record based on an InetAddress result (typically an A or AAAA record). The string
      * representation is also saved based on the getHostAddress method of InetAddress.
@@ -73,6 +135,15 @@ public class ResourceRecord implements Serializable {
         return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
     }
 
+    /**
+     * The time at which this record expires, in milliseconds since the epoch.
+     *
+     * @return The expiration time of this record.
+     */
+    public long getExpirationMillis() {
+        return expirationTime.getTime();
+    }
+
     /**
      * Returns true if this record has expired, and false otherwise. An expired record should not be maintained in
      * cache, instead a new record should be retrieved from an appropriate nameserver.
@@ -95,30 +166,54 @@ public class ResourceRecord implements Serializable {
     }
 
     public String getTextResult() {
+        if (textResult == null)
+            textResult = RecordData.toText(getRecordType(), getRecordClass(), rdata);
         return textResult;
     }
 
     public InetAddress getInetResult() {
+        if (inetResult == null && rdata != null && getRecordClass() == RecordClass.IN &&
+                (getRecordType() == RecordType.A || getRecordType() == RecordType.AAAA))
+            inetResult = RecordData.toInetAddress(rdata);
         return inetResult;
     }
 
+    /**
+     * Returns the raw data of this record, with domain names in uncompressed form. Decoders for the data of the
+     * various record types are available in RecordData. The returned array must not be modified.
+     *
+     * @return The data of the record, or null if this record was created from its text or address result.
+     */
+    public byte[] getRData() {
+        return rdata;
+    }
+
+    /**
+     * Two records are equal if they answer the same question with the same result. Records that both have raw data
+     * are compared on that data, without decoding it.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ResourceRecord that = (ResourceRecord) o;
-        return question.equals(that.question) &&
-                textResult.equals(that.textResult) &&
-                Objects.equals(inetResult, that.inetResult);
+        if (!question.equals(that.question)) return false;
+        if (rdata != null && that.rdata != null) return Arrays.equals(rdata, that.rdata);
+        return getTextResult().equals(that.getTextResult()) &&
+                Objects.equals(getInetResult(), that.getInetResult());
     }
 
+    /**
+     * The hash code only depends on the question, since records of the same question are compared either on their
+     * raw data or on their text result.
+     */
     @Override
     public int hashCode() {
-        return Objects.hash(question, textResult, inetResult);
+        return question.hashCode();
     }
 
     @Override
     public String toString() {
-        return "[" + question + " -> " + textResult + "]";
+        return "[" + question + " -> " + getTextResult() + "]";
     }
 }
@@ -0,0 +1,215 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local copy of the root zone (RFC 8806), loaded from a zone file such as the one published by IANA at
+ * https://www.internic.net/domain/root.zone. Once given to DNSCache.setRootZone, the delegations of top-level domains
+ * and the addresses of their nameservers are taken from this copy, so resolutions start at the TLD servers instead of
+ * querying a root server first.
+ * <p>
+ * The file is read as a stream, one record per line, and only the NS records of delegations and their A/AAAA (glue)
+ * records are kept; other records (DNSSEC records, the SOA, ...) are skipped without being decoded. Delegations are
+ * indexed in a DelegationIndex, and glue by question. A RootZone is never modified once loaded: a newer copy of the
+ * zone is loaded into a new instance, which replaces the old one in the cache (see Reloader).
+ */
+public class RootZone {
+
+    private static final long DEFAULT_TTL = 86400;
+
+    private final DelegationIndex delegations = new DelegationIndex();
+    private final Map<DNSQuestion, Set<ResourceRecord>> glue = new HashMap<>();
+    private final long loadedMillis = System.currentTimeMillis();
+    private int delegationCount;
+
+    private RootZone() {
+    }
+
+    /**
+     * Loads the root zone from a zone file.
+     *
+     * @param file The zone file.
+     * @return The root zone.
+     * @throws IOException If the file cannot be read, or a line is not a valid record.
+     */
+    public static RootZone load(File file) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Reads the root zone in master file format (RFC 1035, section 5), with one record per line. Owner names must be
+     * fully qualified; the TTL and class of a record may be omitted, in which case the $TTL value (or one day) and IN
+     * are used.
+     *
+     * @param in The zone data.
+     * @return The root zone.
+     * @throws IOException If the data cannot be read, or a line is not a valid record.
+     */
+    public static RootZone parse(Reader in) throws IOException {
+        RootZone zone = new RootZone();
+        BufferedReader reader = new BufferedReader(in);
+        long defaultTtl = DEFAULT_TTL;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf(';');
+            if (comment >= 0) line = line.substring(0, comment);
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty()) continue;
+            try {
+                if (fields[0].equalsIgnoreCase("$TTL")) {
+                    defaultTtl = Long.parseLong(fields[1]);
+                    continue;
+                }
+                int i = 1;
+                long ttl = defaultTtl;
+                if (Character.isDigit(fields[i].charAt(0))) ttl = Long.parseLong(fields[i++]);
+                if (fields[i].equalsIgnoreCase("IN")) i++;
+                if (Character.isDigit(fields[i].charAt(0))) ttl = Long.parseLong(fields[i++]);
+                String type = fields[i++].toUpperCase();
+                String owner = toName(fields[0]);
+                int seconds = (int) Math.min(ttl, Integer.MAX_VALUE);
+                switch (type) {
+                    case "NS":
+                        // the NS records of the root itself are the root hints, which the cache already has
+                        if (owner.isEmpty()) break;
+                        zone.delegations.addNameserver(
+                                new ResourceRecord(DNSCache.NSQuestion(owner), seconds, toName(fields[i])));
+                        zone.delegationCount++;
+                        break;
+                    case "A":
+                    case "AAAA":
+                        RecordType recordType = RecordType.valueOf(type);
+                        InetAddress address = InetAddress.getByName(fields[i]);
+                        DNSQuestion question = new DNSQuestion(owner, recordType, RecordClass.IN);
+                        zone.glue.computeIfAbsent(question, q -> new HashSet<>())
+                                .add(new ResourceRecord(question, seconds, address));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": invalid record", e);
+            }
+        }
+        return zone;
+    }
+
+    private static String toName(String name) {
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        return name.toLowerCase();
+    }
+
+    /**
+     * Returns the nameservers of the top-level domain of a name.
+     *
+     * @param name A fully-qualified domain name.
+     * @return The unexpired NS records of the delegation, or an empty list if the TLD is not in the zone.
+     */
+    List<ResourceRecord> getDelegation(String name) {
+        List<ResourceRecord> nameservers = new ArrayList<>();
+        for (ResourceRecord rr : delegations.findClosest(name).getNameservers()) {
+            if (!rr.isExpired()) nameservers.add(rr);
+        }
+        return nameservers;
+    }
+
+    /**
+     * Returns the glue records of the zone for a question.
+     *
+     * @param question An A or AAAA question for the name of a TLD nameserver.
+     * @return The unexpired records, or null if the zone has none.
+     */
+    Set<ResourceRecord> getGlue(DNSQuestion question) {
+        Set<ResourceRecord> records = glue.get(question);
+        if (records == null) return null;
+        for (ResourceRecord rr : records) {
+            if (rr.isExpired()) return null;
+        }
+        return records;
+    }
+
+    /**
+     * @return The number of NS records of delegations in the zone.
+     */
+    public int getDelegationCount() {
+        return delegationCount;
+    }
+
+    /**
+     * @return The time at which the zone was loaded, in milliseconds since the epoch.
+     */
+    public long getLoadedMillis() {
+        return loadedMillis;
+    }
+
+    /**
+     * Loads the root zone into a cache, and reloads it periodically from the same file on a background thread, so
+     * that lookups keep using the previous copy while the new one is being read. If the file cannot be loaded, the
+     * previous copy is kept until its records expire, after which resolutions start at the root servers again.
+     */
+    public static class Reloader implements Closeable {
+        private final File file;
+        private final DNSCache cache;
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dns-root-zone");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private volatile IOException lastError;
+
+        /**
+         * Loads the root zone into a cache, then schedules its reloads.
+         *
+         * @param file          The zone file.
+         * @param cache         The cache using the zone.
+         * @param periodSeconds Time between two loads of the file, in seconds.
+         * @throws IOException If the zone cannot be loaded the first time.
+         */
+        public Reloader(File file, DNSCache cache, long periodSeconds) throws IOException {
+            this.file = file;
+            this.cache = cache;
+            try {
+                cache.setRootZone(load(file));
+            } catch (IOException e) {
+                executor.shutdownNow();
+                throw e;
+            }
+            executor.scheduleWithFixedDelay(this::reload, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+
+        private void reload() {
+            try {
+                cache.setRootZone(load(file));
+                lastError = null;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+
+        /**
+         * @return The error of the last reload, or null if it succeeded.
+         */
+        public IOException getLastError() {
+            return lastError;
+        }
+
+        /**
+         * Stops reloading the zone, and stops using it in the cache.
+         */
+        @Override
+        public void close() {
+            executor.shutdownNow();
+            cache.setRootZone(null);
+        }
+    }
+}
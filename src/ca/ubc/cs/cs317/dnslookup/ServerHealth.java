@@ -0,0 +1,149 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A table of the nameservers that recently failed, shared by all lookups so that a bad server is not tried again by
+ * every new lookup. A server is down when it did not answer a query at all (after all retransmissions), and lame for
+ * a zone when it answered for that zone with REFUSED or SERVFAIL, or with a response that neither answers the
+ * question nor refers to a zone closer to it.
+ * <p>
+ * Each server works like a circuit breaker. After a failure the server is held down: it is skipped when nameservers
+ * are picked, for a hold-down time that doubles with every consecutive failure, up to a maximum (by default from
+ * INITIAL_HOLD_DOWN to MAX_HOLD_DOWN). Once the hold-down expires a single lookup is allowed to query the server
+ * (half-open); if it gets a valid response, the server is healthy again, otherwise it is held down for twice as long.
+ */
+public class ServerHealth {
+
+    private static final long INITIAL_HOLD_DOWN = 5000;
+    private static final long MAX_HOLD_DOWN = 15 * 60 * 1000;
+    private static final long PROBE_TIMEOUT = 20000;
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final ServerHealth instance = new ServerHealth(INITIAL_HOLD_DOWN, MAX_HOLD_DOWN);
+
+    private final long initialHoldDown;
+    private final long maxHoldDown;
+    private final LongSupplier clock;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Creates a health table separate from the shared one.
+     *
+     * @param initialHoldDown Time a server is skipped after its first failure, in milliseconds.
+     * @param maxHoldDown     Maximum time a server is skipped, in milliseconds.
+     */
+    public ServerHealth(long initialHoldDown, long maxHoldDown) {
+        this(initialHoldDown, maxHoldDown, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a health table that reads the time from the given clock, e.g., to advance it in tests.
+     *
+     * @param initialHoldDown Time a server is skipped after its first failure, in milliseconds.
+     * @param maxHoldDown     Maximum time a server is skipped, in milliseconds.
+     * @param clock           The current time, in milliseconds.
+     */
+    ServerHealth(long initialHoldDown, long maxHoldDown, LongSupplier clock) {
+        this.initialHoldDown = initialHoldDown;
+        this.maxHoldDown = maxHoldDown;
+        this.clock = clock;
+    }
+
+    public static ServerHealth getInstance() {
+        return instance;
+    }
+
+    /**
+     * Decides whether a server may be queried for a zone. A server held down whose hold-down has expired may be
+     * queried by exactly one lookup at a time, the probe, which must report its outcome.
+     *
+     * @param server The address of the nameserver.
+     * @param zone   The zone the nameserver is queried for.
+     * @return true if the server may be queried, false if it must be skipped.
+     */
+    public synchronized boolean isAvailable(InetAddress server, String zone) {
+        long now = clock.getAsLong();
+        Entry down = entries.get(key(server, null));
+        Entry lame = entries.get(key(server, zone));
+        if (!mayQuery(down, now) || !mayQuery(lame, now)) return false;
+        if (down != null) down.probeStart = now;
+        if (lame != null) lame.probeStart = now;
+        return true;
+    }
+
+    private static boolean mayQuery(Entry entry, long now) {
+        if (entry == null) return true;
+        if (now < entry.holdUntil) return false;
+        return entry.probeStart == 0 || now - entry.probeStart >= PROBE_TIMEOUT;
+    }
+
+    /**
+     * Reports a valid response from a server, which is then healthy for the zone.
+     */
+    public synchronized void onResponse(InetAddress server, String zone) {
+        entries.remove(key(server, null));
+        entries.remove(key(server, zone));
+    }
+
+    /**
+     * Reports that a server did not respond to a query after all its transmissions.
+     */
+    public synchronized void onTimeout(InetAddress server) {
+        failed(key(server, null));
+    }
+
+    /**
+     * Reports that a server responded for a zone it is not able to serve.
+     */
+    public synchronized void onLame(InetAddress server, String zone) {
+        entries.remove(key(server, null));
+        failed(key(server, zone));
+    }
+
+    private void failed(String key) {
+        if (entries.size() >= MAX_ENTRIES) {
+            long now = clock.getAsLong();
+            entries.values().removeIf(entry -> now >= entry.holdUntil + maxHoldDown);
+        }
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        long holdDown = Math.min(maxHoldDown, initialHoldDown << Math.min(entry.failures, 20));
+        entry.failures++;
+        entry.holdUntil = clock.getAsLong() + holdDown;
+        entry.probeStart = 0;
+    }
+
+    /**
+     * @return true if a server is held down, either for all zones or for the given one.
+     */
+    public synchronized boolean isHeldDown(InetAddress server, String zone) {
+        long now = clock.getAsLong();
+        Entry down = entries.get(key(server, null));
+        Entry lame = entries.get(key(server, zone));
+        return (down != null && now < down.holdUntil) || (lame != null && now < lame.holdUntil);
+    }
+
+    /**
+     * @return The number of servers (or server and zone pairs) currently known to have failed.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void reset() {
+        entries.clear();
+    }
+
+    private static String key(InetAddress server, String zone) {
+        return zone == null ? server.getHostAddress() : server.getHostAddress() + " " + zone.toLowerCase();
+    }
+
+    private static class Entry {
+        int failures;
+        long holdUntil;
+        long probeStart;
+    }
+}
@@ -0,0 +1,257 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A cache of resource record sets stored in a memory-mapped file, so that several processes on the same host can
+ * share the results obtained by any of them. The file contains a small header followed by a fixed number of
+ * fixed-size slots, each holding the records for one question. Slots are found by open addressing over a 64-bit
+ * hash of the question, with a bounded number of probes; when every probed slot is in use, the one that expires
+ * first is overwritten.
+ * <p>
+ * Readers never lock: every slot starts with a sequence counter that writers make odd while they modify the slot
+ * and even again when they are done, and a reader retries if the counter was odd or changed while it was copying
+ * the slot. A CRC of the payload is also checked, since plain accesses to mapped memory give no ordering guarantees.
+ * Writers exclude each other with a lock on the byte range of the slot, which works across processes. File locks are
+ * held on behalf of the whole JVM, so the writers of a process, including those of other instances on the same
+ * file, first synchronize on an object shared by all the instances of that file.
+ */
+public class SharedMemoryCache implements Closeable {
+
+    public static final int DEFAULT_SLOT_SIZE = 512;
+    private static final int MAGIC = 0x444e5343; // "DNSC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int MagicOffset = 0;
+    private static final int VersionOffset = 4;
+    private static final int SlotCountOffset = 8;
+    private static final int SlotSizeOffset = 12;
+    private static final int SeqOffset = 0;
+    private static final int HashOffset = 8;
+    private static final int ExpirationOffset = 16;
+    private static final int CrcOffset = 24;
+    private static final int LengthOffset = 28;
+    private static final int PayloadOffset = 32;
+    private static final int MAX_PROBES = 8;
+    private static final int MAX_READ_ATTEMPTS = 16;
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+    private static final Map<String, Object> processLocks = new ConcurrentHashMap<>();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Object processLock;
+    private final int slotCount;
+    private final int slotSize;
+
+    /**
+     * Opens a shared cache file, creating and formatting it if it does not exist yet. If the file already exists,
+     * its own slot count and size are used and the given values are ignored.
+     *
+     * @param path      Path of the cache file.
+     * @param slotCount Number of slots (i.e., the maximum number of cached questions) of a new file.
+     * @param slotSize  Size in bytes of each slot of a new file; record sets that do not fit are not shared.
+     * @throws IOException If the file cannot be created, mapped, or is not a cache file.
+     */
+    public SharedMemoryCache(File path, int slotCount, int slotSize) throws IOException {
+        processLock = processLocks.computeIfAbsent(path.getCanonicalPath(), p -> new Object());
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        synchronized (processLock) {
+            try {
+                FileLock lock = channel.lock(0, HEADER_SIZE, false);
+                try {
+                    if (file.length() < HEADER_SIZE) {
+                        file.setLength(HEADER_SIZE + (long) slotCount * slotSize);
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                        header.putInt(MagicOffset, MAGIC);
+                        header.putInt(VersionOffset, VERSION);
+                        header.putInt(SlotCountOffset, slotCount);
+                        header.putInt(SlotSizeOffset, slotSize);
+                        channel.write(header, 0);
+                    }
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    channel.read(header, 0);
+                    if (header.getInt(MagicOffset) != MAGIC || header.getInt(VersionOffset) != VERSION)
+                        throw new IOException(path + " is not a DNS cache file");
+                    this.slotCount = header.getInt(SlotCountOffset);
+                    this.slotSize = header.getInt(SlotSizeOffset);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.slotCount * this.slotSize);
+    }
+
+    /**
+     * Returns the records shared for a question, or null if no process has stored unexpired records for it.
+     *
+     * @param question The question to be looked up.
+     * @return The records stored for the question, or null.
+     */
+    public List<ResourceRecord> get(DNSQuestion question) {
+        long hash = hash(question);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slotPosition(hash, probe);
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                long seq = buffer.getLong(slot + SeqOffset);
+                if ((seq & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                long slotHash = buffer.getLong(slot + HashOffset);
+                if (slotHash == 0) return null;
+                if (slotHash != hash) break;
+                long expiration = buffer.getLong(slot + ExpirationOffset);
+                int crc = buffer.getInt(slot + CrcOffset);
+                int length = buffer.getInt(slot + LengthOffset);
+                if (length < 0 || length > slotSize - PayloadOffset) continue;
+                byte[] payload = new byte[length];
+                ByteBuffer view = buffer.duplicate();
+                view.position(slot + PayloadOffset);
+                view.get(payload);
+                if (buffer.getLong(slot + SeqOffset) != seq || crc(payload) != crc) continue;
+                if (expiration <= System.currentTimeMillis()) return null;
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                    if (!RecordCodec.readQuestion(in).equals(question)) break;
+                    return RecordCodec.readRecords(in);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the records for a question, replacing whatever was stored for it before. Record sets too large for a
+     * slot, or that have already expired, are not stored.
+     *
+     * @param question The question the records answer.
+     * @param records  The complete set of records for the question.
+     */
+    public void put(DNSQuestion question, Collection<ResourceRecord> records) {
+        long expiration = Long.MAX_VALUE;
+        for (ResourceRecord rr : records) {
+            if (!rr.isExpired()) expiration = Math.min(expiration, rr.getExpirationMillis());
+        }
+        if (expiration == Long.MAX_VALUE) return;
+
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            RecordCodec.writeQuestion(out, question);
+            RecordCodec.writeRecords(out, records);
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            return;
+        }
+        if (payload.length > slotSize - PayloadOffset) return;
+
+        long hash = hash(question);
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            int slot = chooseSlot(hash);
+            long observedHash = buffer.getLong(slot + HashOffset);
+            long observedExpiration = buffer.getLong(slot + ExpirationOffset);
+            synchronized (processLock) {
+                try {
+                    FileLock lock = channel.lock(slot, slotSize, false);
+                    try {
+                        // Another process may have claimed the slot since it was chosen
+                        if (buffer.getLong(slot + HashOffset) != observedHash ||
+                                buffer.getLong(slot + ExpirationOffset) != observedExpiration)
+                            continue;
+                        long seq = buffer.getLong(slot + SeqOffset);
+                        buffer.putLong(slot + SeqOffset, seq + 1);
+                        buffer.putLong(slot + HashOffset, hash);
+                        buffer.putLong(slot + ExpirationOffset, expiration);
+                        buffer.putInt(slot + CrcOffset, crc(payload));
+                        buffer.putInt(slot + LengthOffset, payload.length);
+                        ByteBuffer view = buffer.duplicate();
+                        view.position(slot + PayloadOffset);
+                        view.put(payload);
+                        buffer.putLong(slot + SeqOffset, seq + 2);
+                        return;
+                    } finally {
+                        lock.release();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the mapping's file. The mapping itself is released when it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * Chooses the slot in which records for a hash are to be written: the slot already used for the same hash if
+     * any, otherwise the first empty or expired slot, otherwise the probed slot expiring first.
+     */
+    private int chooseSlot(long hash) {
+        long now = System.currentTimeMillis();
+        int free = -1;
+        int victim = -1;
+        long victimExpiration = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slotPosition(hash, probe);
+            long slotHash = buffer.getLong(slot + HashOffset);
+            if (slotHash == hash) return slot;
+            long expiration = buffer.getLong(slot + ExpirationOffset);
+            if (slotHash == 0) return free >= 0 ? free : slot;
+            if (free < 0 && expiration <= now) free = slot;
+            if (expiration < victimExpiration) {
+                victim = slot;
+                victimExpiration = expiration;
+            }
+        }
+        return free >= 0 ? free : victim;
+    }
+
+    private int slotPosition(long hash, int probe) {
+        int index = (int) (((hash >>> 1) + probe) % slotCount);
+        return HEADER_SIZE + index * slotSize;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a question; zero is reserved to mark empty slots.
+     */
+    static long hash(DNSQuestion question) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : question.getHostName().toLowerCase().getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h = (h ^ question.getRecordType().getCode()) * 0x100000001b3L;
+        h = (h ^ question.getRecordClass().getCode()) * 0x100000001b3L;
+        return h == 0 ? 1 : h;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,520 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.BufferOverflowException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process DNS hierarchy (root, TLD and authoritative servers) for offline tests and benchmarks. Every simulated
+ * server listens on its own loopback address (127.0.0.1, 127.0.0.2, ...), all on the same port, so that resolvers
+ * can tell servers apart by address as they do on the Internet; a DNSLookupService is pointed at the hierarchy with
+ * setServerPort(getPort()) and DNSCache.reset(getRootHints()). Binding to loopback addresses other than 127.0.0.1
+ * works out of the box on Linux and Windows; macOS needs aliases to be added to lo0 first.
+ * <p>
+ * Servers answer iterative queries from their zone data: referrals (with glue) below a zone cut, authoritative
+ * answers (following CNAME records within the server's data), NODATA and NXDOMAIN. A server can also act as a
+ * recursive resolver, answering queries with RD set from the data of the whole hierarchy. Each server can add latency,
+ * jitter, packet loss and truncation to its responses; random choices use a fixed seed, so a run can be repeated.
+ * <p>
+ * Zone definitions can be loaded from a text file, in which each server is introduced by a line
+ * "server name address", followed by its settings and records:
+ * <pre>
+ *   zone apex                  the server is authoritative for this zone ("." for the root)
+ *   latency ms [jitterMs]      delay added to every response
+ *   loss probability           fraction of responses dropped
+ *   truncate probability       fraction of responses sent with TC set and no records
+ *   recursive                  the server also answers recursive (RD=1) queries from the whole hierarchy
+ *   owner ttl type data...     a record, e.g., "ubc.ca 3600 NS ns1.ubc.ca" or "ns1.ubc.ca 3600 A 127.0.0.3"
+ * </pre>
+ * Lines starting with # are comments.
+ */
+public class SimulatedDNS implements Closeable {
+
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    private final long seed;
+    private final List<Server> servers = new ArrayList<>();
+    private final ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dns-sim-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int port;
+    private boolean started;
+
+    /**
+     * Creates an empty hierarchy.
+     *
+     * @param port Port on which all servers listen, or 0 to pick a free port when the hierarchy is started.
+     * @param seed Seed of the random choices made to simulate jitter, loss and truncation.
+     */
+    public SimulatedDNS(int port, long seed) {
+        this.port = port;
+        this.seed = seed;
+    }
+
+    /**
+     * Loads a hierarchy from zone definitions in the format described above.
+     *
+     * @param in   The zone definitions.
+     * @param port Port on which all servers listen, or 0 to pick a free port.
+     * @param seed Seed of the random choices.
+     * @return The hierarchy, not started yet.
+     * @throws IOException If the definitions cannot be read or are invalid.
+     */
+    public static SimulatedDNS load(Reader in, int port, long seed) throws IOException {
+        SimulatedDNS dns = new SimulatedDNS(port, seed);
+        BufferedReader reader = new BufferedReader(in);
+        Server server = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.split("#", 2)[0].trim();
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equalsIgnoreCase("server")) {
+                    server = dns.addServer(fields[1], fields[2]);
+                    continue;
+                }
+                if (server == null) throw new IOException("Line " + lineNumber + ": no server defined");
+                switch (fields[0].toLowerCase()) {
+                    case "zone":
+                        server.addZone(fields[1]);
+                        break;
+                    case "latency":
+                        server.setLatency(Long.parseLong(fields[1]), fields.length > 2 ? Long.parseLong(fields[2]) : 0);
+                        break;
+                    case "loss":
+                        server.setLoss(Double.parseDouble(fields[1]));
+                        break;
+                    case "truncate":
+                        server.setTruncation(Double.parseDouble(fields[1]));
+                        break;
+                    case "recursive":
+                        server.setRecursive(true);
+                        break;
+                    default:
+                        server.addRecord(fields[0], Integer.parseInt(fields[1]), RecordType.valueOf(fields[2].toUpperCase()),
+                                line.split("\\s+", 4)[3]);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Line " + lineNumber + ": invalid definition \"" + line + "\"", e);
+            }
+        }
+        return dns;
+    }
+
+    /**
+     * Adds a server to the hierarchy. Servers must be added before the hierarchy is started.
+     *
+     * @param name    The host name of the server.
+     * @param address The loopback address the server listens on.
+     * @return The server, to which zones and records can be added.
+     */
+    public Server addServer(String name, String address) {
+        if (started) throw new IllegalStateException("Servers must be added before the hierarchy is started");
+        Server server = new Server(normalize(name), DNSCache.stringToInetAddress(address), seed + servers.size());
+        servers.add(server);
+        return server;
+    }
+
+    public List<Server> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
+    /**
+     * Sets the latency of every server.
+     *
+     * @param millis       Delay added to every response, in milliseconds.
+     * @param jitterMillis Maximum random variation of the delay, in either direction.
+     */
+    public void setLatency(long millis, long jitterMillis) {
+        for (Server server : servers) server.setLatency(millis, jitterMillis);
+    }
+
+    /**
+     * Sets the packet loss of every server.
+     *
+     * @param probability Fraction of responses dropped.
+     */
+    public void setLoss(double probability) {
+        for (Server server : servers) server.setLoss(probability);
+    }
+
+    /**
+     * Sets the truncation rate of every server.
+     *
+     * @param probability Fraction of responses sent truncated.
+     */
+    public void setTruncation(double probability) {
+        for (Server server : servers) server.setTruncation(probability);
+    }
+
+    /**
+     * Opens the servers' sockets and starts answering queries.
+     *
+     * @throws IOException If a server cannot listen on its address.
+     */
+    public synchronized void start() throws IOException {
+        if (started) return;
+        started = true;
+        try {
+            for (Server server : servers) {
+                server.socket = new DatagramSocket(new InetSocketAddress(server.address, port));
+                port = server.socket.getLocalPort();
+                Thread thread = new Thread(server::serve, "dns-sim-" + server.name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The port all servers listen on (once started, if the port was picked automatically).
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the root hints of the hierarchy, in the format expected by DNSCache.reset.
+     *
+     * @return The name and address of every server authoritative for the root zone.
+     */
+    public String[][] getRootHints() {
+        List<String[]> hints = new ArrayList<>();
+        for (Server server : servers) {
+            if (server.zones.contains("")) hints.add(new String[]{server.name, server.address.getHostAddress()});
+        }
+        return hints.toArray(new String[0][]);
+    }
+
+    @Override
+    public void close() {
+        delayer.shutdownNow();
+        for (Server server : servers) {
+            if (server.socket != null) server.socket.close();
+        }
+    }
+
+    /**
+     * Returns the server holding the data of a name: the one authoritative for the deepest zone containing it, with
+     * no zone cut between that zone and the name.
+     */
+    private Server findAuthoritative(String name) {
+        Server best = null;
+        String bestZone = null;
+        for (Server server : servers) {
+            String zone = server.findZone(name);
+            if (zone == null || server.findCut(name, zone) != null) continue;
+            if (bestZone == null || zone.length() > bestZone.length()) {
+                best = server;
+                bestZone = zone;
+            }
+        }
+        return best;
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase();
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        return name;
+    }
+
+    /**
+     * Returns true if name is apex or a name below it.
+     */
+    private static boolean isInZone(String name, String apex) {
+        return apex.isEmpty() || name.equals(apex) || name.endsWith("." + apex);
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    /**
+     * A simulated server, with the zones it is authoritative for and its records.
+     */
+    public class Server {
+        private final String name;
+        private final InetAddress address;
+        private final Random random;
+        private final Set<String> zones = new HashSet<>();
+        private final Map<String, Map<RecordType, List<Record>>> records = new HashMap<>();
+        private volatile long latency;
+        private volatile long jitter;
+        private volatile double loss;
+        private volatile double truncation;
+        private volatile boolean recursive;
+        private DatagramSocket socket;
+        private long queries;
+
+        private Server(String name, InetAddress address, long seed) {
+            this.name = name;
+            this.address = address;
+            this.random = new Random(seed);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * @return The number of queries received by this server so far.
+         */
+        public synchronized long getQueries() {
+            return queries;
+        }
+
+        /**
+         * Makes the server authoritative for a zone.
+         *
+         * @param apex The name of the zone, or "." for the root zone.
+         * @return This server.
+         */
+        public Server addZone(String apex) {
+            zones.add(normalize(apex));
+            return this;
+        }
+
+        /**
+         * Adds a record to the server's data.
+         *
+         * @param owner The owner name of the record.
+         * @param ttl   The TTL of the record, in seconds.
+         * @param type  The type of the record.
+         * @param data  The data, as in a zone file: an address, a name, "preference name" for MX records, text for
+         *              TXT records, or the fields of an SOA record; other types are given as a hex string.
+         * @return This server.
+         */
+        public synchronized Server addRecord(String owner, int ttl, RecordType type, String data) {
+            owner = normalize(owner);
+            records.computeIfAbsent(owner, k -> new EnumMap<>(RecordType.class))
+                    .computeIfAbsent(type, k -> new ArrayList<>())
+                    .add(new Record(new DNSQuestion(owner, type, RecordClass.IN), ttl, RecordData.fromText(type, data)));
+            return this;
+        }
+
+        public void setLatency(long millis, long jitterMillis) {
+            this.latency = millis;
+            this.jitter = jitterMillis;
+        }
+
+        public void setLoss(double probability) {
+            this.loss = probability;
+        }
+
+        public void setTruncation(double probability) {
+            this.truncation = probability;
+        }
+
+        /**
+         * Makes the server answer recursive queries (with RD set) from the data of the whole hierarchy, as a
+         * recursive resolver would.
+         */
+        public void setRecursive(boolean recursive) {
+            this.recursive = recursive;
+        }
+
+        private void serve() {
+            byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                } catch (IOException e) {
+                    return;
+                }
+                if (packet.getLength() < DNSMessage.DataOffset) continue;
+                DNSMessage query = new DNSMessage(Arrays.copyOf(buffer, packet.getLength()), packet.getLength());
+                if (query.getQR() || query.getQDCount() != 1) continue;
+                byte[] response;
+                long delay;
+                synchronized (this) {
+                    queries++;
+                    if (random.nextDouble() < loss) continue;
+                    boolean truncate = random.nextDouble() < truncation;
+                    delay = Math.max(0, latency + (jitter > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitter) : 0));
+                    response = respond(query, truncate);
+                }
+                SocketAddress client = packet.getSocketAddress();
+                Runnable send = () -> {
+                    try {
+                        socket.send(new DatagramPacket(response, response.length, client));
+                    } catch (IOException ignored) {
+                        // the server is closing
+                    }
+                };
+                if (delay == 0) send.run();
+                else delayer.schedule(send, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Builds the response to a query from this server's data.
+         */
+        private byte[] respond(DNSMessage query, boolean truncate) {
+            if (recursive && query.getRD()) return respondRecursively(query, truncate);
+            DNSQuestion question = query.getQuestion();
+            String qname = normalize(question.getHostName());
+            List<ResourceRecord> answers = new ArrayList<>();
+            List<ResourceRecord> authority = new ArrayList<>();
+            List<ResourceRecord> additional = new ArrayList<>();
+            boolean authoritative = true;
+            int rcode = 0;
+
+            String zone = findZone(qname);
+            String cut = zone == null ? null : findCut(qname, zone);
+            if (zone == null) {
+                rcode = RCODE_REFUSED;
+                authoritative = false;
+            } else if (cut != null) {
+                authoritative = false;
+                addRecords(authority, cut, RecordType.NS);
+                for (ResourceRecord ns : authority) {
+                    addRecords(additional, ns.getTextResult(), RecordType.A);
+                    addRecords(additional, ns.getTextResult(), RecordType.AAAA);
+                }
+            } else {
+                String name = qname;
+                for (int i = 0; i < MAX_CNAME_CHAIN && isInZone(name, zone); i++) {
+                    if (addRecords(answers, name, question.getRecordType())) break;
+                    if (question.getRecordType() == RecordType.CNAME || !addRecords(answers, name, RecordType.CNAME))
+                        break;
+                    name = answers.get(answers.size() - 1).getTextResult();
+                }
+                if (answers.isEmpty()) {
+                    if (!exists(qname)) rcode = RCODE_NXDOMAIN;
+                    addRecords(authority, zone, RecordType.SOA);
+                }
+            }
+
+            return buildResponse(query, question, authoritative, rcode, truncate, answers, authority, additional);
+        }
+
+        /**
+         * Builds the response to a recursive query from the data of the servers authoritative for each name of the
+         * CNAME chain.
+         */
+        private byte[] respondRecursively(DNSMessage query, boolean truncate) {
+            DNSQuestion question = query.getQuestion();
+            List<ResourceRecord> answers = new ArrayList<>();
+            List<ResourceRecord> authority = new ArrayList<>();
+            int rcode = 0;
+            String name = normalize(question.getHostName());
+            for (int i = 0; i < MAX_CNAME_CHAIN; i++) {
+                Server server = findAuthoritative(name);
+                if (server == null) {
+                    rcode = RCODE_SERVFAIL;
+                    break;
+                }
+                if (server.addRecords(answers, name, question.getRecordType())) break;
+                if (question.getRecordType() == RecordType.CNAME || !server.addRecords(answers, name, RecordType.CNAME)) {
+                    if (!server.exists(name)) rcode = RCODE_NXDOMAIN;
+                    server.addRecords(authority, server.findZone(name), RecordType.SOA);
+                    break;
+                }
+                name = normalize(answers.get(answers.size() - 1).getTextResult());
+            }
+            return buildResponse(query, question, false, rcode, truncate, answers, authority, Collections.emptyList());
+        }
+
+        private byte[] buildResponse(DNSMessage query, DNSQuestion question, boolean authoritative, int rcode,
+                                     boolean truncate, List<ResourceRecord> answers, List<ResourceRecord> authority,
+                                     List<ResourceRecord> additional) {
+            DNSMessage response = new DNSMessage((short) query.getID());
+            response.setQR(true);
+            response.setAA(authoritative);
+            response.setRD(query.getRD());
+            response.setRA(recursive);
+            response.setRcode(rcode);
+            response.addQuestion(question);
+            if (truncate) {
+                response.setTC(true);
+                return response.getUsed();
+            }
+            try {
+                for (ResourceRecord rr : answers) response.addResourceRecord(rr, "answer");
+                for (ResourceRecord rr : authority) response.addResourceRecord(rr, "nameserver");
+                for (ResourceRecord rr : additional) response.addResourceRecord(rr, "additional");
+            } catch (BufferOverflowException e) {
+                return buildResponse(query, question, authoritative, rcode, true, answers, authority, additional);
+            }
+            return response.getUsed();
+        }
+
+        /**
+         * Returns the deepest zone of this server containing a name, or null if the server is not authoritative
+         * for it.
+         */
+        private String findZone(String name) {
+            String zone = null;
+            for (String apex : zones) {
+                if (isInZone(name, apex) && (zone == null || apex.length() > zone.length())) zone = apex;
+            }
+            return zone;
+        }
+
+        /**
+         * Returns the highest name between the zone apex (excluded) and qname (included) that has NS records, i.e.,
+         * the zone cut at which the query must be referred, or null if qname is not below a cut.
+         */
+        private String findCut(String qname, String zone) {
+            String cut = null;
+            for (String name = qname; !name.equals(zone) && isInZone(name, zone); name = parent(name)) {
+                Map<RecordType, List<Record>> atName = records.get(name);
+                if (atName != null && atName.containsKey(RecordType.NS)) cut = name;
+            }
+            return cut;
+        }
+
+        /**
+         * Returns true if a name has records, or is an empty non-terminal (i.e., a name below it has records).
+         */
+        private boolean exists(String name) {
+            if (records.containsKey(name)) return true;
+            for (String owner : records.keySet()) {
+                if (owner.endsWith("." + name) || (name.isEmpty() && !owner.isEmpty())) return true;
+            }
+            return false;
+        }
+
+        private boolean addRecords(List<ResourceRecord> section, String owner, RecordType type) {
+            Map<RecordType, List<Record>> atName = records.get(normalize(owner));
+            List<Record> list = atName == null ? null : atName.get(type);
+            if (list == null) return false;
+            for (Record record : list) section.add(new ResourceRecord(record.question, record.ttl, record.rdata));
+            return true;
+        }
+    }
+
+    private static class Record {
+        final DNSQuestion question;
+        final int ttl;
+        final byte[] rdata;
+
+        Record(DNSQuestion question, int ttl, byte[] rdata) {
+            this.question = question;
+            this.ttl = ttl;
+            this.rdata = rdata;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.BitSet;
+
+/**
+ * The UDP sockets from which ResolverEventLoop sends its queries, each bound to a random source port, and the
+ * transaction IDs in use on each of them. A query is identified by its socket and its ID together (its key), so the
+ * number of queries in flight is not limited by the 65536 IDs of a single socket, and the load is spread over the
+ * receive buffers of several sockets.
+ * <p>
+ * Ports and IDs are drawn from a SecureRandom, so that a spoofed response has to guess both (RFC 5452). IDs are only
+ * drawn among the IDs free on their socket, so two queries in flight never share a key, and a socket is only picked
+ * while fewer than half its IDs are in use, which keeps the number of draws low. After QUERIES_PER_PORT queries, a
+ * socket is retired: it gets no new query, and is replaced by a socket on a new random port once its queries are
+ * all complete.
+ */
+class SocketPool implements Closeable {
+
+    static final int IDS_PER_SOCKET = 65536;
+    private static final int MIN_PORT = 1024;
+    private static final int MAX_PORT = 65535;
+    private static final int MAX_BIND_ATTEMPTS = 32;
+    static final int QUERIES_PER_PORT = 10000;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Selector selector;
+    private final Socket[] sockets;
+    private final int queriesPerPort;
+    private int inFlight;
+    private volatile long rotations;
+
+    /**
+     * Opens the sockets of the pool, and registers them for reading with a selector; each selection key is attached
+     * the index of its socket.
+     *
+     * @param selector The selector of the event loop.
+     * @param size     The number of sockets.
+     * @throws IOException If a socket cannot be opened.
+     */
+    SocketPool(Selector selector, int size) throws IOException {
+        this(selector, size, QUERIES_PER_PORT);
+    }
+
+    /**
+     * Opens the sockets of the pool, retiring each of them after a given number of queries.
+     *
+     * @param selector       The selector of the event loop.
+     * @param size           The number of sockets.
+     * @param queriesPerPort The number of queries after which a socket is retired.
+     * @throws IOException If a socket cannot be opened.
+     */
+    SocketPool(Selector selector, int size, int queriesPerPort) throws IOException {
+        this.selector = selector;
+        this.sockets = new Socket[size];
+        this.queriesPerPort = queriesPerPort;
+        try {
+            for (int i = 0; i < size; i++) sockets[i] = open(i);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private Socket open(int index) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            bindRandomPort(channel.socket());
+            channel.register(selector, SelectionKey.OP_READ, index);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Socket(channel);
+    }
+
+    /**
+     * Binds a socket to a random port, falling back to a port picked by the system if the random ports tried are
+     * all in use.
+     *
+     * @param socket An unbound socket.
+     * @throws SocketException If the socket cannot be bound.
+     */
+    static void bindRandomPort(DatagramSocket socket) throws SocketException {
+        for (int i = 0; i < MAX_BIND_ATTEMPTS; i++) {
+            try {
+                socket.bind(new InetSocketAddress(MIN_PORT + random.nextInt(MAX_PORT - MIN_PORT + 1)));
+                return;
+            } catch (BindException e) {
+                // the port is in use, try another one
+            }
+        }
+        socket.bind(null);
+    }
+
+    /**
+     * Allocates a socket and a transaction ID for a query.
+     *
+     * @return The key of the query, from which its socket and ID are obtained, or -1 if every socket is full.
+     */
+    int allocate() {
+        int index = random.nextInt(sockets.length);
+        for (int i = 0; i < sockets.length; i++, index = (index + 1) % sockets.length) {
+            Socket socket = sockets[index];
+            if (socket.retired || socket.inFlight >= IDS_PER_SOCKET / 2) continue;
+            int id;
+            do {
+                id = random.nextInt(IDS_PER_SOCKET);
+            } while (socket.inUse.get(id));
+            socket.inUse.set(id);
+            socket.inFlight++;
+            if (++socket.queries >= queriesPerPort && canRetire()) socket.retired = true;
+            inFlight++;
+            return index * IDS_PER_SOCKET + id;
+        }
+        return -1;
+    }
+
+    /**
+     * Keeps at least half the sockets in use, so that queries can still be allocated while retired sockets drain.
+     */
+    private boolean canRetire() {
+        int retired = 0;
+        for (Socket socket : sockets) {
+            if (socket.retired) retired++;
+        }
+        return (retired + 1) * 2 <= sockets.length;
+    }
+
+    /**
+     * Frees the key of a completed query. A retired socket is replaced once its last query is complete; if the new
+     * socket cannot be opened, the retired one is used again.
+     *
+     * @param key The key of the query.
+     */
+    void release(int key) {
+        int index = key / IDS_PER_SOCKET;
+        Socket socket = sockets[index];
+        if (!socket.inUse.get(key % IDS_PER_SOCKET)) return;
+        socket.inUse.clear(key % IDS_PER_SOCKET);
+        socket.inFlight--;
+        inFlight--;
+        if (socket.retired && socket.inFlight == 0) {
+            try {
+                sockets[index] = open(index);
+                rotations++;
+            } catch (IOException e) {
+                socket.retired = false;
+                socket.queries = 0;
+                return;
+            }
+            close(socket);
+        }
+    }
+
+    /**
+     * @return The transaction ID of a query.
+     */
+    static int getId(int key) {
+        return key % IDS_PER_SOCKET;
+    }
+
+    /**
+     * @return The key of a query, from the index of its socket and its ID.
+     */
+    static int getKey(int index, int id) {
+        return index * IDS_PER_SOCKET + id;
+    }
+
+    /**
+     * @return The channel a query is sent from.
+     */
+    DatagramChannel getChannel(int key) {
+        return sockets[key / IDS_PER_SOCKET].channel;
+    }
+
+    /**
+     * @return The channel of a socket, by index.
+     */
+    DatagramChannel getChannelAt(int index) {
+        return sockets[index].channel;
+    }
+
+    int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return The number of sockets replaced by a socket on a new port.
+     */
+    long getRotations() {
+        return rotations;
+    }
+
+    @Override
+    public void close() {
+        for (Socket socket : sockets) {
+            if (socket != null) close(socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Socket {
+        final DatagramChannel channel;
+        final BitSet inUse = new BitSet(IDS_PER_SOCKET);
+        int inFlight;
+        int queries;
+        boolean retired;
+
+        Socket(DatagramChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Exchanges messages with nameservers over UDP. Each exchange borrows a socket from a small pool, so exchanges can
+ * run in parallel without sharing a socket, and sockets are reused from one exchange to the next. Sockets are bound
+ * to random source ports.
+ */
+public class UdpTransport implements DNSTransport {
+
+    private final Deque<Endpoint> endpoints = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates a transport with one socket ready for use.
+     *
+     * @throws SocketException If a DatagramSocket cannot be created.
+     */
+    public UdpTransport() throws SocketException {
+        endpoints.add(new Endpoint());
+    }
+
+    @Override
+    public int exchange(ByteBuffer query, InetSocketAddress server, ByteBuffer response, int timeoutMillis)
+            throws IOException {
+        Endpoint endpoint = endpoints.pollFirst();
+        if (endpoint == null) endpoint = new Endpoint();
+        try {
+            byte[] data = query.hasArray() ? query.array() : copy(query);
+            int offset = query.hasArray() ? query.arrayOffset() : 0;
+            endpoint.sendPacket.setData(data, offset, query.limit());
+            endpoint.sendPacket.setSocketAddress(server);
+            endpoint.socket.send(endpoint.sendPacket);
+            return receive(endpoint, DNSTransport.transactionId(query), response, timeoutMillis);
+        } finally {
+            release(endpoint);
+        }
+    }
+
+    /**
+     * Receives datagrams until one is a response carrying the given transaction ID, or the timeout expires.
+     */
+    private int receive(Endpoint endpoint, int id, ByteBuffer response, int timeoutMillis) throws IOException {
+        response.clear();
+        byte[] buf = response.hasArray() ? response.array() : new byte[response.capacity()];
+        int offset = response.hasArray() ? response.arrayOffset() : 0;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return -1;
+            endpoint.socket.setSoTimeout((int) remaining);
+            endpoint.receivePacket.setData(buf, offset, response.capacity());
+            try {
+                endpoint.socket.receive(endpoint.receivePacket);
+            } catch (SocketTimeoutException e) {
+                return -1;
+            }
+            int length = endpoint.receivePacket.getLength();
+            if (length < DNSMessage.DataOffset) continue;
+            if (!response.hasArray()) {
+                response.clear();
+                response.put(buf, 0, length);
+            }
+            if (DNSTransport.transactionId(response) == id &&
+                    (response.getShort(DNSMessage.CMDOffset) & DNSMessage.QRMask) != 0)
+                return length;
+        }
+    }
+
+    private void release(Endpoint endpoint) {
+        if (closed) endpoint.socket.close();
+        else endpoints.addFirst(endpoint);
+    }
+
+    private static byte[] copy(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.limit()];
+        for (int i = 0; i < data.length; i++) data[i] = buffer.get(i);
+        return data;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Endpoint endpoint;
+        while ((endpoint = endpoints.pollFirst()) != null) endpoint.socket.close();
+    }
+
+    private static class Endpoint {
+        final DatagramSocket socket = new DatagramSocket(null);
+        final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+        final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+
+        Endpoint() throws SocketException {
+            SocketPool.bindRandomPort(socket);
+        }
+    }
+}
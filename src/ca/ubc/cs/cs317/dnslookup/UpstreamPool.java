@@ -0,0 +1,163 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The recursive resolvers to which a DNSLookupService in forwarding mode sends its queries. Each upstream keeps a
+ * smoothed round-trip time and its variation, computed like TCP's (RFC 6298), and a count of consecutive failures.
+ * <p>
+ * An upstream is picked by comparing two upstreams chosen at random ("power of two choices") and taking the one with
+ * the lower score: its smoothed round-trip time, doubled for each consecutive failure. This sends most queries to the
+ * fastest upstreams without sending all of them to a single one. An upstream that keeps failing is still picked
+ * now and then (when it is drawn twice), which is how it is found again once it recovers. Upstreams without any
+ * measurement yet are picked first.
+ */
+public class UpstreamPool {
+
+    private static final double RTT_GAIN = 0.125;
+    private static final double RTTVAR_GAIN = 0.25;
+    private static final long MIN_HEDGE_DELAY = 10;
+    private static final long INITIAL_HEDGE_DELAY = 500;
+    private static final int MAX_FAILURE_PENALTY = 10;
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private long hedged;
+    private long hedgeWins;
+    private long failovers;
+
+    /**
+     * Creates a pool of upstream resolvers.
+     *
+     * @param servers The addresses and ports of the recursive resolvers.
+     */
+    public UpstreamPool(Collection<InetSocketAddress> servers) {
+        if (servers.isEmpty()) throw new IllegalArgumentException("No upstream resolver");
+        for (InetSocketAddress server : servers) upstreams.add(new Upstream(server));
+    }
+
+    public List<Upstream> getUpstreams() {
+        return Collections.unmodifiableList(upstreams);
+    }
+
+    /**
+     * Picks the upstream to send a query to.
+     *
+     * @param exclude Upstreams already used for this query.
+     * @return The upstream, or null if all of them are excluded.
+     */
+    synchronized Upstream pick(Collection<Upstream> exclude) {
+        List<Upstream> candidates = new ArrayList<>(upstreams);
+        candidates.removeAll(exclude);
+        if (candidates.isEmpty()) return null;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Upstream first = candidates.get(random.nextInt(candidates.size()));
+        Upstream second = candidates.get(random.nextInt(candidates.size()));
+        return first.score() <= second.score() ? first : second;
+    }
+
+    /**
+     * Returns how long to wait for a response from an upstream before hedging, i.e., sending the same query to
+     * another upstream: its smoothed round-trip time plus four times its variation, as for a retransmission timeout.
+     *
+     * @param upstream The upstream the query was sent to.
+     * @return The delay in milliseconds.
+     */
+    synchronized long getHedgeDelay(Upstream upstream) {
+        if (upstream.samples == 0) return INITIAL_HEDGE_DELAY;
+        return Math.max(MIN_HEDGE_DELAY, (long) ((upstream.srttNanos + 4 * upstream.rttvarNanos) / 1e6));
+    }
+
+    synchronized void onResponse(Upstream upstream, long rttNanos) {
+        upstream.queries++;
+        upstream.consecutiveFailures = 0;
+        if (upstream.samples++ == 0) {
+            upstream.srttNanos = rttNanos;
+            upstream.rttvarNanos = rttNanos / 2.0;
+        } else {
+            upstream.rttvarNanos += RTTVAR_GAIN * (Math.abs(upstream.srttNanos - rttNanos) - upstream.rttvarNanos);
+            upstream.srttNanos += RTT_GAIN * (rttNanos - upstream.srttNanos);
+        }
+    }
+
+    synchronized void onFailure(Upstream upstream) {
+        upstream.queries++;
+        upstream.failures++;
+        upstream.consecutiveFailures++;
+    }
+
+    synchronized void onHedge() {
+        hedged++;
+    }
+
+    synchronized void onHedgeWin() {
+        hedgeWins++;
+    }
+
+    synchronized void onFailover() {
+        failovers++;
+    }
+
+    /**
+     * @return The number of queries sent to a second upstream because the first one was slow to respond.
+     */
+    public synchronized long getHedged() {
+        return hedged;
+    }
+
+    /**
+     * @return The number of hedged queries answered first by the second upstream.
+     */
+    public synchronized long getHedgeWins() {
+        return hedgeWins;
+    }
+
+    /**
+     * @return The number of queries sent to another upstream after an error or a timeout.
+     */
+    public synchronized long getFailovers() {
+        return failovers;
+    }
+
+    public synchronized void report(PrintStream out) {
+        for (Upstream upstream : upstreams) {
+            out.printf("       %-30s srtt %8.3f ms  queries %-8d failures %d%n", upstream.address,
+                    upstream.srttNanos / 1e6, upstream.queries, upstream.failures);
+        }
+        out.printf("Hedged: %d (%d won by the second upstream), failovers: %d%n", hedged, hedgeWins, failovers);
+    }
+
+    /**
+     * One recursive resolver of the pool.
+     */
+    public static class Upstream {
+        private final InetSocketAddress address;
+        private double srttNanos;
+        private double rttvarNanos;
+        private long samples;
+        private long queries;
+        private long failures;
+        private int consecutiveFailures;
+
+        private Upstream(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        private double score() {
+            if (samples == 0 && consecutiveFailures == 0) return 0;
+            double base = samples == 0 ? INITIAL_HEDGE_DELAY * 1e6 : srttNanos;
+            return base * (1L << Math.min(consecutiveFailures, MAX_FAILURE_PENALTY));
+        }
+
+        @Override
+        public String toString() {
+            return address.toString();
+        }
+    }
+}
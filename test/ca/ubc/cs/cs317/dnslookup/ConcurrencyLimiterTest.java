@@ -0,0 +1,63 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyLimiterTest {
+
+    private static final InetAddress server = DNSCache.stringToInetAddress("10.0.0.1");
+    private static final InetAddress other = DNSCache.stringToInetAddress("10.0.0.2");
+
+    @Test
+    public void testLimitsPerServerAndGrowsOnFastResponses() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 100, 2, 10);
+        ConcurrencyLimiter.Token first = limiter.tryAcquire(server);
+        ConcurrencyLimiter.Token second = limiter.tryAcquire(server);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(limiter.tryAcquire(server));
+        ConcurrencyLimiter.Token third = limiter.tryAcquire(other);
+        assertNotNull(third);
+        assertEquals(3, limiter.getInFlight());
+
+        for (int i = 0; i < 20; i++) {
+            first.onResponse(1000000);
+            second.onResponse(1000000);
+        }
+        assertTrue(limiter.getLimit(server) > 2);
+        first.close();
+        first.close();
+        second.close();
+        third.close();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testCutsLimitOncePerRoundTrip() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100, 8, 10);
+        ConcurrencyLimiter.Token first = limiter.tryAcquire(server);
+        ConcurrencyLimiter.Token second = limiter.tryAcquire(server);
+        first.onTimeout();
+        second.onTimeout();
+        assertEquals(4, limiter.getLimit(server));
+        assertEquals(9, limiter.getLimit());
+
+        // a query sent after the cut may cut again
+        ConcurrencyLimiter.Token third = limiter.tryAcquire(server);
+        third.onTimeout();
+        assertEquals(2, limiter.getLimit(server));
+
+        // responses much slower than the fastest one seen also cut the limit
+        first.close();
+        second.close();
+        third.close();
+        ConcurrencyLimiter.Token fourth = limiter.tryAcquire(other);
+        fourth.onResponse(1000000);
+        ConcurrencyLimiter.Token fifth = limiter.tryAcquire(other);
+        fifth.onResponse(50000000);
+        assertEquals(7, limiter.getLimit(other));
+    }
+}
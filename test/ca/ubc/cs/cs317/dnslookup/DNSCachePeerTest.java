@@ -0,0 +1,134 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.*;
+
+public class DNSCachePeerTest {
+
+    private final List<DNSCache> caches = new ArrayList<>();
+    private final List<DNSCachePeer> peers = new ArrayList<>();
+
+    @BeforeEach
+    public void startPeers() throws SocketException {
+        for (int i = 0; i < 3; i++) {
+            DNSCache cache = new DNSCache();
+            caches.add(cache);
+            peers.add(new DNSCachePeer(cache, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+        }
+        for (DNSCachePeer peer : peers)
+            for (DNSCachePeer other : peers)
+                if (peer != other) peer.addPeer(other.getAddress());
+    }
+
+    @AfterEach
+    public void stopPeers() {
+        peers.forEach(DNSCachePeer::close);
+    }
+
+    private int indexOfOwner(DNSQuestion question) {
+        InetSocketAddress owner = peers.get(0).ownerOf(question);
+        for (int i = 0; i < peers.size(); i++)
+            if (peers.get(i).getAddress().equals(owner)) return i;
+        return -1;
+    }
+
+    @Test
+    public void testOwnerIsConsistent() {
+        for (int i = 0; i < 100; i++) {
+            DNSQuestion question = DNSCache.AQuestion("host" + i + ".example.com");
+            InetSocketAddress owner = peers.get(0).ownerOf(question);
+            for (DNSCachePeer peer : peers)
+                Assertions.assertEquals(owner, peer.ownerOf(question));
+        }
+    }
+
+    @Test
+    public void testShareAndQuery() throws InterruptedException {
+        DNSQuestion question = DNSCache.AQuestion("www.example.com");
+        int owner = indexOfOwner(question);
+        int publisher = (owner + 1) % peers.size();
+        int asker = (owner + 2) % peers.size();
+        ResourceRecord record = new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("10.1.2.3"));
+
+        caches.get(publisher).addResult(record);
+        peers.get(publisher).publish(Collections.singleton(record));
+        for (int i = 0; i < 50 && caches.get(owner).getCachedResults(question).isEmpty(); i++)
+            Thread.sleep(10);
+        Assertions.assertEquals(Collections.singletonList(record), caches.get(owner).getCachedResults(question));
+
+        List<ResourceRecord> received = peers.get(asker).query(question);
+        Assertions.assertEquals(Collections.singletonList(record), received);
+        Assertions.assertEquals(record.getExpirationMillis(), received.get(0).getExpirationMillis());
+        Assertions.assertTrue(caches.get(asker).getCachedResults(question).contains(record));
+    }
+
+    @Test
+    public void testIgnoresRecordsFromUnknownHosts() throws IOException, InterruptedException {
+        DNSQuestion question = DNSCache.AQuestion("www.example.com");
+        int owner = indexOfOwner(question);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeShort(0);
+        RecordCodec.writeRecords(out, Collections.singleton(
+                new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("10.6.6.6"))));
+        try (DatagramSocket intruder = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            intruder.send(new DatagramPacket(bytes.toByteArray(), bytes.size(), peers.get(owner).getAddress()));
+        }
+        Thread.sleep(100);
+        Assertions.assertTrue(caches.get(owner).getCachedResults(question).isEmpty());
+    }
+
+    @Test
+    public void testClampsSharedExpiration() throws InterruptedException {
+        DNSQuestion question = DNSCache.AQuestion("www.example.com");
+        int owner = indexOfOwner(question);
+        int publisher = (owner + 1) % peers.size();
+        long tenYears = 10L * 365 * 86400 * 1000;
+        ResourceRecord record = new ResourceRecord(question, new Date(System.currentTimeMillis() + tenYears),
+                DNSCache.stringToInetAddress("10.1.2.3"));
+
+        peers.get(publisher).publish(Collections.singleton(record));
+        for (int i = 0; i < 50 && caches.get(owner).getCachedResults(question).isEmpty(); i++)
+            Thread.sleep(10);
+        List<ResourceRecord> cached = caches.get(owner).getCachedResults(question);
+        Assertions.assertEquals(1, cached.size());
+        Assertions.assertTrue(cached.get(0).getRemainingTTL() <= 604800);
+    }
+
+    @Test
+    public void testLargeRecordSetsFitInMessages() throws InterruptedException {
+        DNSQuestion question = new DNSQuestion("example.com", RecordType.TXT, RecordClass.IN);
+        int owner = indexOfOwner(question);
+        int publisher = (owner + 1) % peers.size();
+        int asker = (owner + 2) % peers.size();
+        List<ResourceRecord> records = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            // three strings of 250 bytes each, so that a batch of records does not fit in a single message
+            byte[] rdata = new byte[3 * 251];
+            Arrays.fill(rdata, (byte) ('a' + i % 26));
+            for (int j = 0; j < 3; j++) rdata[j * 251] = (byte) 250;
+            rdata[1] = (byte) i;
+            records.add(new ResourceRecord(question, 3600, rdata));
+        }
+
+        peers.get(publisher).publish(records);
+        for (int i = 0; i < 50 && caches.get(owner).getCachedResults(question).size() < records.size(); i++)
+            Thread.sleep(10);
+        Assertions.assertEquals(records.size(), caches.get(owner).getCachedResults(question).size());
+        // the whole set does not fit in an answer, and part of it is not sent instead
+        Assertions.assertTrue(peers.get(asker).query(question).isEmpty());
+    }
+}
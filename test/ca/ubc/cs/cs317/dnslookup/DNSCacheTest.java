@@ -2,9 +2,15 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DNSCacheTest {
     @Test
@@ -33,4 +39,99 @@ public class DNSCacheTest {
         assertEquals(0, alist.size());
         cache.addResult(new ResourceRecord(DNSCache.AQuestion("ns.cs.ubc.ca"), 3600, DNSCache.stringToInetAddress("142.103.10.10")));
     }
+    @Test
+    public void testGetBestNameServerDeepest() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ca"), 3600, "c.ca-servers.ca"));
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"));
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns2.ubc.ca"));
+        DNSQuestion question = DNSCache.AQuestion("a.b.c.d.e.f.www.cs.ubc.ca");
+        List<ResourceRecord> nslist = cache.getBestNameservers(question);
+        assertEquals(2, nslist.size());
+        for (ResourceRecord rr : nslist)
+            assertEquals("ubc.ca", rr.getHostName());
+        assertEquals(1, cache.getBestNameservers(DNSCache.AQuestion("www.cbc.ca")).size());
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.ubc.com")).size());
+    }
+    @Test
+    public void testLocalRootZone() throws IOException {
+        DNSCache cache = new DNSCache();
+        cache.setRootZone(RootZone.parse(new StringReader(String.join("\n",
+                "; root zone excerpt",
+                ".\t\t\t86400\tIN\tSOA\ta.root-servers.net. nstld.verisign-grs.com. 2024010100 1800 900 604800 86400",
+                ".\t\t\t518400\tIN\tNS\ta.root-servers.net.",
+                "ca.\t\t\t172800\tIN\tNS\tc.ca-servers.ca.",
+                "ca.\t\t\t172800\tIN\tNS\tj.ca-servers.ca.",
+                "ca.\t\t\t86400\tIN\tDS\t2134 8 2 3B2A2B8C3F4D",
+                "c.ca-servers.ca.\t172800\tIN\tA\t185.159.196.2",
+                "c.ca-servers.ca.\t172800\tIN\tAAAA\t2620:10a:8053::2",
+                "j.ca-servers.ca. 172800 A 198.182.167.1"))));
+        assertEquals(2, cache.getRootZone().getDelegationCount());
+
+        List<ResourceRecord> nslist = cache.getBestNameservers(DNSCache.AQuestion("www.cs.ubc.ca"));
+        assertEquals(2, nslist.size());
+        assertEquals("ca", nslist.get(0).getHostName());
+        assertEquals(2, cache.filterByKnownIPAddress(nslist).size());
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.example.com")).size());
+
+        // a delegation learned from a server is closer than the TLD
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"));
+        assertEquals("ns1.ubc.ca", cache.getBestNameservers(DNSCache.AQuestion("www.cs.ubc.ca")).get(0).getTextResult());
+        cache.setRootZone(null);
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.ca")).size());
+    }
+    @Test
+    public void testGetBestNameServerSkipsExpired() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ca"), 3600, "c.ca-servers.ca"));
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 0, "ns1.ubc.ca"));
+        List<ResourceRecord> nslist = cache.getBestNameservers(DNSCache.AQuestion("www.ubc.ca"));
+        assertEquals(1, nslist.size());
+        assertEquals("ca", nslist.get(0).getHostName());
+    }
+    @Test
+    public void testCachedResultsFollowCNameWithQuestionType() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = new DNSQuestion("www.ubc.ca", RecordType.AAAA, RecordClass.IN);
+        ResourceRecord cname = new ResourceRecord(
+                new DNSQuestion("www.ubc.ca", RecordType.CNAME, RecordClass.IN), 3600, "web.ubc.ca");
+        ResourceRecord aaaa = new ResourceRecord(new DNSQuestion("web.ubc.ca", RecordType.AAAA, RecordClass.IN),
+                3600, DNSCache.stringToInetAddress("2001:db8::1"));
+        cache.addResult(cname);
+        cache.addResult(aaaa);
+        cache.addResult(new ResourceRecord(DNSCache.AQuestion("web.ubc.ca"), 3600,
+                DNSCache.stringToInetAddress("142.103.10.10")));
+        List<ResourceRecord> results = cache.getCachedResults(question);
+        assertEquals(2, results.size());
+        assertTrue(results.contains(cname));
+        assertTrue(results.contains(aaaa));
+    }
+    @Test
+    public void testFinalAnswer() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        List<ResourceRecord> chain = Arrays.asList(
+                new ResourceRecord(new DNSQuestion("www.ubc.ca", RecordType.CNAME, RecordClass.IN), 3600, "a.cdn.net"),
+                new ResourceRecord(new DNSQuestion("a.cdn.net", RecordType.CNAME, RecordClass.IN), 60, "b.cdn.net"),
+                new ResourceRecord(DNSCache.AQuestion("b.cdn.net"), 300, DNSCache.stringToInetAddress("10.0.0.1")));
+        cache.addFinalAnswer(question, chain);
+        Collection<ResourceRecord> answer = cache.getFinalAnswer(question);
+        assertEquals(3, answer.size());
+        assertTrue(answer.containsAll(chain));
+        assertNull(cache.getFinalAnswer(DNSCache.AQuestion("a.cdn.net")));
+    }
+    @Test
+    public void testFinalAnswerExpiresWithFirstLink() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        cache.addFinalAnswer(question, Arrays.asList(
+                new ResourceRecord(new DNSQuestion("www.ubc.ca", RecordType.CNAME, RecordClass.IN), 0, "a.cdn.net"),
+                new ResourceRecord(DNSCache.AQuestion("a.cdn.net"), 300, DNSCache.stringToInetAddress("10.0.0.1"))));
+        assertNull(cache.getFinalAnswer(question));
+    }
 }
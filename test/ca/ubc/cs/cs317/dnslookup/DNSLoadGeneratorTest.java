@@ -0,0 +1,73 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DNSLoadGeneratorTest {
+    @Test
+    public void testZipfFavoursFirstNames() {
+        Map<RecordType, Integer> types = new LinkedHashMap<>();
+        types.put(RecordType.A, 1);
+        DNSLoadGenerator.ZipfQuerySource source = new DNSLoadGenerator.ZipfQuerySource(100, 1.0, "example.com", types);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            DNSQuestion question = source.next();
+            assertEquals(RecordType.A, question.getRecordType());
+            counts.merge(question.getHostName(), 1, Integer::sum);
+        }
+        assertTrue(counts.get("host1.example.com") > counts.getOrDefault("host10.example.com", 0));
+        assertTrue(counts.getOrDefault("host10.example.com", 0) > counts.getOrDefault("host100.example.com", 0));
+    }
+
+    @Test
+    public void testLatencyPercentiles() {
+        DNSLoadGenerator.Stats stats = new DNSLoadGenerator.Stats();
+        for (int i = 1; i <= 100; i++) stats.answered(i * 1000000L);
+        assertEquals(50.0, stats.getLatencyMillis(50));
+        assertEquals(99.0, stats.getLatencyMillis(99));
+        assertEquals(100.0, stats.getLatencyMillis(100));
+    }
+
+    @Test
+    public void testLateResponsesAreTimeouts() throws IOException, InterruptedException {
+        try (DatagramSocket resolver = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            // a resolver that answers every query, but only after the timeout of the generator
+            Thread responder = new Thread(() -> {
+                byte[] buffer = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        resolver.receive(packet);
+                        Thread.sleep(150);
+                        buffer[2] |= (byte) 0x80;
+                        resolver.send(packet);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // closed at the end of the test
+                }
+            });
+            responder.setDaemon(true);
+            responder.start();
+
+            DNSLoadGenerator generator = new DNSLoadGenerator(new DNSLoadGenerator.FileQuerySource(
+                    Collections.singletonList(DNSCache.AQuestion("www.ubc.ca"))), 20, 0.2, 50);
+            DNSLoadGenerator.Stats stats = generator.runAgainstSocket(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), resolver.getLocalPort()));
+            assertEquals(4, stats.getSent());
+            assertEquals(0, stats.getAnswered());
+            assertEquals(4, stats.getTimeouts());
+        }
+    }
+}
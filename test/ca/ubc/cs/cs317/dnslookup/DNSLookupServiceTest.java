@@ -131,4 +131,64 @@ public class DNSLookupServiceTest {
                 Collections.emptySet(),
                 Collections.emptySet());                        // additional
     }
+
+    @Test
+    public void testProcessResponseReferralWithGlue() throws UnknownHostException, DNSLookupService.DNSErrorException {
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        // The glue owner names are compressed as pointers into the NS record data
+        processResponseCommonTest(false, 0,
+                Collections.singleton(question),
+                Collections.emptySet(),
+                Arrays.asList(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"),
+                        new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns2.ubc.ca")),
+                Arrays.asList(new ResourceRecord(DNSCache.AQuestion("ns1.ubc.ca"), 3600, InetAddress.getByName("142.103.1.1")),
+                        new ResourceRecord(DNSCache.AQuestion("ns2.ubc.ca"), 3600, InetAddress.getByName("142.103.1.2"))));
+    }
+
+    @Test
+    public void testDecodeStructuredRecords() {
+        DNSQuestion soa = new DNSQuestion("ubc.ca", RecordType.SOA, RecordClass.IN);
+        DNSQuestion txt = new DNSQuestion("ubc.ca", RecordType.TXT, RecordClass.IN);
+        DNSQuestion srv = new DNSQuestion("_sip._udp.ubc.ca", RecordType.SRV, RecordClass.IN);
+        DNSQuestion caa = new DNSQuestion("ubc.ca", RecordType.CAA, RecordClass.IN);
+        DNSMessage message = buildResponse(1, true, 0, Collections.emptySet(), Arrays.asList(
+                new ResourceRecord(soa, 3600, rdata(3, "ns1", 3, "ubc", 2, "ca", 0, 4, "root", 3, "ubc", 2, "ca", 0,
+                        0, 0, 0, 7, 0, 0, 0x0e, 0x10, 0, 0, 0x03, 0x84, 0, 0x09, 0x3a, 0x80, 0, 0, 0x01, 0x2c)),
+                new ResourceRecord(txt, 3600, rdata(5, "hello", 8, "say \"hi\"")),
+                new ResourceRecord(srv, 3600, rdata(0, 10, 0, 60, 0x13, 0xc4, 3, "sip", 3, "ubc", 2, "ca", 0)),
+                new ResourceRecord(caa, 3600, rdata(0, 5, "issue", "letsencrypt.org"))),
+                Collections.emptySet(), Collections.emptySet());
+        DNSMessage received = turnaround(message);
+        received.setQDCount(0);
+        Assertions.assertEquals("ns1.ubc.ca root.ubc.ca 7 3600 900 604800 300", received.getRR().getTextResult());
+        Assertions.assertEquals("\"hello\" \"say \\\"hi\\\"\"", received.getRR().getTextResult());
+        ResourceRecord srvRecord = received.getRR();
+        Assertions.assertEquals(5060, RecordData.decodeSRV(srvRecord.getRData()).port);
+        Assertions.assertEquals("10 60 5060 sip.ubc.ca", srvRecord.getTextResult());
+        Assertions.assertEquals("0 issue \"letsencrypt.org\"", received.getRR().getTextResult());
+    }
+
+    @Test
+    public void testDecodeMalformedRecordsAsHex() {
+        DNSQuestion caa = new DNSQuestion("ubc.ca", RecordType.CAA, RecordClass.IN);
+        DNSQuestion mx = new DNSQuestion("ubc.ca", RecordType.MX, RecordClass.IN);
+        Assertions.assertEquals("00", new ResourceRecord(caa, 3600, rdata(0)).getTextResult());
+        Assertions.assertEquals("0009697373", new ResourceRecord(caa, 3600, rdata(0, 9, "iss")).getTextResult());
+        Assertions.assertEquals("00", new ResourceRecord(mx, 3600, rdata(0)).getTextResult());
+        Assertions.assertEquals("000a056d61", new ResourceRecord(mx, 3600, rdata(0, 10, 5, "ma")).getTextResult());
+    }
+
+    /**
+     * Builds record data from a mix of bytes (given as integers) and ASCII strings.
+     */
+    private static byte[] rdata(Object... parts) {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        for (Object part : parts) {
+            if (part instanceof Integer)
+                out.write((Integer) part);
+            else
+                for (char c : ((String) part).toCharArray()) out.write(c);
+        }
+        return out.toByteArray();
+    }
 }
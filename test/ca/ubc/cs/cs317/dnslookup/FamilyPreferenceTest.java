@@ -0,0 +1,35 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FamilyPreferenceTest {
+
+    private static final InetAddress IPV4 = DNSCache.stringToInetAddress("192.0.2.1");
+    private static final InetAddress IPV6 = DNSCache.stringToInetAddress("2001:db8::1");
+
+    @Test
+    public void testPrefersFasterFamily() {
+        FamilyPreference families = new FamilyPreference();
+        assertTrue(families.prefersIPv6("ns1.example.com"));
+        families.onResponse("ns1.example.com", IPV4, 20000000);
+        families.onSlow("ns1.example.com", IPV6, 50000000);
+        assertFalse(families.prefersIPv6("NS1.example.com"));
+        // IPv4 slows down until IPv6 is faster
+        for (int i = 0; i < 10; i++) families.onResponse("ns1.example.com", IPV4, 100000000);
+        assertTrue(families.prefersIPv6("ns1.example.com"));
+        assertTrue(families.prefersIPv6("ns2.example.com"));
+    }
+
+    @Test
+    public void testFailurePenalizesFamily() {
+        FamilyPreference families = new FamilyPreference();
+        families.onFailure("ns1.example.com", IPV6);
+        families.onResponse("ns1.example.com", IPV4, 300000000);
+        assertFalse(families.prefersIPv6("ns1.example.com"));
+        assertEquals(1, families.size());
+    }
+}
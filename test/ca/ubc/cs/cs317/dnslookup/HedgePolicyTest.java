@@ -0,0 +1,35 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HedgePolicyTest {
+
+    @Test
+    public void testDelayFollowsPercentile() {
+        HedgePolicy policy = new HedgePolicy(0.9, 0.1);
+        assertEquals(500, policy.getDelay());
+        for (int i = 1; i <= 100; i++) policy.onResponse(i * 1000000L);
+        assertEquals(91, policy.getDelay());
+        for (int i = 0; i < 256; i++) policy.onResponse(1000);
+        assertEquals(10, policy.getDelay());
+    }
+
+    @Test
+    public void testCapsHedgeRate() {
+        HedgePolicy policy = new HedgePolicy(0.95, 0.1);
+        int hedges = 0;
+        for (int i = 0; i < 1000; i++) {
+            policy.onQuery();
+            if (policy.mayHedge()) {
+                policy.onHedge();
+                hedges++;
+            }
+        }
+        // the initial burst, then one hedge every ten queries
+        assertTrue(hedges >= 100 && hedges <= 110);
+        assertEquals(hedges, policy.getHedged());
+        assertEquals(1000 - hedges, policy.getCapped());
+    }
+}
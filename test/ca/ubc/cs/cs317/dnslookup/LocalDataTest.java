@@ -0,0 +1,89 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalDataTest {
+
+    private static final String HOSTS = String.join("\n",
+            "# internal hosts",
+            "10.0.0.1    build.corp.example build   # CI server",
+            "10.0.0.2    wiki.corp.example",
+            "fd00::2     wiki.corp.example");
+
+    private static final String ZONE = String.join("\n",
+            "$ORIGIN lab.example.",
+            "$TTL 600",
+            "@       IN SOA ns1 hostmaster (",
+            "                2024010100 ; serial",
+            "                3600 600 86400 300 )",
+            "        IN NS  ns1",
+            "ns1     IN A   10.1.0.1",
+            "www  60 IN CNAME web",
+            "web     IN A   10.1.0.2",
+            "        IN A   10.1.0.3",
+            "mail    IN MX  10 smtp.corp.example.",
+            "info    IN TXT \"v=spf1 -all\" \"second; string\"",
+            "host.b  IN A   10.1.0.4");
+
+    private static LocalData load() throws IOException {
+        return new LocalData.Builder().addHosts(new StringReader(HOSTS)).addZone(new StringReader(ZONE)).build();
+    }
+
+    @Test
+    public void testHostsEntries() throws IOException {
+        LocalData data = load();
+        List<ResourceRecord> records = data.lookup(DNSCache.AQuestion("Build.corp.example"));
+        assertEquals(1, records.size());
+        assertEquals("10.0.0.1", records.get(0).getTextResult());
+        assertEquals("Build.corp.example", records.get(0).getHostName());
+        assertEquals("fd00:0:0:0:0:0:0:2", data.lookup(
+                new DNSQuestion("wiki.corp.example", RecordType.AAAA, RecordClass.IN)).get(0).getTextResult());
+        // names of hosts files are local, but not the rest of their domain
+        assertTrue(data.lookup(new DNSQuestion("build", RecordType.AAAA, RecordClass.IN)).isEmpty());
+        assertNull(data.lookup(DNSCache.AQuestion("other.corp.example")));
+        assertFalse(data.isNameError(DNSCache.AQuestion("other.corp.example")));
+        assertEquals("build.corp.example", data.lookup(
+                new DNSQuestion("1.0.0.10.in-addr.arpa", RecordType.PTR, RecordClass.IN)).get(0).getTextResult());
+    }
+
+    @Test
+    public void testZoneRecords() throws IOException {
+        LocalData data = load();
+        List<ResourceRecord> records = data.lookup(DNSCache.AQuestion("www.lab.example"));
+        assertEquals(3, records.size());
+        assertEquals(RecordType.CNAME, records.get(0).getRecordType());
+        assertEquals("web.lab.example", records.get(0).getTextResult());
+        assertTrue(records.get(0).getRemainingTTL() <= 60);
+        assertEquals("web.lab.example", records.get(1).getHostName());
+        assertTrue(records.get(1).getRemainingTTL() > 300);
+
+        assertEquals("smtp.corp.example", data.lookup(
+                new DNSQuestion("mail.lab.example", RecordType.MX, RecordClass.IN)).get(0).getTextResult());
+        assertEquals("\"v=spf1 -all\" \"second; string\"", data.lookup(
+                new DNSQuestion("info.lab.example", RecordType.TXT, RecordClass.IN)).get(0).getTextResult());
+        assertEquals("ns1.lab.example", data.lookup(DNSCache.NSQuestion("lab.example")).get(0).getTextResult());
+
+        // names of a zone that are not in it do not exist
+        assertTrue(data.lookup(DNSCache.AQuestion("missing.lab.example")).isEmpty());
+        assertTrue(data.isNameError(DNSCache.AQuestion("missing.lab.example")));
+        assertFalse(data.isNameError(new DNSQuestion("ns1.lab.example", RecordType.AAAA, RecordClass.IN)));
+        // an empty non-terminal exists, without data
+        assertTrue(data.lookup(DNSCache.AQuestion("b.lab.example")).isEmpty());
+        assertFalse(data.isNameError(DNSCache.AQuestion("b.lab.example")));
+        assertTrue(data.isNameError(DNSCache.AQuestion("a.b.lab.example")));
+        assertNull(data.lookup(DNSCache.AQuestion("lab.example.org")));
+    }
+
+    @Test
+    public void testInvalidRecord() {
+        IOException e = assertThrows(IOException.class, () -> new LocalData.Builder()
+                .addZone(new StringReader("$ORIGIN lab.example.\nwww IN A not-an-address\n")));
+        assertTrue(e.getMessage().startsWith("Line 2"));
+    }
+}
@@ -0,0 +1,82 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+public class OffHeapRecordStoreTest {
+
+    @Test
+    public void testAddMergesRecordsOfQuestion() {
+        OffHeapRecordStore store = new OffHeapRecordStore(16);
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        ResourceRecord first = new ResourceRecord(question, 60, DNSCache.stringToInetAddress("142.103.10.10"));
+        ResourceRecord second = new ResourceRecord(question, 600, DNSCache.stringToInetAddress("142.103.10.11"));
+        Assertions.assertNull(store.get(question));
+        store.add(first);
+        store.add(second);
+        Assertions.assertEquals(2, store.add(new ResourceRecord(question, 3600,
+                DNSCache.stringToInetAddress("142.103.10.10"))).size());
+        Set<ResourceRecord> results = store.get(question);
+        Assertions.assertEquals(2, results.size());
+        Assertions.assertTrue(results.contains(first) && results.contains(second));
+        // The expiration of the first record was extended to the one of the equal record added last
+        for (ResourceRecord rr : results) {
+            if (rr.equals(first)) Assertions.assertTrue(rr.getExpirationMillis() > second.getExpirationMillis());
+        }
+        Assertions.assertNull(store.get(new DNSQuestion("www.ubc.ca", RecordType.AAAA, RecordClass.IN)));
+        Assertions.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testGrowsAndRemovesExpiredRecords() throws InterruptedException {
+        OffHeapRecordStore store = new OffHeapRecordStore(16);
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            DNSQuestion question = DNSCache.AQuestion("host" + i + ".example.com");
+            store.add(new ResourceRecord(question, i % 2 == 0 ? 1 : 3600, DNSCache.stringToInetAddress("10.0.0.1")));
+        }
+        // Large record sets are kept in blocks of larger size classes
+        DNSQuestion large = new DNSQuestion("example.com", RecordType.TXT, RecordClass.IN);
+        for (int i = 0; i < 100; i++) store.add(new ResourceRecord(large, 3600, "text record " + i));
+        Assertions.assertEquals(count + 1, store.size());
+        Assertions.assertEquals(100, store.get(large).size());
+        Assertions.assertTrue(store.getAllocatedBytes() > 1 << 20);
+        Assertions.assertTrue(store.getUsedBytes() <= store.getAllocatedBytes());
+
+        Thread.sleep(1100);
+        long used = store.getUsedBytes();
+        store.prune();
+        Assertions.assertEquals(count / 2 + 1, store.size());
+        Assertions.assertTrue(store.getUsedBytes() < used);
+        for (int i = 0; i < count; i++) {
+            Set<ResourceRecord> results = store.get(DNSCache.AQuestion("host" + i + ".example.com"));
+            if (i % 2 == 0) Assertions.assertNull(results);
+            else Assertions.assertEquals(1, results.size());
+        }
+        int[] questions = new int[1];
+        store.forEach((question, records) -> questions[0]++);
+        Assertions.assertEquals(count / 2 + 1, questions[0]);
+
+        store.clear();
+        Assertions.assertEquals(0, store.size());
+        Assertions.assertNull(store.get(large));
+    }
+
+    @Test
+    public void testCacheUsesOffHeapStore() {
+        DNSCache cache = new DNSCache();
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"));
+        OffHeapRecordStore store = new OffHeapRecordStore(16);
+        cache.setRecordStore(store);
+        cache.addResult(new ResourceRecord(DNSCache.AQuestion("ns1.ubc.ca"), 3600,
+                DNSCache.stringToInetAddress("142.103.10.10")));
+        // The root, the addresses of its 13 nameservers, ubc.ca and the address of its nameserver
+        Assertions.assertEquals(16, store.size());
+        Assertions.assertEquals(1, cache.getBestNameservers(DNSCache.AQuestion("www.ubc.ca")).size());
+        Assertions.assertEquals(1, cache.filterByKnownIPAddress(
+                cache.getBestNameservers(DNSCache.AQuestion("www.ubc.ca"))).size());
+        Assertions.assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("www.cbc.ca")).size());
+    }
+}
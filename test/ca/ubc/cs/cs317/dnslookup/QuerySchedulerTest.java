@@ -0,0 +1,59 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuerySchedulerTest {
+
+    @Test
+    public void testGrantsImmediatelyWithinBudget() throws InterruptedException {
+        QueryScheduler scheduler = new QueryScheduler(2);
+        QueryScheduler.Permit first = scheduler.acquire(QueryScheduler.Lane.BULK);
+        QueryScheduler.Permit second = scheduler.acquire(QueryScheduler.Lane.INTERACTIVE);
+        assertEquals(0, scheduler.getWaiting(QueryScheduler.Lane.BULK));
+        first.close();
+        first.close();
+        second.close();
+        assertEquals(1, scheduler.getCompleted(QueryScheduler.Lane.BULK));
+        assertEquals(1, scheduler.getCompleted(QueryScheduler.Lane.INTERACTIVE));
+        assertEquals(0, scheduler.getCompleted(QueryScheduler.Lane.NORMAL));
+        assertTrue(scheduler.getLatencyMillis(QueryScheduler.Lane.BULK, 50) >= 0);
+    }
+
+    @Test
+    public void testSharesBudgetByWeight() throws InterruptedException {
+        QueryScheduler scheduler = new QueryScheduler(1);
+        QueryScheduler.Permit held = scheduler.acquire(QueryScheduler.Lane.NORMAL);
+
+        List<QueryScheduler.Lane> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            for (QueryScheduler.Lane lane : new QueryScheduler.Lane[]{QueryScheduler.Lane.BULK,
+                    QueryScheduler.Lane.INTERACTIVE}) {
+                Thread thread = new Thread(() -> {
+                    try (QueryScheduler.Permit permit = scheduler.acquire(lane)) {
+                        order.add(permit.getLane());
+                    } catch (InterruptedException ignored) {
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+        }
+        while (scheduler.getWaiting(QueryScheduler.Lane.BULK) + scheduler.getWaiting(QueryScheduler.Lane.INTERACTIVE) < 32)
+            Thread.sleep(1);
+
+        held.close();
+        for (Thread thread : threads) thread.join(5000);
+        assertEquals(32, order.size());
+        assertTrue(Collections.frequency(order.subList(0, 16), QueryScheduler.Lane.INTERACTIVE) >= 14);
+        assertEquals(16, scheduler.getCompleted(QueryScheduler.Lane.BULK));
+        assertTrue(scheduler.getWaitMillis(QueryScheduler.Lane.BULK, 99) >=
+                scheduler.getWaitMillis(QueryScheduler.Lane.INTERACTIVE, 50));
+    }
+}
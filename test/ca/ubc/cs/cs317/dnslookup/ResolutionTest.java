@@ -0,0 +1,116 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResolutionTest {
+
+    private static final InetAddress root = DNSCache.stringToInetAddress("10.0.0.1");
+    private static final InetAddress ubcServer = DNSCache.stringToInetAddress("10.0.0.2");
+
+    private DNSCache newCache() {
+        DNSCache cache = new DNSCache();
+        cache.reset(new String[]{"a.root-servers.net", "10.0.0.1"});
+        return cache;
+    }
+
+    private Collection<ResourceRecord> respond(DNSCache cache, ResourceRecord... records) {
+        for (ResourceRecord rr : records) cache.addResult(rr);
+        return new HashSet<>(Arrays.asList(records));
+    }
+
+    @Test
+    public void testFollowsReferrals() throws DNSLookupService.DNSErrorException {
+        DNSCache cache = newCache();
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        Resolution resolution = new Resolution(question, cache, false);
+
+        assertEquals(Resolution.Step.SEND_QUERY, resolution.advance());
+        assertEquals(root, resolution.getServer());
+        assertEquals(question, resolution.getQueryQuestion());
+        resolution.onResponse(respond(cache,
+                new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"),
+                new ResourceRecord(DNSCache.AQuestion("ns1.ubc.ca"), 3600, ubcServer)));
+
+        assertEquals(Resolution.Step.SEND_QUERY, resolution.advance());
+        assertEquals(ubcServer, resolution.getServer());
+        assertEquals("ubc.ca", resolution.getZone());
+        ResourceRecord answer = new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("1.2.3.4"));
+        resolution.onResponse(respond(cache, answer));
+
+        assertEquals(Resolution.Step.DONE, resolution.advance());
+        assertEquals(1, resolution.getResults().size());
+        assertTrue(resolution.getResults().contains(answer));
+    }
+
+    @Test
+    public void testGluelessNameserverAndCName() throws DNSLookupService.DNSErrorException {
+        DNSCache cache = newCache();
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        Resolution resolution = new Resolution(question, 5, cache, false);
+
+        assertEquals(Resolution.Step.SEND_QUERY, resolution.advance());
+        resolution.onResponse(respond(cache,
+                new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.example.com")));
+
+        assertEquals(Resolution.Step.RESOLVE_NAMESERVER, resolution.advance());
+        assertEquals("ns1.example.com", resolution.getNameserver().getTextResult());
+        resolution.onNameserverAddress(ubcServer);
+
+        assertEquals(Resolution.Step.SEND_QUERY, resolution.advance());
+        assertEquals(ubcServer, resolution.getServer());
+        DNSQuestion canonical = DNSCache.AQuestion("web.ubc.ca");
+        ResourceRecord answer = new ResourceRecord(canonical, 3600, DNSCache.stringToInetAddress("1.2.3.4"));
+        resolution.onResponse(respond(cache,
+                new ResourceRecord(new DNSQuestion("www.ubc.ca", RecordType.CNAME, RecordClass.IN), 3600,
+                        "web.ubc.ca"),
+                answer));
+
+        assertEquals(Resolution.Step.DONE, resolution.advance());
+        assertEquals(2, resolution.getResults().size());
+        assertTrue(resolution.getResults().contains(answer));
+        assertNotNull(cache.getFinalAnswer(question));
+    }
+
+    @Test
+    public void testErrorEndsResolution() {
+        Resolution resolution = new Resolution(DNSCache.AQuestion("www.ubc.ca"), newCache(), false);
+        assertEquals(Resolution.Step.SEND_QUERY, resolution.advance());
+        resolution.onError(new DNSLookupService.DNSErrorException("R-code is 3"));
+        assertEquals(Resolution.Step.DONE, resolution.advance());
+        assertThrows(DNSLookupService.DNSErrorException.class, resolution::getResults);
+    }
+
+    @Test
+    public void testBudgetEndsResolution() {
+        DNSCache cache = newCache();
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        ResolutionBudget budget = new ResolutionBudget(question, 1, 10, 0);
+        Resolution resolution = new Resolution(question, cache, false);
+        resolution.setBudget(budget);
+
+        assertEquals(Resolution.Step.SEND_QUERY, resolution.advance());
+        resolution.onResponse(respond(cache,
+                new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"),
+                new ResourceRecord(DNSCache.AQuestion("ns1.ubc.ca"), 3600, ubcServer)));
+
+        assertEquals(Resolution.Step.DONE, resolution.advance());
+        DNSLookupService.DNSErrorException e =
+                assertThrows(DNSLookupService.DNSErrorException.class, resolution::getResults);
+        assertEquals("Resolution budget exhausted (1 queries)", e.getMessage());
+
+        ResolutionBudget.Stats stats = new ResolutionBudget.Stats(10);
+        stats.record(budget);
+        stats.record(new ResolutionBudget(DNSCache.AQuestion("web.ubc.ca"), 1, 10, 0));
+        assertEquals(2, stats.getResolutions());
+        assertEquals(1, stats.getExhausted());
+        assertEquals(Integer.valueOf(1), stats.getExhaustedNames().get("www.ubc.ca"));
+        assertEquals(Integer.valueOf(1), stats.getReasons().get("queries"));
+    }
+}
@@ -0,0 +1,67 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResolutionTraceTest {
+
+    private ResolutionTrace sampleTrace() {
+        ResolutionTrace trace = new ResolutionTrace(DNSCache.AQuestion("www.ubc.ca"));
+        ResolutionTrace.Span query = trace.getRoot().startQuery(DNSCache.AQuestion("www.ubc.ca"),
+                DNSCache.stringToInetAddress("198.41.0.4"));
+        query.end(2, "13 records");
+        ResolutionTrace.Span sub = trace.getRoot().startResolution(DNSCache.AQuestion("ns1.ubc.ca"));
+        sub.end(0, "R-code is 3");
+        trace.getRoot().end(0, "1 records");
+        return trace;
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResolutionTrace.writeBinary(Collections.singletonList(sampleTrace()), new DataOutputStream(bytes));
+        List<ResolutionTrace> traces = ResolutionTrace.readBinary(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(1, traces.size());
+        ResolutionTrace.Span root = traces.get(0).getRoot();
+        assertEquals("1 records", root.getOutcome());
+        assertNull(root.getServer());
+        assertEquals(2, root.getChildren().size());
+        ResolutionTrace.Span query = root.getChildren().get(0);
+        assertEquals("198.41.0.4", query.getServer());
+        assertEquals(2, query.getAttempts());
+        assertTrue(query.getDurationMicros() >= 0);
+        assertEquals("R-code is 3", root.getChildren().get(1).getOutcome());
+    }
+
+    @Test
+    public void testChromeTrace() throws IOException {
+        StringBuilder json = new StringBuilder();
+        ResolutionTrace.writeChromeTrace(Collections.singletonList(sampleTrace()), json);
+        String text = json.toString();
+        assertTrue(text.startsWith("{\"traceEvents\":["));
+        assertTrue(text.contains("\"server\":\"198.41.0.4\",\"attempts\":2"));
+        assertEquals(3, text.split("\"ph\":\"X\"").length - 1);
+    }
+
+    @Test
+    public void testSampling() {
+        assertNull(new ResolutionTracer(0, 10).start(DNSCache.AQuestion("www.ubc.ca")));
+        ResolutionTracer tracer = new ResolutionTracer(1, 1);
+        tracer.finish(tracer.start(DNSCache.AQuestion("www.ubc.ca")));
+        ResolutionTrace last = tracer.start(DNSCache.AQuestion("www.cs.ubc.ca"));
+        tracer.finish(last);
+        assertEquals(Collections.singletonList(last), tracer.getTraces());
+    }
+
+    @Test
+    public void testRejectsCapacityBelowOne() {
+        assertThrows(IllegalArgumentException.class, () -> new ResolutionTracer(1, 0));
+    }
+}
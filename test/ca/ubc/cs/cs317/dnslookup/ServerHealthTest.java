@@ -0,0 +1,48 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerHealthTest {
+
+    private static final InetAddress server = DNSCache.stringToInetAddress("10.0.0.1");
+
+    @Test
+    public void testHoldDownAndHalfOpenProbe() {
+        long[] now = {1000};
+        ServerHealth health = new ServerHealth(50, 1000, () -> now[0]);
+        assertTrue(health.isAvailable(server, "ubc.ca"));
+        health.onTimeout(server);
+        assertFalse(health.isAvailable(server, "ubc.ca"));
+        assertFalse(health.isAvailable(server, "ca"));
+
+        now[0] += 49;
+        assertFalse(health.isAvailable(server, "ubc.ca"));
+        now[0] += 1;
+        // only one lookup probes the server once the hold-down expires
+        assertTrue(health.isAvailable(server, "ubc.ca"));
+        assertFalse(health.isAvailable(server, "ubc.ca"));
+        health.onTimeout(server);
+        // the hold-down doubles after a failed probe
+        now[0] += 99;
+        assertFalse(health.isAvailable(server, "ubc.ca"));
+        now[0] += 1;
+        assertTrue(health.isAvailable(server, "ubc.ca"));
+        health.onResponse(server, "ubc.ca");
+        assertTrue(health.isAvailable(server, "ubc.ca"));
+        assertEquals(0, health.size());
+    }
+
+    @Test
+    public void testLameForOneZone() {
+        ServerHealth health = new ServerHealth(1000, 10000);
+        health.onLame(server, "ubc.ca");
+        assertFalse(health.isAvailable(server, "UBC.ca"));
+        assertTrue(health.isAvailable(server, "cs.ubc.ca"));
+        assertTrue(health.isHeldDown(server, "ubc.ca"));
+        assertFalse(health.isHeldDown(server, "ca"));
+    }
+}
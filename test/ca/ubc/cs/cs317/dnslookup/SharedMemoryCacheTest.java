@@ -0,0 +1,93 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SharedMemoryCacheTest {
+
+    private File file;
+
+    @BeforeEach
+    public void createFile() throws IOException {
+        file = File.createTempFile("dnscache", ".bin");
+        Assertions.assertTrue(file.delete());
+    }
+
+    @AfterEach
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testPutAndGetAcrossMappings() throws IOException {
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        List<ResourceRecord> records = Arrays.asList(
+                new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("142.103.10.10")),
+                new ResourceRecord(question, 600, DNSCache.stringToInetAddress("142.103.10.11")));
+        try (SharedMemoryCache writer = new SharedMemoryCache(file, 64, SharedMemoryCache.DEFAULT_SLOT_SIZE);
+             SharedMemoryCache reader = new SharedMemoryCache(file, 1, 1)) {
+            Assertions.assertNull(reader.get(question));
+            writer.put(question, records);
+            List<ResourceRecord> shared = reader.get(question);
+            Assertions.assertEquals(2, shared.size());
+            Assertions.assertTrue(shared.containsAll(records));
+            Assertions.assertNull(reader.get(DNSCache.AQuestion("ubc.ca")));
+        }
+    }
+
+    @Test
+    public void testInstancesOnSameFileWriteConcurrently() throws Exception {
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        List<ResourceRecord> records = Collections.singletonList(
+                new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("142.103.10.10")));
+        try (SharedMemoryCache first = new SharedMemoryCache(file, 64, SharedMemoryCache.DEFAULT_SLOT_SIZE);
+             SharedMemoryCache second = new SharedMemoryCache(file, 64, SharedMemoryCache.DEFAULT_SLOT_SIZE)) {
+            // file locks belong to the JVM, so the two instances must not take the same lock at once
+            Thread other = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) second.put(question, records);
+            });
+            Throwable[] failure = new Throwable[1];
+            other.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+            other.start();
+            for (int i = 0; i < 2000; i++) first.put(question, records);
+            other.join();
+            Assertions.assertNull(failure[0]);
+            Assertions.assertEquals(records, first.get(question));
+        }
+    }
+
+    @Test
+    public void testCacheUsesSharedStore() throws IOException {
+        DNSQuestion question = DNSCache.AQuestion("www.ubc.ca");
+        ResourceRecord record = new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("142.103.10.10"));
+        DNSCache first = new DNSCache();
+        DNSCache second = new DNSCache();
+        try (SharedMemoryCache store = new SharedMemoryCache(file, 64, SharedMemoryCache.DEFAULT_SLOT_SIZE)) {
+            first.setSharedStore(store);
+            second.setSharedStore(store);
+            first.addResult(record);
+            Assertions.assertEquals(Collections.singletonList(record), second.getCachedResults(question));
+        }
+    }
+
+    @Test
+    public void testFullProbeWindowEvictsEarliestExpiration() throws IOException {
+        try (SharedMemoryCache store = new SharedMemoryCache(file, 4, SharedMemoryCache.DEFAULT_SLOT_SIZE)) {
+            for (int i = 0; i < 20; i++) {
+                DNSQuestion question = DNSCache.AQuestion("host" + i + ".ubc.ca");
+                store.put(question, Collections.singleton(
+                        new ResourceRecord(question, 100 + i, DNSCache.stringToInetAddress("10.0.0." + i))));
+            }
+            DNSQuestion last = DNSCache.AQuestion("host19.ubc.ca");
+            Assertions.assertEquals(1, store.get(last).size());
+        }
+    }
+}
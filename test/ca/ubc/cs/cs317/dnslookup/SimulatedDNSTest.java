@@ -0,0 +1,401 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimulatedDNSTest {
+
+    private static final String ZONES = String.join("\n",
+            "server a.root-servers.net 127.0.0.1",
+            "zone .",
+            ". 86400 NS a.root-servers.net",
+            "ca 86400 NS c.ca-servers.ca",
+            "c.ca-servers.ca 86400 A 127.0.0.2",
+            "server c.ca-servers.ca 127.0.0.2",
+            "zone ca",
+            "ubc.ca 3600 NS ns1.ubc.ca",
+            "ns1.ubc.ca 3600 A 127.0.0.3",
+            "server ns1.ubc.ca 127.0.0.3",
+            "zone ubc.ca",
+            "latency 5 2",
+            "ubc.ca 3600 SOA ns1.ubc.ca hostmaster.ubc.ca 1 3600 600 86400 300",
+            "www.ubc.ca 300 CNAME web.ubc.ca",
+            "web.ubc.ca 300 A 10.1.2.3",
+            "mail.ubc.ca 300 MX 10 smtp.ubc.ca",
+            "cs.ubc.ca 3600 NS ns.cs.ubc.ca",
+            "ns.cs.ubc.ca 3600 A 127.0.0.4",
+            "lab.ubc.ca 3600 NS ns.cs.ubc.ca",
+            "lab.ubc.ca 3600 NS ns.lab.ubc.ca",
+            "ns.lab.ubc.ca 3600 A 127.0.0.5",
+            "server ns.cs.ubc.ca 127.0.0.4",
+            "zone cs.ubc.ca",
+            "www.cs.ubc.ca 300 A 10.4.5.6",
+            "zone lab.ubc.ca",
+            "host1.lab.ubc.ca 300 A 10.5.0.1",
+            "host2.lab.ubc.ca 300 A 10.5.0.2",
+            "host3.lab.ubc.ca 300 A 10.5.0.3",
+            "host4.lab.ubc.ca 300 A 10.5.0.4",
+            "server ns.lab.ubc.ca 127.0.0.5",
+            "server resolver.ubc.ca 127.0.0.6",
+            "recursive");
+
+    private SimulatedDNS dns;
+    private DNSLookupService service;
+    private final DNSCache cache = DNSCache.getInstance();
+
+    @BeforeEach
+    public void startHierarchy() throws IOException {
+        dns = SimulatedDNS.load(new StringReader(ZONES), 0, 42);
+        dns.start();
+        cache.reset(dns.getRootHints());
+        service = new DNSLookupService(new DNSLookupCUI());
+        service.setServerPort(dns.getPort());
+    }
+
+    @AfterEach
+    public void stopHierarchy() {
+        service.close();
+        dns.close();
+        cache.reset();
+        ServerHealth.getInstance().reset();
+        FamilyPreference.getInstance().reset();
+    }
+
+    @Test
+    public void testResolvesThroughHierarchy() throws DNSLookupService.DNSErrorException {
+        Collection<ResourceRecord> results = service.getResultsFollowingCNames(DNSCache.AQuestion("www.ubc.ca"), 10);
+        assertEquals(2, results.size());
+        boolean found = false;
+        for (ResourceRecord rr : results) {
+            if (rr.getRecordType() == RecordType.A) {
+                assertEquals("10.1.2.3", rr.getTextResult());
+                found = true;
+            }
+        }
+        assertTrue(found);
+
+        results = service.getResultsFollowingCNames(DNSCache.AQuestion("www.cs.ubc.ca"), 10);
+        assertEquals("10.4.5.6", results.iterator().next().getTextResult());
+        assertEquals(1, dns.getServers().get(3).getQueries());
+    }
+
+    @Test
+    public void testFinalAnswerSendsNoQuery() throws DNSLookupService.DNSErrorException {
+        // only the final answer is cached, not the records of the canonical name
+        ResourceRecord cname = new ResourceRecord(new DNSQuestion("www.ubc.ca", RecordType.CNAME, RecordClass.IN),
+                300, "web.ubc.ca");
+        ResourceRecord address = new ResourceRecord(DNSCache.AQuestion("web.ubc.ca"), 300,
+                DNSCache.stringToInetAddress("10.1.2.3"));
+        cache.addFinalAnswer(DNSCache.AQuestion("www.ubc.ca"), Arrays.asList(cname, address));
+
+        Collection<ResourceRecord> results = service.getResultsFollowingCNames(DNSCache.AQuestion("www.ubc.ca"), 10);
+        assertEquals(2, results.size());
+        assertTrue(results.contains(address));
+        long queries = 0;
+        for (SimulatedDNS.Server server : dns.getServers()) queries += server.getQueries();
+        assertEquals(0, queries);
+    }
+
+    @Test
+    public void testMultipleTypesShareDelegationWalk() throws DNSLookupService.DNSErrorException {
+        Map<RecordType, DNSLookupService.TypeResult> results = service.getResultsFollowingCNames("mail.ubc.ca",
+                Arrays.asList(RecordType.MX, RecordType.A, RecordType.AAAA), 10);
+        assertEquals(Arrays.asList(RecordType.MX, RecordType.A, RecordType.AAAA), new ArrayList<>(results.keySet()));
+        assertEquals("smtp.ubc.ca", results.get(RecordType.MX).getRecords().iterator().next().getTextResult());
+        assertTrue(results.get(RecordType.A).getRecords().isEmpty());
+        assertTrue(results.get(RecordType.AAAA).getRecords().isEmpty());
+        // the root and ca servers are only asked once, then each type takes a single query to ns1.ubc.ca
+        assertEquals(1, dns.getServers().get(0).getQueries());
+        assertEquals(1, dns.getServers().get(1).getQueries());
+        assertEquals(3, dns.getServers().get(2).getQueries());
+
+        Map<RecordType, DNSLookupService.TypeResult> missing = service.getResultsFollowingCNames("missing.ubc.ca",
+                Arrays.asList(RecordType.A, RecordType.AAAA), 10);
+        assertThrows(DNSLookupService.DNSErrorException.class, () -> missing.get(RecordType.A).getRecords());
+        assertThrows(DNSLookupService.DNSErrorException.class, () -> missing.get(RecordType.AAAA).getRecords());
+
+        // a type that fails does not hide the results of the others
+        Map<RecordType, DNSLookupService.TypeResult> partial = service.getResultsFollowingCNames("www.ubc.ca",
+                Arrays.asList(RecordType.CNAME, RecordType.A), 0);
+        assertEquals("web.ubc.ca", partial.get(RecordType.CNAME).getRecords().iterator().next().getTextResult());
+        assertThrows(DNSLookupService.DNSErrorException.class, () -> partial.get(RecordType.A).getRecords());
+    }
+
+    @Test
+    public void testNameErrorAndNoData() throws DNSLookupService.DNSErrorException {
+        assertThrows(DNSLookupService.DNSErrorException.class,
+                () -> service.getResultsFollowingCNames(DNSCache.AQuestion("missing.ubc.ca"), 10));
+        assertTrue(service.getResultsFollowingCNames(
+                new DNSQuestion("web.ubc.ca", RecordType.AAAA, RecordClass.IN), 10).isEmpty());
+    }
+
+    @Test
+    public void testSkipsLameServer() throws DNSLookupService.DNSErrorException {
+        for (int i = 1; i <= 4; i++) {
+            Collection<ResourceRecord> results = service.getResultsFollowingCNames(
+                    DNSCache.AQuestion("host" + i + ".lab.ubc.ca"), 10);
+            assertEquals("10.5.0." + i, results.iterator().next().getTextResult());
+        }
+        // the lame server refuses the zone; once it did, it is held down
+        long queries = dns.getServers().get(4).getQueries();
+        assertTrue(queries <= 1);
+        assertEquals(queries == 1, ServerHealth.getInstance().isHeldDown(
+                DNSCache.stringToInetAddress("127.0.0.5"), "lab.ubc.ca"));
+    }
+
+    @Test
+    public void testLocalRootZone() throws Exception {
+        cache.setRootZone(RootZone.parse(new StringReader(String.join("\n",
+                "ca. 86400 IN NS c.ca-servers.ca.",
+                "c.ca-servers.ca. 86400 IN A 127.0.0.2"))));
+        try {
+            Collection<ResourceRecord> results = service.getResultsFollowingCNames(DNSCache.AQuestion("www.ubc.ca"), 10);
+            assertEquals(2, results.size());
+            assertEquals(0, dns.getServers().get(0).getQueries());
+        } finally {
+            cache.setRootZone(null);
+        }
+    }
+
+    @Test
+    public void testLocalDataOverridesNetwork() throws Exception {
+        cache.setLocalData(new LocalData.Builder()
+                .addHosts(new StringReader("10.9.9.9 www.ubc.ca"))
+                .addZone(new StringReader(String.join("\n",
+                        "$ORIGIN cs.ubc.ca.",
+                        "@ 300 IN SOA ns hostmaster 1 3600 600 86400 300",
+                        "www 300 IN A 10.9.9.10")))
+                .build());
+        try {
+            Collection<ResourceRecord> results = service.getResultsFollowingCNames(DNSCache.AQuestion("www.ubc.ca"), 10);
+            assertEquals("10.9.9.9", results.iterator().next().getTextResult());
+            results = service.getResultsFollowingCNames(DNSCache.AQuestion("www.cs.ubc.ca"), 10);
+            assertEquals("10.9.9.10", results.iterator().next().getTextResult());
+            DNSLookupService.DNSErrorException e = assertThrows(DNSLookupService.DNSErrorException.class,
+                    () -> service.getResultsFollowingCNames(DNSCache.AQuestion("missing.cs.ubc.ca"), 10));
+            assertEquals(3, e.getRcode());
+            for (SimulatedDNS.Server server : dns.getServers()) assertEquals(0, server.getQueries());
+        } finally {
+            cache.setLocalData(null);
+        }
+    }
+
+    @Test
+    public void testForwardsToUpstreams() throws DNSLookupService.DNSErrorException {
+        // the lame server refuses recursive queries, so queries sent to it fail over to the resolver
+        UpstreamPool upstreams = new UpstreamPool(Arrays.asList(
+                new InetSocketAddress(DNSCache.stringToInetAddress("127.0.0.5"), dns.getPort()),
+                new InetSocketAddress(DNSCache.stringToInetAddress("127.0.0.6"), dns.getPort())));
+        service.setUpstreams(upstreams);
+        for (int i = 1; i <= 4; i++) {
+            Collection<ResourceRecord> results = service.getResultsFollowingCNames(
+                    DNSCache.AQuestion("host" + i + ".lab.ubc.ca"), 10);
+            assertEquals("10.5.0." + i, results.iterator().next().getTextResult());
+        }
+        Collection<ResourceRecord> results = service.getResultsFollowingCNames(DNSCache.AQuestion("www.ubc.ca"), 10);
+        assertEquals(2, results.size());
+        assertThrows(DNSLookupService.DNSErrorException.class,
+                () -> service.getResultsFollowingCNames(DNSCache.AQuestion("missing.ubc.ca"), 10));
+        // the lame server is only queried first by chance, or as a hedge when the resolver is slow
+        assertEquals(dns.getServers().get(4).getQueries(), upstreams.getFailovers() + upstreams.getHedged());
+        assertEquals(0, dns.getServers().get(0).getQueries());
+
+        // answered from the cache
+        long queries = dns.getServers().get(5).getQueries();
+        service.getResultsFollowingCNames(DNSCache.AQuestion("www.ubc.ca"), 10);
+        assertEquals(queries, dns.getServers().get(5).getQueries());
+    }
+
+    @Test
+    public void testHedgesSlowNameserver() throws Exception {
+        try (SimulatedDNS slow = SimulatedDNS.load(new StringReader(String.join("\n",
+                "server a.root-servers.net 127.0.0.1",
+                "zone .",
+                ". 86400 NS a.root-servers.net",
+                "example 3600 NS ns1.example",
+                "example 3600 NS ns2.example",
+                "ns1.example 3600 A 127.0.0.2",
+                "ns2.example 3600 A 127.0.0.3",
+                "server ns1.example 127.0.0.2",
+                "zone example",
+                "latency 800",
+                "host.example 300 A 10.6.0.1",
+                "server ns2.example 127.0.0.3",
+                "zone example",
+                "host.example 300 A 10.6.0.1")), 0, 42)) {
+            slow.start();
+            cache.reset(slow.getRootHints());
+            service.setServerPort(slow.getPort());
+            HedgePolicy hedging = new HedgePolicy();
+            service.setHedging(hedging);
+            // nameservers are tried in random order, so about half the lookups start with the slow one
+            for (int i = 0; i < 12; i++) {
+                Collection<ResourceRecord> results = service.getResultsFollowingCNames(
+                        DNSCache.AQuestion("host.example"), 10);
+                assertEquals("10.6.0.1", results.iterator().next().getTextResult());
+                cache.reset(slow.getRootHints());
+            }
+            assertTrue(hedging.getHedged() > 0);
+            assertEquals(hedging.getHedged(), hedging.getHedgeWins());
+            assertEquals(24, hedging.getQueries());
+        }
+    }
+
+    @Test
+    public void testQueriesNameserversOverIPv6() throws Exception {
+        try (SimulatedDNS v6 = SimulatedDNS.load(new StringReader(String.join("\n",
+                "server a.root-servers.net 127.0.0.1",
+                "zone .",
+                ". 86400 NS a.root-servers.net",
+                "example 3600 NS ns.example",
+                "ns.example 3600 AAAA ::1",
+                "server ns.example ::1",
+                "zone example",
+                "host.example 300 A 10.6.0.1")), 0, 42)) {
+            v6.start();
+            cache.reset(v6.getRootHints());
+            service.setServerPort(v6.getPort());
+            Collection<ResourceRecord> results = service.getResultsFollowingCNames(DNSCache.AQuestion("host.example"), 10);
+            assertEquals("10.6.0.1", results.iterator().next().getTextResult());
+            assertEquals(1, v6.getServers().get(1).getQueries());
+        }
+    }
+
+    @Test
+    public void testRacesAddressFamilies() throws Exception {
+        // nothing listens on ::1, so the nameserver only responds over IPv4
+        try (SimulatedDNS dual = SimulatedDNS.load(new StringReader(String.join("\n",
+                "server a.root-servers.net 127.0.0.1",
+                "zone .",
+                ". 86400 NS a.root-servers.net",
+                "example 3600 NS ns.example",
+                "ns.example 3600 A 127.0.0.2",
+                "ns.example 3600 AAAA ::1",
+                "server ns.example 127.0.0.2",
+                "zone example",
+                "host1.example 300 A 10.6.0.1",
+                "host2.example 300 A 10.6.0.2")), 0, 42)) {
+            dual.start();
+            cache.reset(dual.getRootHints());
+            service.setServerPort(dual.getPort());
+            FamilyPreference families = FamilyPreference.getInstance();
+            assertTrue(families.prefersIPv6("ns.example"));
+            Collection<ResourceRecord> results = service.getResultsFollowingCNames(
+                    DNSCache.AQuestion("host1.example"), 10);
+            assertEquals("10.6.0.1", results.iterator().next().getTextResult());
+            assertFalse(families.prefersIPv6("ns.example"));
+
+            // IPv4 is now queried first, and answers before IPv6 is raced
+            long start = System.nanoTime();
+            results = service.getResultsFollowingCNames(DNSCache.AQuestion("host2.example"), 10);
+            assertEquals("10.6.0.2", results.iterator().next().getTextResult());
+            assertTrue(System.nanoTime() - start < 1000000000L);
+            assertEquals(2, dual.getServers().get(1).getQueries());
+        }
+    }
+
+    @Test
+    public void testEventLoop() throws Exception {
+        try (ResolverEventLoop loop = new ResolverEventLoop(service)) {
+            Collection<ResourceRecord> results = loop.resolve(
+                    new DNSQuestion("mail.ubc.ca", RecordType.MX, RecordClass.IN), 10).get(5, TimeUnit.SECONDS);
+            assertEquals(1, results.size());
+            assertEquals("smtp.ubc.ca", results.iterator().next().getTextResult());
+        }
+    }
+
+    @Test
+    public void testHostResolverIgnoresCachedCNameAlone() throws Exception {
+        cache.addResult(new ResourceRecord(new DNSQuestion("www.ubc.ca", RecordType.CNAME, RecordClass.IN), 300,
+                "web.ubc.ca"));
+        try (HostResolver resolver = new HostResolver(service)) {
+            List<InetAddress> addresses = resolver.lookupByName("www.ubc.ca", true, false);
+            assertEquals(1, addresses.size());
+            assertEquals("10.1.2.3", addresses.get(0).getHostAddress());
+            assertEquals(0, resolver.getCacheHits());
+        }
+    }
+
+    @Test
+    public void testEventLoopSurvivesSocketRotation() throws Exception {
+        try (ResolverEventLoop loop = new ResolverEventLoop(service, 5)) {
+            for (int i = 0; i < 30; i++) {
+                cache.reset(dns.getRootHints());
+                Collection<ResourceRecord> results = loop.resolve(DNSCache.AQuestion("www.cs.ubc.ca"), 10)
+                        .get(5, TimeUnit.SECONDS);
+                assertEquals("10.4.5.6", results.iterator().next().getTextResult());
+            }
+            assertTrue(loop.getSocketRotations() > 0);
+        }
+    }
+
+    @Test
+    public void testEventLoopWithConcurrencyLimit() throws Exception {
+        service.setConcurrencyLimiter(new ConcurrencyLimiter(1, 1, 1, 1));
+        try (ResolverEventLoop loop = new ResolverEventLoop(service)) {
+            CompletableFuture<Collection<ResourceRecord>> mail =
+                    loop.resolve(new DNSQuestion("mail.ubc.ca", RecordType.MX, RecordClass.IN), 10);
+            CompletableFuture<Collection<ResourceRecord>> www = loop.resolve(DNSCache.AQuestion("www.cs.ubc.ca"), 10);
+            assertEquals("smtp.ubc.ca", mail.get(5, TimeUnit.SECONDS).iterator().next().getTextResult());
+            assertEquals("10.4.5.6", www.get(5, TimeUnit.SECONDS).iterator().next().getTextResult());
+        }
+        assertEquals(0, service.getConcurrencyLimiter().getInFlight());
+    }
+
+    @Test
+    public void testHostResolver() throws Exception {
+        try (HostResolver resolver = new HostResolver(service)) {
+            InetAddress[] addresses = resolver.getAllByName("www.ubc.ca");
+            assertEquals(1, addresses.length);
+            assertEquals("10.1.2.3", addresses[0].getHostAddress());
+            assertEquals("www.ubc.ca", addresses[0].getHostName());
+            assertEquals(0, resolver.getCacheHits());
+
+            assertEquals("10.1.2.3", resolver.getByName("www.ubc.ca.").getHostAddress());
+            // only the A lookup is a hit: the name has no AAAA record, so just its CNAME is cached for AAAA
+            assertEquals(1, resolver.getCacheHits());
+            assertThrows(UnknownHostException.class, () -> resolver.lookupByName("web.ubc.ca", false, true));
+            assertThrows(UnknownHostException.class, () -> resolver.getByName("missing.ubc.ca"));
+            assertEquals("10.9.8.7", resolver.getByName("10.9.8.7").getHostAddress());
+            assertThrows(UnknownHostException.class, () -> resolver.getByName("999.1.1.1"));
+            assertEquals(4, resolver.getLookups());
+        }
+        assertEquals("4.3.2.1.in-addr.arpa", HostResolver.reverseName(DNSCache.stringToInetAddress("1.2.3.4")));
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        ByteArrayOutputStream capture = new ByteArrayOutputStream();
+        RecordingTransport recorder = new RecordingTransport(new UdpTransport(), capture);
+        service.setTransport(recorder);
+        DNSQuestion question = new DNSQuestion("mail.ubc.ca", RecordType.MX, RecordClass.IN);
+        Collection<ResourceRecord> recorded = service.getResultsFollowingCNames(question, 10);
+        recorder.close();
+        dns.close();
+
+        cache.reset(dns.getRootHints());
+        ReplayTransport replay = new ReplayTransport(new ByteArrayInputStream(capture.toByteArray()), 0);
+        service.setTransport(replay);
+        assertEquals(recorded, service.getResultsFollowingCNames(question, 10));
+        assertEquals(3, replay.getReplayed());
+        assertEquals(0, replay.getMisses());
+    }
+}
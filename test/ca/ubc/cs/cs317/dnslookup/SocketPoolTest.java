@@ -0,0 +1,51 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SocketPoolTest {
+
+    @Test
+    public void testKeysAreUniqueAcrossSockets() throws IOException {
+        try (Selector selector = Selector.open(); SocketPool pool = new SocketPool(selector, 4)) {
+            Set<Integer> ports = new HashSet<>();
+            for (int i = 0; i < 4; i++) ports.add(pool.getChannelAt(i).socket().getLocalPort());
+            assertEquals(4, ports.size());
+
+            // more queries in flight than a single socket has IDs
+            Set<Integer> keys = new HashSet<>();
+            int[] perSocket = new int[4];
+            for (int i = 0; i < 70000; i++) {
+                int key = pool.allocate();
+                assertTrue(key >= 0);
+                assertTrue(keys.add(key));
+                perSocket[key / SocketPool.IDS_PER_SOCKET]++;
+            }
+            assertEquals(70000, pool.getInFlight());
+            for (int count : perSocket) assertTrue(count <= SocketPool.IDS_PER_SOCKET / 2);
+            for (int key : keys) pool.release(key);
+            assertEquals(0, pool.getInFlight());
+        }
+    }
+
+    @Test
+    public void testRetiredSocketsMoveToNewPorts() throws IOException {
+        try (Selector selector = Selector.open(); SocketPool pool = new SocketPool(selector, 2)) {
+            Set<Integer> ports = new HashSet<>();
+            for (int i = 0; i < 2; i++) ports.add(pool.getChannelAt(i).socket().getLocalPort());
+            for (int i = 0; i < 30000; i++) pool.release(pool.allocate());
+            assertTrue(pool.getRotations() >= 2);
+            for (int i = 0; i < 2; i++) {
+                assertTrue(pool.getChannelAt(i).isOpen());
+                ports.add(pool.getChannelAt(i).socket().getLocalPort());
+            }
+            assertTrue(ports.size() > 2);
+        }
+    }
+}